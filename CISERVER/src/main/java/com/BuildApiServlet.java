@@ -0,0 +1,236 @@
+package com;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/*
+ * The builds as JSON, for scripts and other tools:
+ *
+ *   /api/builds/<id>  one build, also an archived one
+ *   /api/builds       a page of builds, newest first: {"builds": [...], "nextCursor": ...}
+ *
+ * The list can be narrowed down with ?repo= (and &branch=), ?sha=, ?status=
+ * (a state such as "failure"), ?since= and ?until= (milliseconds since 1970 or
+ * ISO-8601 instants, both included). It has at most &limit= builds; the next
+ * page is the one with &cursor=<nextCursor>, which is null on the last page.
+ * A page may be followed by an empty one.
+ *
+ * With ?format=ndjson (or Accept: application/x-ndjson) all matching builds are
+ * sent instead, one JSON object per line, to export the history. The JSON is
+ * written with a JsonGenerator straight to the response while the builds are
+ * read from the store a page at a time, so the memory it takes doesn't depend on
+ * how many builds there are. Archived builds are only found by id.
+ */
+public class BuildApiServlet extends HttpServlet {
+    static final String NDJSON = "application/x-ndjson";
+    // Builds read from the store at once while a filter skips some.
+    private static final int BATCH = 500;
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final BuildStatusStore statusStore;
+
+    // Gets the matching builds one by one.
+    private interface BuildWriter {
+        void write(BuildStatus status) throws IOException;
+    }
+
+    // The filters of a request.
+    private static final class Query {
+        final String repo;
+        final String branch;
+        final String sha;
+        final String state;
+        final long since;
+        final long until;
+        final String cursor;
+        final int limit;
+
+        // Throws IllegalArgumentException for an invalid time or cursor.
+        Query(HttpServletRequest req, int defaultLimit) {
+            repo = req.getParameter("repo");
+            branch = req.getParameter("branch");
+            sha = req.getParameter("sha");
+            state = req.getParameter("status");
+            since = time(req, "since", Long.MIN_VALUE);
+            until = time(req, "until", Long.MAX_VALUE);
+            cursor = req.getParameter("cursor");
+            PageCursor.parse(cursor);
+            int requested = defaultLimit;
+            try {
+                requested = Math.max(1, Integer.parseInt(req.getParameter("limit")));
+            } catch (NumberFormatException e) {
+                // No or an invalid limit, keep the default.
+            }
+            limit = requested;
+        }
+
+        private static long time(HttpServletRequest req, String name, long defaultValue) {
+            String value = req.getParameter(name);
+            if (value == null || value.isEmpty()) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                try {
+                    return Instant.parse(value).toEpochMilli();
+                } catch (DateTimeParseException ex) {
+                    throw new IllegalArgumentException("Invalid time for " + name + ": " + value);
+                }
+            }
+        }
+    }
+
+    public BuildApiServlet(BuildStatusStore statusStore) {
+        this.statusStore = statusStore;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String path = req.getPathInfo();
+        if (path != null && path.length() > 1) {
+            writeBuild(path.substring(1), req, resp);
+            return;
+        }
+        String accept = req.getHeader("Accept");
+        boolean ndjson = "ndjson".equals(req.getParameter("format")) || accept != null && accept.contains(NDJSON);
+        Query query;
+        try {
+            query = new Query(req, ndjson ? Integer.MAX_VALUE : BuildListServlet.DEFAULT_LIMIT);
+        } catch (IllegalArgumentException e) {
+            writeError(resp, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (ndjson) {
+            resp.setContentType(NDJSON);
+            try (JsonGenerator out = factory.createGenerator(resp.getOutputStream(), JsonEncoding.UTF8)) {
+                scan(query, query.limit, status -> {
+                    write(out, status);
+                    out.writeRaw('\n');
+                });
+            }
+            return;
+        }
+        long lastModified = statusStore.getLastModified();
+        resp.setHeader("Cache-Control", "no-cache");
+        if (ConditionalGet.notModified(req, resp, ConditionalGet.etag(lastModified), lastModified)) {
+            return;
+        }
+        resp.setContentType("application/json");
+        try (JsonGenerator out = factory.createGenerator(resp.getOutputStream(), JsonEncoding.UTF8)) {
+            out.writeStartObject();
+            out.writeArrayFieldStart("builds");
+            String next = scan(query, Math.min(query.limit, BuildListServlet.MAX_LIMIT), status -> write(out, status));
+            out.writeEndArray();
+            out.writeStringField("nextCursor", next);
+            out.writeEndObject();
+        }
+    }
+
+    private void writeBuild(String id, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        long lastModified = statusStore.getLastModified();
+        BuildStatus live = statusStore.getStatusById(id);
+        BuildStatus status = live == null ? statusStore.getArchivedStatus(id) : live;
+        if (status == null) {
+            writeError(resp, HttpServletResponse.SC_NOT_FOUND, "No build with id " + id);
+            return;
+        }
+        boolean archived = live == null;
+        if (status.isFinished()) {
+            resp.setHeader("Cache-Control", BuildDetailServlet.FINISHED_CACHE_CONTROL);
+            String etag = ConditionalGet.etag(status.getId() + "-" + status.getState() + (archived ? "-archived" : ""));
+            if (ConditionalGet.notModified(req, resp, etag, 0)) {
+                return;
+            }
+        } else {
+            resp.setHeader("Cache-Control", "no-cache");
+            if (ConditionalGet.notModified(req, resp, ConditionalGet.etag(lastModified), lastModified)) {
+                return;
+            }
+        }
+        resp.setContentType("application/json");
+        try (JsonGenerator out = factory.createGenerator(resp.getOutputStream(), JsonEncoding.UTF8)) {
+            out.writeStartObject();
+            fields(out, status);
+            out.writeBooleanField("archived", archived);
+            out.writeEndObject();
+        }
+    }
+
+    /*
+     * Hands the matching builds, newest first, to the writer until limit of them
+     * were written. Returns the cursor of the builds after the last one written,
+     * or null if there are none.
+     */
+    private String scan(Query query, int limit, BuildWriter writer) throws IOException {
+        // A cursor just after a build of until, at a position no build has, starts at the newest build of until.
+        String cursor = query.cursor == null && query.until != Long.MAX_VALUE
+                        ? PageCursor.after(query.until, Integer.MAX_VALUE) : query.cursor;
+        int written = 0;
+        while (true) {
+            // Without a status filter every build is written until since is passed.
+            int batch = query.state == null ? Math.min(BATCH, limit - written) : BATCH;
+            BuildStatusPage page = statusStore.getPage(query.repo, query.branch, query.sha, cursor, batch);
+            List<BuildStatus> builds = page.getBuilds();
+            for (int i = 0; i < builds.size(); i++) {
+                BuildStatus status = builds.get(i);
+                if (status.getTimestamp() < query.since) {
+                    // The rest are older still.
+                    return null;
+                }
+                if (status.getTimestamp() > query.until || query.state != null && !query.state.equals(status.getState())) {
+                    continue;
+                }
+                writer.write(status);
+                if (++written == limit) {
+                    if (i == builds.size() - 1) {
+                        return page.getNextCursor();
+                    }
+                    // The page from the same start up to this build ends with the cursor after it.
+                    return statusStore.getPage(query.repo, query.branch, query.sha, cursor, i + 1).getNextCursor();
+                }
+            }
+            if (page.getNextCursor() == null) {
+                return null;
+            }
+            cursor = page.getNextCursor();
+        }
+    }
+
+    private static void write(JsonGenerator out, BuildStatus status) throws IOException {
+        out.writeStartObject();
+        fields(out, status);
+        out.writeEndObject();
+    }
+
+    // The fields of a status, named as in build_statuses.json.
+    private static void fields(JsonGenerator out, BuildStatus status) throws IOException {
+        out.writeStringField("id", status.getId());
+        out.writeStringField("repoName", status.getRepoName());
+        out.writeStringField("commitSHA", status.getCommitSHA());
+        out.writeStringField("branch", status.getBranch());
+        out.writeStringField("state", status.getState());
+        out.writeBooleanField("success", status.isSuccess());
+        out.writeNumberField("timestamp", status.getTimestamp());
+        out.writeStringField("details", status.getDetails());
+        out.writeStringField("cachedFrom", status.getCachedFrom());
+    }
+
+    private static void writeError(HttpServletResponse resp, int code, String message) throws IOException {
+        resp.setStatus(code);
+        resp.setContentType("application/json");
+        try (JsonGenerator out = factory.createGenerator(resp.getOutputStream(), JsonEncoding.UTF8)) {
+            out.writeStartObject();
+            out.writeStringField("error", message);
+            out.writeEndObject();
+        }
+    }
+}
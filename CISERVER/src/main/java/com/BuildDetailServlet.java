@@ -4,38 +4,83 @@ import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 public class BuildDetailServlet extends HttpServlet {
+    // Lines of the log shown when no range is asked for, from its end.
+    private static final int LOG_LINES = 200;
+    // Largest byte range shown at once.
+    private static final int MAX_LOG_BYTES = 1024 * 1024;
+    // How long browsers may keep the page of a finished build without asking again.
+    static final String FINISHED_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy--dd--MM HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final BuildStatusStore statusStore;
+    // Build logs to show a part of, null to only link to the log.
+    private final BuildLogStore logStore;
+    // Pages of finished builds as they are shown without a log range.
+    private final HtmlFragmentCache pages;
+
+    public BuildDetailServlet(BuildStatusStore statusStore) {
+        this(statusStore, null);
+    }
+
+    public BuildDetailServlet(BuildStatusStore statusStore, BuildLogStore logStore) {
+        this(statusStore, logStore, new HtmlFragmentCache());
+    }
+
+    public BuildDetailServlet(BuildStatusStore statusStore, BuildLogStore logStore, HtmlFragmentCache pages) {
+        this.statusStore = statusStore;
+        this.logStore = logStore;
+        this.pages = pages;
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
         try {
             String id = req.getParameter("id");
-            BuildStatus status = FileBuildStatusStore.getStatusById(id);
-            
-            resp.setContentType("text/html");
-            try (PrintWriter out = resp.getWriter()) {
-                out.println("<html><head><title>Build Detail</title></head><body>");
-                if (status != null) {
-                    SimpleDateFormat sdf = new SimpleDateFormat("yyyy--dd--MM HH:mm:ss");
-                    String date = sdf.format(new Date(status.getTimestamp()));
-                    
-                    out.println("<h1>Build Detail for ID: " + status.getId() + "</h1>");
-                    out.println("<p><strong>Repository:</strong> " + status.getRepoName() + "</p>");
-                    out.println("<p><strong>Commit SHA:</strong> " + status.getCommitSHA() + "</p>");
-                    out.println("<p><strong>Branch:</strong> " + status.getBranch() + "</p>");
-                    out.println("<p><strong>Status:</strong> " + (status.isSuccess() ? "Success" : "Failure") + "</p>");
-                    out.println("<p><strong>Date:</strong> " + date + "</p>");
-                    out.println("<p><strong>Details:</strong> " + status.getDetails() + "</p>");
-                } else {
-                    out.println("<p>Build status not found for id: " + id + "</p>");
+            long lastModified = statusStore.getLastModified();
+            BuildStatus live = statusStore.getStatusById(id);
+            // Older builds may have been moved to the archive by the retention policy.
+            BuildStatus status = live == null && id != null ? statusStore.getArchivedStatus(id) : live;
+            boolean archived = live == null && status != null;
+            boolean isFinal = isFinal(status);
+            if (isFinal) {
+                // Nothing on the page changes any more but the archived note, so it is in the tag.
+                resp.setHeader("Cache-Control", FINISHED_CACHE_CONTROL);
+                String etag = ConditionalGet.etag(status.getId() + "-" + status.getState() + (archived ? "-archived" : ""));
+                if (ConditionalGet.notModified(req, resp, etag, 0)) {
+                    return;
+                }
+            } else {
+                resp.setHeader("Cache-Control", "no-cache");
+                if (ConditionalGet.notModified(req, resp, ConditionalGet.etag(lastModified), lastModified)) {
+                    return;
                 }
-                out.println("<p><a href='/builds'>Back to build list</a></p>");
-                out.println("</body></html>");
             }
-        } catch (IOException e) {
+            
+            byte[] page;
+            if (isFinal && req.getParameter("lines") == null && req.getParameter("bytes") == null) {
+                page = pages.get("detail:" + status.getId() + ":" + status.getState() + (archived ? ":archived" : ""),
+                                 () -> render(id, status, archived, req));
+            } else {
+                page = render(id, status, archived, req);
+            }
+
+            resp.setContentType("text/html; charset=UTF-8");
+            try (OutputStream out = resp.getOutputStream()) {
+                out.write(page);
+            }
+        } catch (IOException | UncheckedIOException e) {
             try {
                 resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error processing build detail");
             } catch (IOException ex) {
@@ -50,4 +95,125 @@ public class BuildDetailServlet extends HttpServlet {
             }
         }
     }
+
+    // The page of the build with the id, of which status is null if there is none.
+    private byte[] render(String id, BuildStatus status, boolean archived, HttpServletRequest req) {
+        StringWriter page = new StringWriter();
+        try (PrintWriter out = new PrintWriter(page)) {
+            out.println("<html><head><title>Build Detail</title></head><body>");
+            if (status != null) {
+                String date = DATE_FORMAT.format(Instant.ofEpochMilli(status.getTimestamp()));
+
+                out.println("<h1>Build Detail for ID: " + status.getId() + "</h1>");
+                if (archived) {
+                    out.println("<p><em>This build is archived.</em></p>");
+                }
+                out.println("<p><strong>Repository:</strong> " + status.getRepoName() + "</p>");
+                out.println("<p><strong>Commit SHA:</strong> " + status.getCommitSHA() + "</p>");
+                out.println("<p><strong>Branch:</strong> " + status.getBranch() + "</p>");
+                out.println("<p><strong>Status:</strong> " + status.getStateLabel() + "</p>");
+                out.println("<p><strong>Date:</strong> " + date + "</p>");
+                out.println("<p><strong>Details:</strong> " + status.getDetails() + "</p>");
+                out.println("<p><a href='/log?id=" + status.getId() + "'>Build log</a></p>");
+                if (status.isCacheHit()) {
+                    out.println("<p><strong>Cached result of:</strong> <a href='/buildDetail?id=" + status.getCachedFrom() + "'>"
+                                + status.getCachedFrom() + "</a></p>");
+                }
+                if (logStore != null) {
+                    writeLog(status.getId(), req, out);
+                }
+            } else {
+                out.println("<p>Build status not found for id: " + id + "</p>");
+            }
+            out.println("<p><a href='/builds'>Back to build list</a></p>");
+            out.println("</body></html>");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Whether the page of the status stays the same: the build is finished and
+     * its log, if it has one here, is sealed. The status is updated just before
+     * the log is closed, so until then the end of the log may still be missing.
+     */
+    private boolean isFinal(BuildStatus status) {
+        if (status == null || !status.isFinished()) {
+            return false;
+        }
+        return logStore == null || !logStore.exists(status.getId()) || logStore.isSealed(status.getId());
+    }
+
+    /*
+     * Shows a part of the build log: the lines of ?lines=<from>-<to> (counted from 1),
+     * the bytes of ?bytes=<from>-<to> (from 0, to excluded) or else its last lines.
+     * Only the segments holding the range are read.
+     */
+    private void writeLog(String id, HttpServletRequest req, PrintWriter out) throws IOException {
+        if (!logStore.exists(id)) {
+            out.println("<p>No build log, it may have expired.</p>");
+            return;
+        }
+        String lines = req.getParameter("lines");
+        String bytes = req.getParameter("bytes");
+        long[] requested = parseRange(bytes != null ? bytes : lines);
+        if ((bytes != null || lines != null) && requested == null) {
+            out.println("<p>Invalid log range.</p>");
+            return;
+        }
+        String text;
+        String range;
+        if (bytes != null) {
+            long[] r = requested;
+            int length = (int) Math.min(r[1] - r[0], MAX_LOG_BYTES);
+            text = logStore.readRange(id, r[0], length);
+            range = "Bytes " + r[0] + "-" + (r[0] + length) + " of " + logStore.length(id);
+        } else {
+            long from;
+            int count;
+            if (lines != null) {
+                long[] r = requested;
+                from = Math.max(1, r[0]);
+                count = (int) Math.min(r[1] - from + 1, 10 * LOG_LINES);
+            } else {
+                long total = logStore.lineCount(id);
+                from = Math.max(1, total - LOG_LINES + 1);
+                count = LOG_LINES;
+            }
+            List<String> read = logStore.readLines(id, from - 1, Math.max(0, count));
+            text = read == null ? "" : String.join("\n", read);
+            long to = from + (read == null ? 0 : read.size()) - 1;
+            range = "Lines " + from + "-" + to;
+            if (from > 1) {
+                long previous = Math.max(1, from - count);
+                range += " <a href='/buildDetail?id=" + id + "&lines=" + previous + "-" + (from - 1) + "'>previous</a>";
+            }
+            if (read != null && read.size() == count) {
+                range += " <a href='/buildDetail?id=" + id + "&lines=" + (to + 1) + "-" + (to + count) + "'>next</a>";
+            }
+        }
+        out.println("<h2>Build log</h2>");
+        out.println("<p>" + range + "</p>");
+        out.println("<pre>" + escape(text == null ? "" : text) + "</pre>");
+    }
+
+    // "from-to" as two numbers, null if there is no valid range.
+    private static long[] parseRange(String range) {
+        if (range == null) {
+            return null;
+        }
+        String[] parts = range.split("-", 2);
+        try {
+            long from = Long.parseLong(parts[0].trim());
+            long to = parts.length > 1 ? Long.parseLong(parts[1].trim()) : from;
+            return from < 0 || to < from ? null : new long[] { from, to };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
 }
@@ -0,0 +1,130 @@
+package com;
+
+import java.util.UUID;
+
+/*
+ * A single build request parsed from a GitHub push webhook.
+ * The id is also used as the id of the BuildStatus that is recorded for the build.
+ *
+ * A job can be cancelled while it runs, which kills the process it is waiting on
+ * together with all of that process' children, or interrupts the thread that
+ * waits on a Maven invocation.
+ */
+public class BuildJob {
+    private final String id;
+    private final String owner;
+    private final String repoName;
+    private final String branch;
+    private final String commitSHA;
+    private final long enqueuedAt;
+    private boolean cancelled;
+    private String cancelReason;
+    private Process process;
+    private Thread thread;
+    // Id of the earlier build whose result was reused, if the tree was built before.
+    private volatile String cachedFrom;
+    // Where the output of the build's processes goes, null to keep only the tails.
+    private volatile BuildLog log;
+
+    public BuildJob(String owner, String repoName, String branch, String commitSHA) {
+        this.id = UUID.randomUUID().toString();
+        this.owner = owner;
+        this.repoName = repoName;
+        this.branch = branch;
+        this.commitSHA = commitSHA;
+        this.enqueuedAt = System.currentTimeMillis();
+    }
+
+    public String getId() { return id; }
+
+    public String getOwner() { return owner; }
+
+    public String getRepoName() { return repoName; }
+
+    public String getBranch() { return branch; }
+
+    public String getCommitSHA() { return commitSHA; }
+
+    public long getEnqueuedAt() { return enqueuedAt; }
+
+    public String getCachedFrom() { return cachedFrom; }
+
+    public BuildLog getLog() { return log; }
+
+    public void setLog(BuildLog log) { this.log = log; }
+
+    public void setCachedFrom(String cachedFrom) { this.cachedFrom = cachedFrom; }
+
+    /*
+     * Builds of the same repository and ref replace each other.
+     */
+    public String getSupersedeKey() {
+        return owner + "/" + repoName + "/" + branch;
+    }
+
+    public synchronized boolean isCancelled() { return cancelled; }
+
+    public synchronized String getCancelReason() { return cancelReason; }
+
+    /*
+     * Marks the job as cancelled and kills the process it currently runs, if any.
+     */
+    public synchronized void cancel(String reason) {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        cancelReason = reason;
+        if (process != null) {
+            kill(process);
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /*
+     * Called by the process executor when it started a process for this job.
+     * A job that was cancelled in the meantime has the process killed right away.
+     */
+    public synchronized void attachProcess(Process process) {
+        this.process = process;
+        if (cancelled) {
+            kill(process);
+        }
+    }
+
+    public synchronized void detachProcess(Process process) {
+        if (this.process == process) {
+            this.process = null;
+        }
+    }
+
+    /*
+     * Called by executors that do not hand out the process, like the Maven invoker,
+     * which kills its process when the waiting thread is interrupted.
+     */
+    public synchronized void attachThread(Thread thread) {
+        this.thread = thread;
+        if (cancelled) {
+            thread.interrupt();
+        }
+    }
+
+    public synchronized void detachThread(Thread thread) {
+        if (this.thread == thread) {
+            this.thread = null;
+        }
+    }
+
+    // Maven forks its own JVMs, so the children have to go as well.
+    private static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    @Override
+    public String toString() {
+        return owner + "/" + repoName + "@" + commitSHA + " (" + id + ")";
+    }
+}
@@ -4,87 +4,182 @@ import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
 
 public class BuildListServlet extends HttpServlet {
-    
-    // Use thread-safe date format
-    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = 
-        ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+
+    static final int DEFAULT_LIMIT = 50;
+    static final int MAX_LIMIT = 1000;
+
+    private final BuildStatusStore statusStore;
+    // Rows of finished builds, which don't change any more.
+    private final HtmlFragmentCache rows;
+
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // The parts of the page that are always the same, encoded once.
+    private static final byte[] HEADER = utf8(header());
+    private static final byte[] TABLE_END = utf8("  </tbody>\n</table>\n");
+    private static final byte[] FOOTER = utf8("</body>\n</html>\n");
+
+    public BuildListServlet(BuildStatusStore statusStore) {
+        this(statusStore, new HtmlFragmentCache());
+    }
+
+    public BuildListServlet(BuildStatusStore statusStore, HtmlFragmentCache rows) {
+        this.statusStore = statusStore;
+        this.rows = rows;
+    }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) 
             throws IOException {
         
-        List<BuildStatus> statuses = FileBuildStatusStore.getStatuses();
+        // Taken before the page is read, so a change meanwhile makes it look outdated rather than current.
+        long lastModified = statusStore.getLastModified();
+        resp.setHeader("Cache-Control", "no-cache");
+        if (ConditionalGet.notModified(req, resp, ConditionalGet.etag(lastModified), lastModified)) {
+            return;
+        }
+
+        BuildStatusPage page;
+        try {
+            page = findPage(req);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
         
         resp.setContentType("text/html; charset=UTF-8");
         resp.setCharacterEncoding("UTF-8");
         
-        try (PrintWriter out = resp.getWriter()) {
-            writeHtmlHeader(out);
-            writeBuildsTable(out, statuses);
-            writeHtmlFooter(out);
+        try (OutputStream out = resp.getOutputStream()) {
+            out.write(HEADER);
+            for (BuildStatus status : page.getBuilds()) {
+                out.write(row(status));
+            }
+            out.write(TABLE_END);
+            out.write(utf8(pageLinks(req, page)));
+            out.write(FOOTER);
         }
     }
 
-    private void writeHtmlHeader(PrintWriter out) {
-        out.println("<!DOCTYPE html>");
-        out.println("<html lang=\"en\">");
-        out.println("<head>");
-        out.println("  <meta charset=\"UTF-8\">");
-        out.println("  <meta http-equiv='refresh' content='5'>"); // Reduced refresh rate
-        out.println("  <title>CI Server - All Builds</title>");
-        out.println("  <style>");
-        out.println("    table {border-collapse: collapse; width: 100%;}");
-        out.println("    th, td {padding: 8px; text-align: left; border-bottom: 1px solid #ddd;}");
-        out.println("    tr:hover {background-color: #f5f5f5;}");
-        out.println("    .success {color: #4CAF50;}");
-        out.println("    .failure {color: #f44336;}");
-        out.println("  </style>");
-        out.println("</head>");
-        out.println("<body>");
-        out.println("<h1>CI Build History</h1>");
+    /*
+     * A page of the newest builds, only those of a commit with ?sha= and of a
+     * repository with ?repo= (and &branch=). At most &limit= builds, starting at
+     * the page of &cursor=. With &archived=true the newest archived builds
+     * instead, on one page.
+     */
+    private BuildStatusPage findPage(HttpServletRequest req) {
+        int limit = DEFAULT_LIMIT;
+        try {
+            limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(req.getParameter("limit"))));
+        } catch (NumberFormatException e) {
+            // No or an invalid limit, keep the default.
+        }
+        if (isArchive(req)) {
+            return new BuildStatusPage(statusStore.searchArchive(req.getParameter("repo"), req.getParameter("branch"),
+                                                                 req.getParameter("sha"), limit), null, null);
+        }
+        return statusStore.getPage(req.getParameter("repo"), req.getParameter("branch"),
+                                   req.getParameter("sha"), req.getParameter("cursor"), limit);
     }
 
-    private void writeBuildsTable(PrintWriter out, List<BuildStatus> statuses) {
-        out.println("<table>");
-        out.println("  <thead>");
-        out.println("    <tr>");
-        out.println("      <th>ID</th>");
-        out.println("      <th>Repository</th>");
-        out.println("      <th>Commit SHA</th>");
-        out.println("      <th>Branch</th>");
-        out.println("      <th>Status</th>");
-        out.println("      <th>Date</th>");
-        out.println("    </tr>");
-        out.println("  </thead>");
-        out.println("  <tbody>");
-
-        for (BuildStatus status : statuses) {
-            String rowClass = status.isSuccess() ? "success" : "failure";
-            String dateString = DATE_FORMAT.get().format(new Date(status.getTimestamp()));
-            
-            out.println("    <tr class=\"" + rowClass + "\">");
-            out.println("      <td><a href=\"/buildDetail?id=" + status.getId() + "\">" 
-                        + status.getId() + "</a></td>");
-            out.println("      <td>" + status.getRepoName() + "</td>");
-            out.println("      <td><code>" + status.getCommitSHA() + "</code></td>");
-            out.println("      <td>" + status.getBranch() + "</td>");
-            out.println("      <td>" + (status.isSuccess() ? "Success" : "Failure") + "</td>");
-            out.println("      <td>" + dateString + "</td>");
-            out.println("    </tr>");
+    private static String pageLinks(HttpServletRequest req, BuildStatusPage page) {
+        StringBuilder out = new StringBuilder("<p>\n");
+        if (page.getPreviousCursor() != null) {
+            out.append("  <a href=\"").append(pageLink(req, page.getPreviousCursor())).append("\">&laquo; Newer</a>\n");
         }
-        
-        out.println("  </tbody>");
-        out.println("</table>");
+        if (page.getNextCursor() != null) {
+            out.append("  <a href=\"").append(pageLink(req, page.getNextCursor())).append("\">Older &raquo;</a>\n");
+        } else if (!isArchive(req)) {
+            out.append("  <a href=\"").append(pageLink(req, null)).append("\">Archived builds &raquo;</a>\n");
+        }
+        return out.append("</p>\n").toString();
+    }
+
+    private static boolean isArchive(HttpServletRequest req) {
+        return Boolean.parseBoolean(req.getParameter("archived"));
+    }
+
+    // The link to another page with the same filters and limit, or to the archive without a cursor.
+    private static String pageLink(HttpServletRequest req, String cursor) {
+        StringBuilder link = new StringBuilder(cursor != null ? "?cursor=" + cursor : "?archived=true");
+        for (String name : new String[] {"repo", "branch", "sha", "limit"}) {
+            String value = req.getParameter(name);
+            if (value != null) {
+                link.append("&amp;").append(name).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+            }
+        }
+        return link.toString();
+    }
+
+    private static String header() {
+        StringBuilder out = new StringBuilder();
+        out.append("<!DOCTYPE html>\n");
+        out.append("<html lang=\"en\">\n");
+        out.append("<head>\n");
+        out.append("  <meta charset=\"UTF-8\">\n");
+        out.append("  <meta http-equiv='refresh' content='5'>\n"); // Reduced refresh rate
+        out.append("  <title>CI Server - All Builds</title>\n");
+        out.append("  <style>\n");
+        out.append("    table {border-collapse: collapse; width: 100%;}\n");
+        out.append("    th, td {padding: 8px; text-align: left; border-bottom: 1px solid #ddd;}\n");
+        out.append("    tr:hover {background-color: #f5f5f5;}\n");
+        out.append("    .success {color: #4CAF50;}\n");
+        out.append("    .failure {color: #f44336;}\n");
+        out.append("    .pending {color: #ff9800;}\n");
+        out.append("    .error {color: #9e9e9e;}\n");
+        out.append("    .superseded {color: #9e9e9e; text-decoration: line-through;}\n");
+        out.append("  </style>\n");
+        out.append("</head>\n");
+        out.append("<body>\n");
+        out.append("<h1>CI Build History</h1>\n");
+        out.append("<table>\n");
+        out.append("  <thead>\n");
+        out.append("    <tr>\n");
+        out.append("      <th>ID</th>\n");
+        out.append("      <th>Repository</th>\n");
+        out.append("      <th>Commit SHA</th>\n");
+        out.append("      <th>Branch</th>\n");
+        out.append("      <th>Status</th>\n");
+        out.append("      <th>Date</th>\n");
+        out.append("    </tr>\n");
+        out.append("  </thead>\n");
+        out.append("  <tbody>\n");
+        return out.toString();
+    }
+
+    // The row of a build, from the cache once the build is finished.
+    private byte[] row(BuildStatus status) {
+        if (!status.isFinished()) {
+            return utf8(renderRow(status));
+        }
+        return rows.get("row:" + status.getId() + ":" + status.getState(), () -> utf8(renderRow(status)));
+    }
+
+    private static String renderRow(BuildStatus status) {
+        StringBuilder out = new StringBuilder(320);
+        out.append("    <tr class=\"").append(status.getState()).append("\">\n");
+        out.append("      <td><a href=\"/buildDetail?id=").append(status.getId()).append("\">")
+           .append(status.getId()).append("</a></td>\n");
+        out.append("      <td>").append(status.getRepoName()).append("</td>\n");
+        out.append("      <td><code>").append(status.getCommitSHA()).append("</code></td>\n");
+        out.append("      <td>").append(status.getBranch()).append("</td>\n");
+        out.append("      <td>").append(status.getStateLabel()).append(status.isCacheHit() ? " (cached)" : "").append("</td>\n");
+        out.append("      <td>").append(DATE_FORMAT.format(Instant.ofEpochMilli(status.getTimestamp()))).append("</td>\n");
+        out.append("    </tr>\n");
+        return out.toString();
     }
 
-    private void writeHtmlFooter(PrintWriter out) {
-        out.println("</body>");
-        out.println("</html>");
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
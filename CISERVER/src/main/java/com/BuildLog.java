@@ -0,0 +1,90 @@
+package com;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * The output of all processes of one build, written to a file as it arrives.
+ * Only the tail is kept in memory, so a chatty build does not fill the heap.
+ */
+public class BuildLog implements OutputSink, Closeable {
+    private static final long FLUSH_INTERVAL = 200;
+
+    private final File file;
+    private final Writer writer;
+    private final TailBuffer tail;
+    private long length;
+    private long lastFlush = System.currentTimeMillis();
+
+    // Log with the tail size taken from CIConfig.
+    public BuildLog(File file) throws IOException {
+        this(file, CIConfig.getInt("ci.log.tailChars", 64 * 1024));
+    }
+
+    public BuildLog(File file, int tailChars) throws IOException {
+        this.file = file;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        this.tail = new TailBuffer(tailChars);
+    }
+
+    @Override
+    public synchronized void line(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        length += utf8Length(line) + 1;
+        tail.line(line);
+        // Let live viewers see the output of long running processes.
+        long now = System.currentTimeMillis();
+        if (now - lastFlush >= FLUSH_INTERVAL) {
+            writer.flush();
+            lastFlush = now;
+        }
+    }
+
+    // Makes everything written so far visible to readers of the file.
+    public synchronized void flush() throws IOException {
+        writer.flush();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    public File getFile() { return file; }
+
+    // Number of bytes written, which is the size of the file once it is flushed.
+    public synchronized long getLength() { return length; }
+
+    // The last lines of the log.
+    public String getTail() { return tail.toString(); }
+
+    private static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
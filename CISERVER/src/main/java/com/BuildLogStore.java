@@ -0,0 +1,579 @@
+package com;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * The output of builds, kept apart from the build statuses.
+ *
+ * A running build writes <id>.log as plain text. Once it is done the log is
+ * sealed: it is cut into segments of whole lines, each compressed as its own gzip
+ * member into <id>.log.gz (so the file is still an ordinary gzip file), and
+ * <id>.idx records where every segment starts, both uncompressed and compressed,
+ * and its first line number. Reading a range then only decompresses the segments
+ * it touches, found through the index and read with positional reads.
+ *
+ * Offsets are the same before and after sealing, so readers don't notice when a
+ * log is sealed. Logs older than maxAge are deleted, and then the oldest ones
+ * until all of them fit into maxBytes. The build statuses are not touched.
+ */
+public class BuildLogStore {
+    // Uncompressed size of a segment.
+    static final int SEGMENT_SIZE = 256 * 1024;
+    private static final int INDEX_VERSION = 1;
+    private static final long RETENTION_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private final File directory;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+    private long lastRetention;
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "log-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Where a segment starts in the log, in the compressed file and in lines (newlines before it).
+    private static class Segment {
+        final long offset;
+        final long compressedOffset;
+        final int compressedLength;
+        final long firstLine;
+
+        Segment(long offset, long compressedOffset, int compressedLength, long firstLine) {
+            this.offset = offset;
+            this.compressedOffset = compressedOffset;
+            this.compressedLength = compressedLength;
+            this.firstLine = firstLine;
+        }
+    }
+
+    // The segments of a sealed log and its uncompressed length and line count.
+    private static class Index {
+        final List<Segment> segments;
+        final long length;
+        final long lines;
+
+        Index(List<Segment> segments, long length, long lines) {
+            this.segments = segments;
+            this.length = length;
+            this.lines = lines;
+        }
+
+        // The last segment starting at or before the offset.
+        int segmentAt(long offset) {
+            int low = 0;
+            int high = segments.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (segments.get(mid).offset <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        /*
+         * A segment to read the line from. A segment may start within a long line,
+         * so take the last one that starts in an earlier line and skip that one.
+         */
+        int segmentAtLine(long line) {
+            int low = 0;
+            int high = segments.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (segments.get(mid).firstLine < line) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Store with the settings taken from CIConfig.
+    public BuildLogStore() {
+        this(new File(CIConfig.getString("ci.log.dir", "build-logs")),
+             TimeUnit.DAYS.toMillis(CIConfig.getInt("ci.log.retentionDays", 30)),
+             CIConfig.getLong("ci.log.maxBytes", 1024L * 1024 * 1024));
+    }
+
+    public BuildLogStore(File directory, long maxAgeMillis, long maxBytes) {
+        this.directory = directory;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() { return directory; }
+
+    // Starts the log of a build. Sealing it is up to the caller once it is closed.
+    public BuildLog open(String buildId) throws IOException {
+        return new BuildLog(getLiveFile(buildId));
+    }
+
+    // The plain log a running build writes to, whether or not it exists.
+    public File getLiveFile(String buildId) {
+        return new File(directory, buildId + ".log");
+    }
+
+    File getSegmentFile(String buildId) {
+        return new File(directory, buildId + ".log.gz");
+    }
+
+    File getIndexFile(String buildId) {
+        return new File(directory, buildId + ".idx");
+    }
+
+    public boolean exists(String buildId) {
+        return getIndexFile(buildId).exists() || getLiveFile(buildId).exists();
+    }
+
+    public boolean isSealed(String buildId) {
+        return getIndexFile(buildId).exists();
+    }
+
+    /*
+     * Compresses the closed log of a build into segments and deletes the plain
+     * file. Does nothing if there is no plain log.
+     */
+    public void seal(String buildId) throws IOException {
+        File live = getLiveFile(buildId);
+        if (!live.exists()) {
+            return;
+        }
+        File segments = getSegmentFile(buildId);
+        File index = getIndexFile(buildId);
+        File segmentsTmp = new File(directory, buildId + ".log.gz.tmp");
+        File indexTmp = new File(directory, buildId + ".idx.tmp");
+
+        List<Segment> written = new ArrayList<>();
+        long offset = 0;
+        long compressedOffset = 0;
+        long lines = 0;
+        byte last = '\n';
+        try (InputStream in = new FileInputStream(live);
+             FileOutputStream out = new FileOutputStream(segmentsTmp)) {
+            byte[] buffer = new byte[SEGMENT_SIZE];
+            int filled = 0;
+            while (true) {
+                int read = in.readNBytes(buffer, filled, buffer.length - filled);
+                filled += read;
+                if (filled == 0) {
+                    break;
+                }
+                // Cut after the last complete line, unless the line doesn't fit or the log ends here.
+                int cut = filled;
+                if (read > 0 && filled == buffer.length) {
+                    int newline = lastNewline(buffer, filled);
+                    if (newline >= 0) {
+                        cut = newline + 1;
+                    }
+                }
+                byte[] member = compress(buffer, cut);
+                out.write(member);
+                written.add(new Segment(offset, compressedOffset, member.length, lines));
+                offset += cut;
+                compressedOffset += member.length;
+                lines += countNewlines(buffer, cut);
+                last = buffer[cut - 1];
+                System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+                filled -= cut;
+            }
+            out.getFD().sync();
+        }
+        // A last line without a newline still counts.
+        if (last != '\n') {
+            lines++;
+        }
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexTmp))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(offset);
+            out.writeLong(lines);
+            out.writeInt(written.size());
+            for (Segment segment : written) {
+                out.writeLong(segment.offset);
+                out.writeLong(segment.compressedOffset);
+                out.writeInt(segment.compressedLength);
+                out.writeLong(segment.firstLine);
+            }
+        }
+        // The index makes the log sealed, so it goes last and the plain file after it.
+        Files.move(segmentsTmp.toPath(), segments.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(indexTmp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(live.toPath());
+        scheduleRetention();
+    }
+
+    // Length of the log in bytes, or -1 if the build has none.
+    public long length(String buildId) throws IOException {
+        Index index = readIndex(buildId);
+        if (index != null) {
+            return index.length;
+        }
+        File live = getLiveFile(buildId);
+        if (live.exists()) {
+            return live.length();
+        }
+        // It may have been sealed just now.
+        index = readIndex(buildId);
+        return index == null ? -1 : index.length;
+    }
+
+    /*
+     * Number of lines of the log, or -1 if the build has none. Sealed logs know it
+     * from their index, the lines of a running build are counted.
+     */
+    public long lineCount(String buildId) throws IOException {
+        Index index = readIndex(buildId);
+        if (index != null) {
+            return index.lines;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long lines = 0;
+        long offset = 0;
+        byte last = '\n';
+        while (true) {
+            buffer.clear();
+            int read = read(buildId, offset, buffer);
+            if (read < 0) {
+                return -1;
+            }
+            if (read == 0) {
+                break;
+            }
+            lines += countNewlines(buffer.array(), read);
+            last = buffer.get(read - 1);
+            offset += read;
+        }
+        return last == '\n' ? lines : lines + 1;
+    }
+
+    /*
+     * Reads bytes of the log starting at offset into dst. Returns the number of
+     * bytes read, which may be fewer than dst has room for, 0 at the end of the log
+     * and -1 if the build has no log.
+     */
+    public int read(String buildId, long offset, ByteBuffer dst) throws IOException {
+        Index index = readIndex(buildId);
+        if (index == null) {
+            try (FileChannel channel = FileChannel.open(getLiveFile(buildId).toPath(), StandardOpenOption.READ)) {
+                return Math.max(0, channel.read(dst, offset));
+            } catch (NoSuchFileException e) {
+                index = readIndex(buildId);
+                if (index == null) {
+                    return -1;
+                }
+            }
+        }
+        if (offset >= index.length || !dst.hasRemaining()) {
+            return 0;
+        }
+        Segment segment = index.segments.get(index.segmentAt(offset));
+        try (InputStream in = openSegment(buildId, segment)) {
+            in.skipNBytes(offset - segment.offset);
+            int count = 0;
+            while (dst.hasRemaining()) {
+                int read = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (read < 0) {
+                    break;
+                }
+                dst.position(dst.position() + read);
+                count += read;
+            }
+            return count;
+        }
+    }
+
+    /*
+     * Up to length bytes of the log from offset as text, or null if the build has
+     * no log. A character cut by either end of the range is left out.
+     */
+    public String readRange(String buildId, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = read(buildId, offset + buffer.position(), buffer);
+            if (read < 0) {
+                return null;
+            }
+            if (read == 0) {
+                break;
+            }
+        }
+        byte[] bytes = buffer.array();
+        int start = 0;
+        int end = buffer.position();
+        // UTF-8 continuation bytes are 10xxxxxx; a character has at most 3 of them.
+        while (start < end && start < 3 && (bytes[start] & 0xc0) == 0x80) {
+            start++;
+        }
+        int lead = end - 1;
+        while (lead > start && end - lead < 4 && (bytes[lead] & 0xc0) == 0x80) {
+            lead--;
+        }
+        if (lead >= start && end - lead < utf8Length(bytes[lead])) {
+            end = lead;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // Bytes of the UTF-8 character starting with the byte, 1 for anything else.
+    private static int utf8Length(byte first) {
+        if ((first & 0xe0) == 0xc0) {
+            return 2;
+        }
+        if ((first & 0xf0) == 0xe0) {
+            return 3;
+        }
+        return (first & 0xf8) == 0xf0 ? 4 : 1;
+    }
+
+    /*
+     * Up to count lines starting with line number from (counted from 0), or null
+     * if the build has no log. Sealed logs only decompress the segments holding them.
+     */
+    public List<String> readLines(String buildId, long from, int count) throws IOException {
+        Index index = readIndex(buildId);
+        if (index == null) {
+            try (InputStream in = Files.newInputStream(getLiveFile(buildId).toPath())) {
+                return lines(in, 0, from, count);
+            } catch (NoSuchFileException e) {
+                index = readIndex(buildId);
+                if (index == null) {
+                    return null;
+                }
+            }
+        }
+        List<String> result = new ArrayList<>();
+        if (index.segments.isEmpty()) {
+            return result;
+        }
+        int first = index.segmentAtLine(from);
+        // Lines may go on in the next segment, so read on from the first one.
+        try (InputStream in = new GZIPInputStream(new SegmentInput(buildId, index, first))) {
+            return lines(in, index.segments.get(first).firstLine, from, count);
+        }
+    }
+
+    // Reads count lines from the stream, whose first line has number start.
+    private static List<String> lines(InputStream in, long start, long from, int count) throws IOException {
+        List<String> result = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        long number = start;
+        String line;
+        while (result.size() < count && (line = reader.readLine()) != null) {
+            if (number++ >= from) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    private InputStream openSegment(String buildId, Segment segment) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(segment.compressedLength);
+        try (FileChannel channel = FileChannel.open(getSegmentFile(buildId).toPath(), StandardOpenOption.READ)) {
+            while (compressed.hasRemaining()) {
+                if (channel.read(compressed, segment.compressedOffset + compressed.position()) < 0) {
+                    throw new IOException("Log segment of " + buildId + " is truncated");
+                }
+            }
+        }
+        return new GZIPInputStream(new ByteArrayInputStream(compressed.array()));
+    }
+
+    /*
+     * The compressed file from one segment on, read in positional chunks. The gzip
+     * members follow each other, so GZIPInputStream reads them as one stream.
+     */
+    private class SegmentInput extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private long position;
+
+        SegmentInput(String buildId, Index index, int first) throws IOException {
+            this.channel = FileChannel.open(getSegmentFile(buildId).toPath(), StandardOpenOption.READ);
+            this.position = index.segments.get(first).compressedOffset;
+            buffer.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                buffer.flip();
+                if (read <= 0) {
+                    return -1;
+                }
+                position += read;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        // All of the rest of the file: GZIPInputStream only looks for another member if this isn't 0.
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, buffer.remaining() + channel.size() - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private Index readIndex(String buildId) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(getIndexFile(buildId).toPath());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int version = in.readInt();
+            if (version != INDEX_VERSION) {
+                throw new IOException("Unknown log index version " + version + " for " + buildId);
+            }
+            long length = in.readLong();
+            long lines = in.readLong();
+            int count = in.readInt();
+            List<Segment> segments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                segments.add(new Segment(in.readLong(), in.readLong(), in.readInt(), in.readLong()));
+            }
+            return new Index(segments, length, lines);
+        }
+    }
+
+    // Runs the retention policy on the background thread, at most every RETENTION_INTERVAL.
+    private synchronized void scheduleRetention() {
+        long now = System.currentTimeMillis();
+        if (now - lastRetention < RETENTION_INTERVAL) {
+            return;
+        }
+        lastRetention = now;
+        cleaner.submit(() -> {
+            try {
+                applyRetention();
+            } catch (RuntimeException e) {
+                System.out.println("Deleting old build logs failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /*
+     * Deletes the sealed logs older than maxAge and then the oldest ones until the
+     * rest fits into maxBytes. Plain logs are only deleted when nothing was written
+     * to them for maxAge, which means that their build is gone.
+     */
+    public void applyRetention() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        List<File> sealed = new ArrayList<>();
+        long total = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".idx")) {
+                sealed.add(file);
+                total += file.length() + getSegmentFile(buildId(name, ".idx")).length();
+            } else if (name.endsWith(".log")) {
+                if (file.lastModified() < cutoff) {
+                    delete(file);
+                } else {
+                    total += file.length();
+                }
+            }
+        }
+        sealed.sort(Comparator.comparingLong(File::lastModified));
+        for (File index : sealed) {
+            if (index.lastModified() >= cutoff && total <= maxBytes) {
+                break;
+            }
+            File segments = getSegmentFile(buildId(index.getName(), ".idx"));
+            total -= index.length() + segments.length();
+            // Without the index the log is gone for readers, so it goes first.
+            delete(index);
+            delete(segments);
+        }
+    }
+
+    private static String buildId(String fileName, String suffix) {
+        return fileName.substring(0, fileName.length() - suffix.length());
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            System.out.println("Failed to delete build log " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(data, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int lastNewline(byte[] data, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long countNewlines(byte[] data, int length) {
+        long count = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,55 @@
+package com;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters of what the build server did since it started,
+ * shown in the Prometheus text format by MetricsServlet.
+ */
+public class BuildMetrics {
+    private final AtomicLong buildsSucceeded = new AtomicLong();
+    private final AtomicLong buildsFailed = new AtomicLong();
+    private final AtomicLong buildsSuperseded = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong buildMillis = new AtomicLong();
+
+    // A build finished after running for the given time.
+    public void buildFinished(boolean success, long millis) {
+        (success ? buildsSucceeded : buildsFailed).incrementAndGet();
+        buildMillis.addAndGet(millis);
+    }
+
+    public void buildSuperseded() { buildsSuperseded.incrementAndGet(); }
+
+    public void cacheHit() { cacheHits.incrementAndGet(); }
+
+    public void cacheMiss() { cacheMisses.incrementAndGet(); }
+
+    public long getBuildsSucceeded() { return buildsSucceeded.get(); }
+
+    public long getBuildsFailed() { return buildsFailed.get(); }
+
+    public long getBuildsSuperseded() { return buildsSuperseded.get(); }
+
+    public long getCacheHits() { return cacheHits.get(); }
+
+    public long getCacheMisses() { return cacheMisses.get(); }
+
+    public long getBuildMillis() { return buildMillis.get(); }
+
+    // All counters in the Prometheus text exposition format.
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# TYPE ci_builds_total counter\n");
+        out.append("ci_builds_total{result=\"success\"} ").append(getBuildsSucceeded()).append("\n");
+        out.append("ci_builds_total{result=\"failure\"} ").append(getBuildsFailed()).append("\n");
+        out.append("ci_builds_total{result=\"superseded\"} ").append(getBuildsSuperseded()).append("\n");
+        out.append("# TYPE ci_build_seconds_total counter\n");
+        out.append("ci_build_seconds_total ").append(getBuildMillis() / 1000.0).append("\n");
+        out.append("# TYPE ci_result_cache_total counter\n");
+        out.append("ci_result_cache_total{result=\"hit\"} ").append(getCacheHits()).append("\n");
+        out.append("ci_result_cache_total{result=\"miss\"} ").append(getCacheMisses()).append("\n");
+        return out.toString();
+    }
+}
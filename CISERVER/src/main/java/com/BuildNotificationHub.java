@@ -0,0 +1,129 @@
+package com;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Pushes build notifications to the open dashboards as Server-Sent Events.
+ *
+ * Every build that is added or changes state becomes one event. It is made
+ * once, on the thread that wrote the status, and handed to the
+ * "notification-sender" thread, which queues the same bytes to every
+ * subscriber; so the build never waits for the connections. Subscribers write
+ * with non-blocking output and hold no thread while they wait, so thousands of
+ * them cost memory only. One that falls too far behind is dropped and its
+ * EventSource reconnects.
+ *
+ * To tell state changes from other updates the hub remembers the state of the
+ * builds that are pending, and forgets a build once it is finished. Every
+ * heartbeat a comment is sent, so idle connections aren't closed in between.
+ */
+public class BuildNotificationHub implements BuildStatusStore.Listener {
+    // Events a subscriber may have waiting before it is dropped.
+    private static final int MAX_BACKLOG = 32;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    // The state of the builds that are pending, only used on the sender thread.
+    private final Map<String, String> pending = new HashMap<>();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "notification-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+     * An open event stream. Events are passed to it on the sender thread and
+     * must not block.
+     */
+    public interface Subscriber {
+        // Number of events not yet written to the subscriber.
+        int getBacklog();
+
+        void send(byte[] event);
+
+        // Drops a subscriber that can't keep up.
+        void close();
+    }
+
+    public BuildNotificationHub(long heartbeatMillis) {
+        sender.scheduleWithFixedDelay(() -> sendToAll(HEARTBEAT), heartbeatMillis, heartbeatMillis,
+                                      TimeUnit.MILLISECONDS);
+    }
+
+    // Starts sending events to the subscriber, first the latest build if it isn't null.
+    public void subscribe(Subscriber subscriber, BuildStatus latest) {
+        byte[] first = latest == null ? null : event(latest);
+        sender.execute(() -> {
+            subscribers.add(subscriber);
+            if (first != null) {
+                subscriber.send(first);
+            }
+        });
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void statusChanged(BuildStatus status) {
+        // Taken now, the status object may still change.
+        String id = status.getId();
+        String state = status.getState();
+        boolean finished = status.isFinished();
+        byte[] event = event(status);
+        sender.execute(() -> {
+            String before = finished ? pending.remove(id) : pending.put(id, state);
+            if (!state.equals(before)) {
+                sendToAll(event);
+            }
+        });
+    }
+
+    public void shutdown() {
+        sender.shutdownNow();
+    }
+
+    private void sendToAll(byte[] event) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.getBacklog() >= MAX_BACKLOG) {
+                subscriber.close();
+                unsubscribe(subscriber);
+            } else {
+                subscriber.send(event);
+            }
+        }
+    }
+
+    // The build as an event whose data is a JSON object with what the dashboard shows.
+    static byte[] event(BuildStatus status) {
+        ObjectNode build = mapper.createObjectNode();
+        build.put("id", status.getId());
+        build.put("repoName", status.getRepoName());
+        build.put("commitSHA", status.getCommitSHA());
+        build.put("branch", status.getBranch());
+        build.put("state", status.getState());
+        build.put("stateLabel", status.getStateLabel());
+        build.put("details", status.getDetails());
+        try {
+            return ("data: " + mapper.writeValueAsString(build) + "\n\n").getBytes(StandardCharsets.UTF_8);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Build status can't be written as JSON", e);
+        }
+    }
+}
@@ -1,54 +1,97 @@
 package com;
 
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+/*
+ * The latest build notification (/notification). Browsers get a page that shows
+ * the latest build and then follows new ones as Server-Sent Events, which are
+ * pushed by a BuildNotificationHub when a build is added or changes state.
+ *
+ * The servlet must be registered with async support.
+ */
 public class BuildNotificationServlet extends HttpServlet {
+    // Often enough for proxies and the default idle timeout of Jetty's connectors.
+    private static final long HEARTBEAT_MILLIS = 15000;
+
+    private final BuildStatusStore statusStore;
+    private final BuildNotificationHub hub;
+
+    public BuildNotificationServlet(BuildStatusStore statusStore) {
+        this(statusStore, new BuildNotificationHub(HEARTBEAT_MILLIS));
+    }
+
+    public BuildNotificationServlet(BuildStatusStore statusStore, BuildNotificationHub hub) {
+        this.statusStore = statusStore;
+        this.hub = hub;
+        statusStore.addListener(hub);
+    }
+
+    public BuildNotificationHub getHub() {
+        return hub;
+    }
+
+    @Override
+    public void destroy() {
+        statusStore.removeListener(hub);
+        hub.shutdown();
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) {
         try {
-            // Get the list of build statuses
-            List<BuildStatus> statuses = FileBuildStatusStore.getStatuses();
-            // Optional: Ensure statuses is not null even if corrupted
-            if (statuses == null) {
-                statuses = new ArrayList<>();
-            }
-            int initialCount = FileBuildStatusStore.initialCount;
-            BuildStatus latest = (statuses.size() > initialCount)
-                    ? statuses.get(statuses.size() - 1)
+            // Only builds added since the server started are notifications.
+            BuildStatus latest = statusStore.size() > statusStore.getInitialCount()
+                    ? statusStore.getLastAdded()
                     : null;
+
+            String accept = req.getHeader("Accept");
+            if (accept != null && accept.contains("text/event-stream")) {
+                subscribe(req, resp, latest);
+                return;
+            }
             
             resp.setContentType("text/html");
             
             // Try-with-resources to ensure writer is closed properly.
             try (PrintWriter out = resp.getWriter()) {
                 out.println("<html><head><title>Build Notification</title>");
-                out.println("<meta http-equiv='refresh' content='2'>");
                 out.println("<style>");
                 out.println("body { font-family: Arial, sans-serif; margin: 40px; }");
                 out.println(".notification { border: 1px solid #ccc; padding: 10px; margin: 10px 0; }");
                 out.println(".success { background-color: #dff0d8; color: #3c763d; }");
                 out.println(".failure { background-color: #f2dede; color: #a94442; }");
+                out.println(".pending { background-color: #fcf8e3; color: #8a6d3b; }");
+                out.println(".error { background-color: #eeeeee; color: #555555; }");
+                out.println(".superseded { background-color: #eeeeee; color: #777777; }");
                 out.println("</style>");
                 out.println("</head><body>");
                 out.println("<h1>Latest Build Notification</h1>");
+                out.println("<div id='latest'>");
                 if (latest != null) {
-                    String statusClass = latest.isSuccess() ? "success" : "failure";
+                    String statusClass = latest.getState();
                     out.println("<div class='notification " + statusClass + "'>");
                     out.println("<p><strong>Repository:</strong> " + latest.getRepoName() + "</p>");
                     out.println("<p><strong>Commit SHA:</strong> " + latest.getCommitSHA() + "</p>");
                     out.println("<p><strong>Branch:</strong> " + latest.getBranch() + "</p>");
-                    out.println("<p><strong>Status:</strong> " + (latest.isSuccess() ? "Success" : "Failure") + "</p>");
+                    out.println("<p><strong>Status:</strong> " + latest.getStateLabel() + "</p>");
                     out.println("<p><strong>Details:</strong> " + latest.getDetails() + "</p>");
                     out.println("</div>");
                 } else {
                     out.println("<p>No build notifications yet for this session.</p>");
                 }
+                out.println("</div>");
+                writeScript(out);
                 out.println("</body></html>");
             }
         } catch (IOException e) {
@@ -67,4 +110,133 @@ public class BuildNotificationServlet extends HttpServlet {
             }
         }
     }
+
+    // Replaces the notification with every build that the event stream brings.
+    private static void writeScript(PrintWriter out) {
+        out.println("<script>");
+        out.println("  var source = new EventSource('/notification');");
+        out.println("  source.onmessage = function(e) {");
+        out.println("    var build = JSON.parse(e.data);");
+        out.println("    var div = document.createElement('div');");
+        out.println("    div.className = 'notification ' + build.state;");
+        out.println("    [['Repository', build.repoName], ['Commit SHA', build.commitSHA], ['Branch', build.branch],");
+        out.println("     ['Status', build.stateLabel], ['Details', build.details]].forEach(function(field) {");
+        out.println("      var p = document.createElement('p');");
+        out.println("      var name = document.createElement('strong');");
+        out.println("      name.textContent = field[0] + ':';");
+        out.println("      p.appendChild(name);");
+        out.println("      p.appendChild(document.createTextNode(' ' + field[1]));");
+        out.println("      div.appendChild(p);");
+        out.println("    });");
+        out.println("    document.getElementById('latest').replaceChildren(div);");
+        out.println("  };");
+        out.println("</script>");
+    }
+
+    // Keeps the request open as an event stream, starting with the latest build.
+    private void subscribe(HttpServletRequest req, HttpServletResponse resp, BuildStatus latest) throws IOException {
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        AsyncContext context = req.startAsync();
+        // Dashboards stay open, the heartbeat keeps the connection busy.
+        context.setTimeout(0);
+        SseSubscriber subscriber = new SseSubscriber(context, resp.getOutputStream());
+        context.addListener(subscriber);
+        resp.getOutputStream().setWriteListener(subscriber);
+        hub.subscribe(subscriber, latest);
+    }
+
+    /*
+     * One open event stream. Events are queued by the hub and written with
+     * non-blocking output whenever the connection can take more.
+     */
+    private class SseSubscriber implements BuildNotificationHub.Subscriber, WriteListener, AsyncListener {
+        private final AsyncContext context;
+        private final ServletOutputStream out;
+        private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        private boolean dirty;
+        private boolean closed;
+
+        SseSubscriber(AsyncContext context, ServletOutputStream out) {
+            this.context = context;
+            this.out = out;
+        }
+
+        @Override
+        public int getBacklog() { return pending.size(); }
+
+        @Override
+        public void send(byte[] event) {
+            pending.add(event);
+            drain();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.clear();
+            hub.unsubscribe(this);
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // Already completed by the container.
+            }
+        }
+
+        // Writes queued events while the connection is ready and flushes once it is empty.
+        private synchronized void drain() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (out.isReady()) {
+                    byte[] next = pending.poll();
+                    if (next != null) {
+                        out.write(next);
+                        dirty = true;
+                    } else if (dirty) {
+                        dirty = false;
+                        out.flush();
+                    } else {
+                        return;
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
 }
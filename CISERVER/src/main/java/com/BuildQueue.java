@@ -0,0 +1,265 @@
+package com;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/*
+ * Bounded in-process queue of build jobs with its own pool of worker threads.
+ * The webhook only puts jobs on the queue, the workers take them off and hand
+ * them to the build handler, so no Jetty thread waits for a build.
+ *
+ * At most maxConcurrent builds run at the same time, and at most maxPerRepo of
+ * them for the same repository. A job whose repository is at its limit stays
+ * queued while jobs of other repositories are started before it.
+ *
+ * With supersede enabled a new job drops the queued jobs of the same repository
+ * and ref, and with cancelRunning also cancels the running ones. Dropped jobs are
+ * passed to the superseded handler together with the job that replaced them.
+ */
+public class BuildQueue {
+    // Rough memory needed by one forked Maven build, used for the default limit.
+    private static final long MEMORY_PER_BUILD = 1024L * 1024 * 1024;
+
+    private final int capacity;
+    private final int maxConcurrent;
+    private final int maxPerRepo;
+    private final boolean supersede;
+    private final boolean cancelRunning;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final LinkedList<BuildJob> waiting = new LinkedList<>();
+    private final Map<String, Integer> active = new HashMap<>();
+    private final List<BuildJob> running = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private Consumer<BuildJob> handler;
+    private BiConsumer<BuildJob, BuildJob> supersededHandler = (old, newer) -> { };
+
+    // Queue with the limits taken from CIConfig.
+    public BuildQueue() {
+        this(CIConfig.getInt("ci.build.queueCapacity", 100),
+             CIConfig.getInt("ci.build.maxConcurrent", defaultMaxConcurrent()),
+             CIConfig.getInt("ci.build.maxPerRepo", 1),
+             CIConfig.getBoolean("ci.build.supersede", true),
+             CIConfig.getBoolean("ci.build.cancelRunning", false));
+    }
+
+    // Queue that builds every job it gets.
+    public BuildQueue(int capacity, int maxConcurrent, int maxPerRepo) {
+        this(capacity, maxConcurrent, maxPerRepo, false, false);
+    }
+
+    public BuildQueue(int capacity, int maxConcurrent, int maxPerRepo, boolean supersede, boolean cancelRunning) {
+        if (capacity < 1 || maxConcurrent < 1 || maxPerRepo < 1) {
+            throw new IllegalArgumentException("Queue capacity and concurrency limits must be at least 1");
+        }
+        this.capacity = capacity;
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerRepo = maxPerRepo;
+        this.supersede = supersede;
+        this.cancelRunning = cancelRunning;
+    }
+
+    /*
+     * One build per core, but not more than the physical memory can hold.
+     */
+    static int defaultMaxConcurrent() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long memory = ((com.sun.management.OperatingSystemMXBean) os).getTotalMemorySize();
+            cores = (int) Math.min(cores, memory / MEMORY_PER_BUILD);
+        }
+        return Math.max(1, cores);
+    }
+
+    /*
+     * Starts the worker threads which pass each job to the handler.
+     * Calling start on a running queue does nothing.
+     */
+    public synchronized void start(Consumer<BuildJob> handler) {
+        start(handler, (old, newer) -> { });
+    }
+
+    /*
+     * Like start(handler), superseded jobs are passed to supersededHandler
+     * on the thread that submitted the newer job.
+     */
+    public synchronized void start(Consumer<BuildJob> handler, BiConsumer<BuildJob, BuildJob> supersededHandler) {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        this.handler = handler;
+        this.supersededHandler = supersededHandler;
+        for (int i = 0; i < maxConcurrent; i++) {
+            Thread worker = new Thread(this::workLoop, "build-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /*
+     * Stops the workers. Jobs still waiting in the queue are dropped.
+     */
+    public synchronized void shutdown() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+    }
+
+    /*
+     * Puts a job on the queue without blocking.
+     * Returns false if the queue is full and the job was rejected.
+     */
+    public boolean submit(BuildJob job) {
+        List<BuildJob> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            if (supersede) {
+                for (BuildJob queued : waiting) {
+                    if (queued.getSupersedeKey().equals(job.getSupersedeKey())) {
+                        dropped.add(queued);
+                    }
+                }
+            }
+            if (waiting.size() - dropped.size() >= capacity) {
+                return false;
+            }
+            waiting.removeAll(dropped);
+            if (supersede && cancelRunning) {
+                for (BuildJob runningJob : running) {
+                    if (runningJob.getSupersedeKey().equals(job.getSupersedeKey())) {
+                        // The worker records the result once the killed build returns.
+                        runningJob.cancel("Superseded by commit " + job.getCommitSHA());
+                    }
+                }
+            }
+            waiting.add(job);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (BuildJob old : dropped) {
+            System.out.println("Build " + old + " superseded by " + job);
+            supersededHandler.accept(old, job);
+        }
+        return true;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConcurrent() { return maxConcurrent; }
+
+    public int getMaxPerRepo() { return maxPerRepo; }
+
+    /*
+     * Number of running builds per repository ("owner/repo").
+     */
+    public Map<String, Integer> getActiveCounts() {
+        lock.lock();
+        try {
+            return new TreeMap<>(active);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Number of queued builds per repository ("owner/repo").
+     */
+    public Map<String, Integer> getWaitingCounts() {
+        lock.lock();
+        try {
+            Map<String, Integer> counts = new TreeMap<>();
+            for (BuildJob job : waiting) {
+                counts.merge(repoKey(job), 1, Integer::sum);
+            }
+            return counts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static String repoKey(BuildJob job) {
+        return job.getOwner() + "/" + job.getRepoName();
+    }
+
+    /*
+     * Blocks until there is a waiting job whose repository is below its limit,
+     * then takes it off the queue and counts it as active.
+     */
+    private BuildJob takeNext() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                Iterator<BuildJob> it = waiting.iterator();
+                while (it.hasNext()) {
+                    BuildJob job = it.next();
+                    String key = repoKey(job);
+                    if (active.getOrDefault(key, 0) < maxPerRepo) {
+                        it.remove();
+                        active.merge(key, 1, Integer::sum);
+                        running.add(job);
+                        return job;
+                    }
+                }
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finished(BuildJob job) {
+        lock.lock();
+        try {
+            running.remove(job);
+            String key = repoKey(job);
+            if (active.merge(key, -1, Integer::sum) <= 0) {
+                active.remove(key);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void workLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            BuildJob job;
+            try {
+                job = takeNext();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                handler.accept(job);
+            } catch (RuntimeException e) {
+                System.err.println("Build " + job + " failed unexpectedly: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                finished(job);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeSet;
+
+/*
+ * Shows the running and waiting builds of each repository.
+ */
+public class BuildQueueServlet extends HttpServlet {
+    private final BuildQueue buildQueue;
+
+    public BuildQueueServlet(BuildQueue buildQueue) {
+        this.buildQueue = buildQueue;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Map<String, Integer> active = buildQueue.getActiveCounts();
+        Map<String, Integer> waiting = buildQueue.getWaitingCounts();
+        TreeSet<String> repos = new TreeSet<>(active.keySet());
+        repos.addAll(waiting.keySet());
+
+        resp.setContentType("text/html; charset=UTF-8");
+        resp.setCharacterEncoding("UTF-8");
+
+        try (PrintWriter out = resp.getWriter()) {
+            out.println("<!DOCTYPE html>");
+            out.println("<html lang=\"en\">");
+            out.println("<head>");
+            out.println("  <meta charset=\"UTF-8\">");
+            out.println("  <meta http-equiv='refresh' content='5'>");
+            out.println("  <title>CI Server - Build Queue</title>");
+            out.println("  <style>");
+            out.println("    table {border-collapse: collapse; width: 100%;}");
+            out.println("    th, td {padding: 8px; text-align: left; border-bottom: 1px solid #ddd;}");
+            out.println("  </style>");
+            out.println("</head>");
+            out.println("<body>");
+            out.println("<h1>Build Queue</h1>");
+            out.println("<p>At most " + buildQueue.getMaxConcurrent() + " builds run at the same time, "
+                        + buildQueue.getMaxPerRepo() + " per repository.</p>");
+            out.println("<table>");
+            out.println("  <thead>");
+            out.println("    <tr><th>Repository</th><th>Running</th><th>Waiting</th></tr>");
+            out.println("  </thead>");
+            out.println("  <tbody>");
+            for (String repo : repos) {
+                out.println("    <tr>");
+                out.println("      <td>" + repo + "</td>");
+                out.println("      <td>" + active.getOrDefault(repo, 0) + "</td>");
+                out.println("      <td>" + waiting.getOrDefault(repo, 0) + "</td>");
+                out.println("    </tr>");
+            }
+            out.println("  </tbody>");
+            out.println("</table>");
+            out.println("<p><a href='/builds'>Back to build list</a></p>");
+            out.println("</body>");
+            out.println("</html>");
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Remembers which source trees were already built successfully, so that pushing
+ * the same content again (a rebase without changes, a revert of a revert, a merge
+ * that results in a built tree) does not compile and test it again.
+ *
+ * The key is the git tree hash of the checked out commit together with the build
+ * configuration. Only successful builds are recorded. The entries are kept in a
+ * JSON file, which is written to a temporary file and then moved over the old
+ * one, so a crash leaves either of them whole. At most maxEntries are kept,
+ * none older than maxAge; the oldest are dropped first.
+ */
+public class BuildResultCache {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final ProcessExecutor processExecutor;
+    private final File file;
+    private final int maxEntries;
+    private final long maxAgeMillis;
+    // Oldest first. Guarded by this, held only while the entries change or are copied.
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    // Held while the file is written, so that writes don't overlap and the last one has the newest entries.
+    private final Object fileLock = new Object();
+
+    // The successful build recorded for a key.
+    public static class Entry {
+        private String buildId;
+        private String commitSHA;
+        private long timestamp;
+
+        // Default constructor (needed for Jackson)
+        public Entry() {}
+
+        public Entry(String buildId, String commitSHA) {
+            this.buildId = buildId;
+            this.commitSHA = commitSHA;
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        public String getBuildId() { return buildId; }
+        public void setBuildId(String buildId) { this.buildId = buildId; }
+
+        public String getCommitSHA() { return commitSHA; }
+        public void setCommitSHA(String commitSHA) { this.commitSHA = commitSHA; }
+
+        public long getTimestamp() { return timestamp; }
+        public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+    }
+
+    // Cache stored in the file given by ci.resultCache.file.
+    public BuildResultCache(ProcessExecutor processExecutor) {
+        this(processExecutor, new File(CIConfig.getString("ci.resultCache.file", "build_result_cache.json")));
+    }
+
+    // Cache in the file, bounded by ci.resultCache.maxEntries and ci.resultCache.maxAgeDays.
+    public BuildResultCache(ProcessExecutor processExecutor, File file) {
+        this(processExecutor, file, CIConfig.getInt("ci.resultCache.maxEntries", 10000),
+             TimeUnit.DAYS.toMillis(CIConfig.getLong("ci.resultCache.maxAgeDays", 90)));
+    }
+
+    public BuildResultCache(ProcessExecutor processExecutor, File file, int maxEntries, long maxAgeMillis) {
+        this.processExecutor = processExecutor;
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = maxAgeMillis;
+        if (file.exists() && file.length() > 0) {
+            try {
+                entries = mapper.readValue(file, new TypeReference<LinkedHashMap<String, Entry>>() {});
+            } catch (IOException e) {
+                System.out.println("Failed to read build result cache " + file + ": " + e.getMessage());
+            }
+        }
+        // Files written before the entries were kept in order may have old ones anywhere.
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        entries.values().removeIf(entry -> entry.getTimestamp() < oldest);
+        trim();
+    }
+
+    /*
+     * Returns the key of the workspace's HEAD tree built with the given configuration,
+     * or null if the tree hash can't be read.
+     */
+    public String key(File workspace, String configuration, BuildJob job) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder("git", "rev-parse", "HEAD^{tree}");
+        pb.directory(workspace);
+        ProcessResult result = job == null ? processExecutor.execute(pb) : processExecutor.execute(pb, job);
+        if (result.getExitCode() != 0) {
+            System.out.println("Could not read tree hash, not using the build result cache: " + result.getOutput());
+            return null;
+        }
+        String tree = result.getOutput().trim();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((tree + "\n" + configuration).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The successful build recorded for the key, or null.
+    public synchronized Entry get(String key) {
+        return key == null ? null : entries.get(key);
+    }
+
+    // Records a successful build and writes the file.
+    public void put(String key, String buildId, String commitSHA) {
+        if (key == null) {
+            return;
+        }
+        synchronized (this) {
+            // Moved to the end, it is the newest now.
+            entries.remove(key);
+            entries.put(key, new Entry(buildId, commitSHA));
+            trim();
+        }
+        synchronized (fileLock) {
+            Map<String, Entry> copy;
+            synchronized (this) {
+                copy = new LinkedHashMap<>(entries);
+            }
+            try {
+                write(copy);
+            } catch (IOException e) {
+                System.out.println("Failed to write build result cache " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Drops the entries beyond maxEntries and those older than maxAge, oldest first.
+    private synchronized void trim() {
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entries.size() <= maxEntries && entry.getTimestamp() >= oldest) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private void write(Map<String, Entry> copy) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(copy));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -2,46 +2,72 @@ package com;
 
 import java.util.UUID;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/*
+ * The id and commit are kept in the small forms of StatusKeys and the
+ * repository and branch names are shared, since the server keeps many
+ * statuses. The getters and setters, and so the JSON, still use strings.
+ */
+@JsonPropertyOrder({"id", "repoName", "commitSHA", "branch", "success", "details", "timestamp", "state", "cachedFrom"})
 public class BuildStatus {
-    private String id;       // Unique ID for the build
+    // Possible build states, named after the GitHub commit status states.
+    public static final String STATE_PENDING = "pending";
+    public static final String STATE_SUCCESS = "success";
+    public static final String STATE_FAILURE = "failure";
+    public static final String STATE_ERROR = "error";
+    // A newer commit was pushed to the same branch before this build finished.
+    public static final String STATE_SUPERSEDED = "superseded";
+
+    private Object id;       // Unique ID for the build, a UUID unless set to something else
     private String repoName;
-    private String commitSHA;
+    private Object commitSHA;
     private String branch;
     private boolean success;
     private String details;  // A short description or error summary
     private long timestamp;  // Build time in milliseconds since epoch
     private String logs;     // Optional: build logs
+    private String state;    // One of the STATE_ constants
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String cachedFrom; // Id of the build whose result was reused for the same tree
 
     // Default constructor (needed for Jackson)
     public BuildStatus() {}
 
     // Constructor that automatically assigns a unique ID and timestamp.
     public BuildStatus(String repoName, String commitSHA, String branch, boolean success, String details) {
-        this.id = UUID.randomUUID().toString();
-        this.repoName = repoName;
-        this.commitSHA = commitSHA;
-        this.branch = branch;
+        this.id = UUID.randomUUID();
+        this.repoName = StatusKeys.name(repoName);
+        this.commitSHA = StatusKeys.commit(commitSHA);
+        this.branch = StatusKeys.name(branch);
         this.success = success;
         this.details = details;
         this.timestamp = System.currentTimeMillis();
+        this.state = success ? STATE_SUCCESS : STATE_FAILURE;
         // logs == deails
     }
 
     // Getters and setters
     public String getId() {
-         return id; 
+         return StatusKeys.text(id); 
     }
 
-    public void setId(String id) { this.id = id; }
+    public void setId(String id) { this.id = StatusKeys.id(id); }
 
     public String getRepoName() { return repoName; }
-    public void setRepoName(String repoName) { this.repoName = repoName; }
+    public void setRepoName(String repoName) { this.repoName = StatusKeys.name(repoName); }
 
-    public String getCommitSHA() { return commitSHA; }
-    public void setCommitSHA(String commitSHA) { this.commitSHA = commitSHA; }
+    public String getCommitSHA() { return StatusKeys.text(commitSHA); }
+    public void setCommitSHA(String commitSHA) { this.commitSHA = StatusKeys.commit(commitSHA); }
 
     public String getBranch() { return branch; }
-    public void setBranch(String branch) { this.branch = branch; }
+    public void setBranch(String branch) { this.branch = StatusKeys.name(branch); }
+
+    // The id and commit as they are kept, for map keys without making strings.
+    Object idKey() { return id; }
+    Object commitKey() { return commitSHA; }
 
     public boolean isSuccess() { return success; }
     public void setSuccess(boolean success) { this.success = success; }
@@ -52,6 +78,33 @@ public class BuildStatus {
     public long getTimestamp() { return timestamp; }
     public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
 
+    // Records written before states existed only have the success flag.
+    public String getState() {
+        if (state == null) {
+            return success ? STATE_SUCCESS : STATE_FAILURE;
+        }
+        return state;
+    }
+    public void setState(String state) { this.state = state; }
+
+    public String getCachedFrom() { return cachedFrom; }
+    public void setCachedFrom(String cachedFrom) { this.cachedFrom = cachedFrom; }
+
+    // True if the result was taken from an earlier build of the same tree.
+    @JsonIgnore
+    public boolean isCacheHit() { return cachedFrom != null; }
+
+    // Pending builds are still waiting in the queue or running.
+    @JsonIgnore
+    public boolean isFinished() { return !STATE_PENDING.equals(getState()); }
+
+    // Human readable state, e.g. "Success" or "Pending".
+    @JsonIgnore
+    public String getStateLabel() {
+        String s = getState();
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
    // public String getLogs() { return logs; }
    // public void setLogs(String logs) { this.logs = logs; }
 }
\ No newline at end of file
@@ -0,0 +1,336 @@
+package com;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * The build statuses a store no longer keeps because of its RetentionPolicy.
+ *
+ * They are in gzip compressed segments of up to SEGMENT_SIZE statuses, one JSON
+ * per line, named segment-<n>.json.gz. Next to every segment, segment-<n>.idx
+ * has its time range, its repositories and the sorted 64-bit hashes of its ids.
+ * The indexes are kept in memory, 8 bytes per status, so a lookup by id only
+ * decompresses the segments that may have the status, and a search only those
+ * that may have matches newer than what it found so far.
+ *
+ * A segment counts once its index is written; segments without one are left
+ * over from a crash and removed when the archive is opened. Readers take the
+ * list of segments from a volatile field and never wait for a write. A status
+ * may be archived twice, e.g. if the store crashed before it dropped the
+ * statuses it had archived; reads return it once.
+ */
+public final class BuildStatusArchive {
+    static final int SEGMENT_SIZE = 10000;
+    private static final int INDEX_MAGIC = 0x43494152;
+    private static final int INDEX_VERSION = 1;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final File directory;
+    private volatile List<Segment> segments;
+    private int nextNumber;
+
+    // What the index of a segment says about it.
+    private static final class Segment {
+        final int number;
+        final int count;
+        final long oldest;
+        final long newest;
+        final Set<String> repos;
+        final long[] ids;
+
+        Segment(int number, int count, long oldest, long newest, Set<String> repos, long[] ids) {
+            this.number = number;
+            this.count = count;
+            this.oldest = oldest;
+            this.newest = newest;
+            this.repos = repos;
+            this.ids = ids;
+        }
+
+        boolean mayContain(long id) {
+            return Arrays.binarySearch(ids, id) >= 0;
+        }
+    }
+
+    public BuildStatusArchive(File directory) {
+        this.directory = directory;
+        List<Segment> loaded = new ArrayList<>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            int number = number(name);
+            if (number < 0) {
+                continue;
+            }
+            nextNumber = Math.max(nextNumber, number + 1);
+            if (name.endsWith(".idx")) {
+                try {
+                    loaded.add(readIndex(number, file));
+                } catch (IOException e) {
+                    System.err.println("Ignoring unreadable archive index " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        for (File file : files == null ? new File[0] : files) {
+            int number = number(file.getName());
+            if (number >= 0 && file.getName().endsWith(".json.gz") && !indexFile(number).exists()) {
+                System.err.println("Removing incomplete archive segment " + file + ".");
+                file.delete();
+            }
+        }
+        loaded.sort(Comparator.comparingInt(segment -> segment.number));
+        segments = List.copyOf(loaded);
+    }
+
+    // The number of a segment file or index, or -1 for another file.
+    private static int number(String name) {
+        if (!name.startsWith("segment-") || !(name.endsWith(".json.gz") || name.endsWith(".idx"))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring("segment-".length(), name.indexOf('.')));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /*
+     * Adds the statuses to the archive. They first fill up the last segment,
+     * which is then written again, and go into new segments after that.
+     */
+    public synchronized void append(List<BuildStatus> statuses) throws IOException {
+        directory.mkdirs();
+        int next = 0;
+        List<Segment> current = segments;
+        Segment last = current.isEmpty() ? null : current.get(current.size() - 1);
+        if (last != null && last.count < SEGMENT_SIZE && !statuses.isEmpty()) {
+            next = Math.min(statuses.size(), SEGMENT_SIZE - last.count);
+            List<BuildStatus> merged = read(last);
+            merged.addAll(statuses.subList(0, next));
+            publish(write(last.number, merged));
+        }
+        while (next < statuses.size()) {
+            int end = Math.min(statuses.size(), next + SEGMENT_SIZE);
+            publish(write(nextNumber++, statuses.subList(next, end)));
+            next = end;
+        }
+    }
+
+    // True if a status with the id may be archived; false positives are very unlikely.
+    public boolean contains(String id) {
+        if (id == null) {
+            return false;
+        }
+        long hash = hash(id);
+        for (Segment segment : segments) {
+            if (segment.mayContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The archived status with the id, or null.
+    public BuildStatus get(String id) {
+        if (id == null) {
+            return null;
+        }
+        long hash = hash(id);
+        List<Segment> current = segments;
+        for (int i = current.size() - 1; i >= 0; i--) {
+            if (current.get(i).mayContain(hash)) {
+                for (BuildStatus status : read(current.get(i))) {
+                    if (id.equals(status.getId())) {
+                        return status;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Archived builds, newest first, at most limit of them. The filters may be
+     * null and work as for BuildStatusStore.getPage. Segments are read newest
+     * first until the rest can only have older builds than the limit found.
+     */
+    public List<BuildStatus> search(String repoName, String branch, String commitSHA, int limit) {
+        List<Segment> candidates = new ArrayList<>(segments);
+        candidates.sort(Comparator.comparingLong((Segment segment) -> segment.newest).reversed());
+        Comparator<BuildStatus> newestFirst = Comparator.comparingLong(BuildStatus::getTimestamp).reversed();
+        List<BuildStatus> found = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Segment segment : candidates) {
+            if (limit <= 0 || found.size() >= limit && segment.newest < found.get(limit - 1).getTimestamp()) {
+                break;
+            }
+            if (repoName != null && !segment.repos.contains(repoName)) {
+                continue;
+            }
+            for (BuildStatus status : read(segment)) {
+                if ((commitSHA == null || commitSHA.equals(status.getCommitSHA()))
+                        && (repoName == null || repoName.equals(status.getRepoName()))
+                        && (repoName == null || branch == null || branch.equals(status.getBranch()))
+                        && seen.add(status.getId())) {
+                    found.add(status);
+                }
+            }
+            found.sort(newestFirst);
+            if (found.size() > limit) {
+                found.subList(limit, found.size()).clear();
+            }
+        }
+        return found;
+    }
+
+    // How many statuses were archived, counting those archived twice twice.
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    private List<BuildStatus> read(Segment segment) {
+        File file = dataFile(segment.number);
+        List<BuildStatus> statuses = new ArrayList<>(segment.count);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    statuses.add(mapper.readValue(line, BuildStatus.class));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the archived build statuses in " + file, e);
+        }
+        return statuses;
+    }
+
+    // Writes the segment and then its index, each to a temporary file that replaces the old one.
+    private Segment write(int number, List<BuildStatus> statuses) throws IOException {
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        Set<String> repos = new HashSet<>();
+        long[] ids = new long[statuses.size()];
+        File data = dataFile(number);
+        File tmp = new File(data.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(file, 64 * 1024), 64 * 1024)) {
+            for (int i = 0; i < statuses.size(); i++) {
+                BuildStatus status = statuses.get(i);
+                out.write(mapper.writeValueAsBytes(status));
+                out.write('\n');
+                oldest = Math.min(oldest, status.getTimestamp());
+                newest = Math.max(newest, status.getTimestamp());
+                repos.add(status.getRepoName());
+                ids[i] = hash(status.getId());
+            }
+            out.finish();
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Arrays.sort(ids);
+        Segment segment = new Segment(number, statuses.size(), oldest, newest, repos, ids);
+        writeIndex(segment);
+        return segment;
+    }
+
+    private void writeIndex(Segment segment) throws IOException {
+        File index = indexFile(segment.number);
+        File tmp = new File(index.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(segment.count);
+            out.writeLong(segment.oldest);
+            out.writeLong(segment.newest);
+            out.writeInt(segment.repos.size());
+            for (String repo : segment.repos) {
+                out.writeBoolean(repo != null);
+                if (repo != null) {
+                    out.writeUTF(repo);
+                }
+            }
+            for (long id : segment.ids) {
+                out.writeLong(id);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Segment readIndex(int number, File index) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index), 64 * 1024))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Not an archive index");
+            }
+            int count = in.readInt();
+            long oldest = in.readLong();
+            long newest = in.readLong();
+            int repoCount = in.readInt();
+            Set<String> repos = new HashSet<>();
+            for (int i = 0; i < repoCount; i++) {
+                repos.add(in.readBoolean() ? StatusKeys.name(in.readUTF()) : null);
+            }
+            long[] ids = new long[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readLong();
+            }
+            return new Segment(number, count, oldest, newest, repos, ids);
+        }
+    }
+
+    // Replaces the segment with its number, or adds it.
+    private void publish(Segment segment) {
+        List<Segment> updated = new ArrayList<>(segments);
+        updated.removeIf(old -> old.number == segment.number);
+        updated.add(segment);
+        updated.sort(Comparator.comparingInt(old -> old.number));
+        segments = List.copyOf(updated);
+    }
+
+    private File dataFile(int number) {
+        return new File(directory, "segment-" + number + ".json.gz");
+    }
+
+    private File indexFile(int number) {
+        return new File(directory, "segment-" + number + ".idx");
+    }
+
+    // 64-bit FNV-1a of the id.
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
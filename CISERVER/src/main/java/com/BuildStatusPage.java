@@ -0,0 +1,28 @@
+package com;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * One page of builds, newest first, with the cursors of the pages around it.
+ * A cursor is null if there is no such page.
+ */
+public final class BuildStatusPage {
+    private final List<BuildStatus> builds;
+    private final String nextCursor;
+    private final String previousCursor;
+
+    public BuildStatusPage(List<BuildStatus> builds, String nextCursor, String previousCursor) {
+        this.builds = Collections.unmodifiableList(builds);
+        this.nextCursor = nextCursor;
+        this.previousCursor = previousCursor;
+    }
+
+    public List<BuildStatus> getBuilds() { return builds; }
+
+    // The cursor of the page with the older builds.
+    public String getNextCursor() { return nextCursor; }
+
+    // The cursor of the page with the newer builds.
+    public String getPreviousCursor() { return previousCursor; }
+}
@@ -0,0 +1,835 @@
+package com;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/*
+ * One version of all build statuses with the lookups by id, repository, branch
+ * and commit. A version never changes once it is made, so any number of threads
+ * can read it without locks. FileBuildStatusStore makes a new version for every
+ * write and publishes it with a volatile write.
+ *
+ * A new version shares what the write did not touch. The list is kept in chunks
+ * of CHUNK statuses and only the changed chunk is copied. The lookups are hash
+ * tries and only the path to a changed key is copied, a few small arrays however
+ * many statuses there are. All builds,
+ * and the builds of one repository, branch or commit, are kept newest first in
+ * blocks of list positions and only the block a build goes into is copied.
+ *
+ * Pages are found by their cursor with a binary search, so a page costs about
+ * as much as the builds on it, however long the history is.
+ */
+public final class BuildStatusSnapshot {
+    static final int CHUNK = 64;
+    // Newest first, builds of the same millisecond in the order they were added.
+    private static final Comparator<Entry> NEWEST_FIRST =
+        Comparator.comparingLong((Entry e) -> e.timestamp).thenComparingInt(e -> e.position).reversed();
+
+    public static final BuildStatusSnapshot EMPTY = new BuildStatusSnapshot(
+        new Entry[0][], 0, new HashTrie<>(), Order.EMPTY, new HashTrie<>(), new HashTrie<>(),
+        new HashTrie<>(), 0);
+
+    private final Entry[][] chunks;
+    private final int size;
+    private final HashTrie<Integer> ids;
+    private final Order all;
+    private final HashTrie<Order> byRepo;
+    private final HashTrie<Order> byBranch;
+    private final HashTrie<Order> byCommit;
+    private final long version;
+
+    /*
+     * A status at its list position. The values it is indexed under are those of
+     * the StoredStatus, copied when it was stored, so that the lookups stay right
+     * even if the status object is changed afterwards.
+     */
+    private static final class Entry {
+        final StoredStatus stored;
+        final int position;
+        // Copied, because the orders compare it all the time.
+        final long timestamp;
+
+        Entry(StoredStatus stored, int position) {
+            this.stored = stored;
+            this.position = position;
+            this.timestamp = stored.timestamp;
+        }
+
+        String repo() {
+            return stored.repo;
+        }
+
+        String branch() {
+            return stored.branch;
+        }
+
+        Object commit() {
+            return stored.commit;
+        }
+
+        BuildStatus status() {
+            return stored.get();
+        }
+
+        String branchKey() {
+            return BuildStatusSnapshot.branchKey(stored.repo, stored.branch);
+        }
+    }
+
+    private BuildStatusSnapshot(Entry[][] chunks, int size, HashTrie<Integer> ids, Order all,
+                                HashTrie<Order> byRepo, HashTrie<Order> byBranch, HashTrie<Order> byCommit,
+                                long version) {
+        this.chunks = chunks;
+        this.size = size;
+        this.ids = ids;
+        this.all = all;
+        this.byRepo = byRepo;
+        this.byBranch = byBranch;
+        this.byCommit = byCommit;
+        this.version = version;
+    }
+
+    /*
+     * A version holding the statuses in order, built in one pass. If ids repeat,
+     * lookups find the first status with the id.
+     */
+    public static BuildStatusSnapshot of(List<BuildStatus> statuses) {
+        List<StoredStatus> stored = new ArrayList<>(statuses.size());
+        for (BuildStatus status : statuses) {
+            stored.add(new StoredStatus(status));
+        }
+        return ofStored(stored);
+    }
+
+    // Like of, for statuses that may be only on disk.
+    static BuildStatusSnapshot ofStored(List<StoredStatus> statuses) {
+        int size = statuses.size();
+        Entry[][] chunks = new Entry[(size + CHUNK - 1) / CHUNK][];
+        Map<Object, Integer> ids = new HashMap<>();
+        List<Entry> all = new ArrayList<>();
+        Map<String, List<Entry>> repos = new HashMap<>();
+        Map<String, List<Entry>> branches = new HashMap<>();
+        Map<Object, List<Entry>> commits = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            if (i % CHUNK == 0) {
+                chunks[i / CHUNK] = new Entry[Math.min(CHUNK, size - i)];
+            }
+            Entry entry = new Entry(statuses.get(i), i);
+            chunks[i / CHUNK][i % CHUNK] = entry;
+            if (ids.putIfAbsent(entry.stored.id, i) == null) {
+                all.add(entry);
+                repos.computeIfAbsent(entry.repo(), k -> new ArrayList<>()).add(entry);
+                branches.computeIfAbsent(entry.branchKey(), k -> new ArrayList<>()).add(entry);
+                commits.computeIfAbsent(entry.commit(), k -> new ArrayList<>()).add(entry);
+            }
+        }
+        return new BuildStatusSnapshot(chunks, size, HashTrie.of(ids), Order.of(all), orders(repos),
+                                       orders(branches), orders(commits), 0);
+    }
+
+    private static HashTrie<Order> orders(Map<?, List<Entry>> entries) {
+        Map<Object, Order> orders = new HashMap<>();
+        for (Map.Entry<?, List<Entry>> key : entries.entrySet()) {
+            orders.put(key.getKey(), Order.of(key.getValue()));
+        }
+        return HashTrie.of(orders);
+    }
+
+    // Counts the writes; two snapshots with the same version hold the same statuses.
+    public long getVersion() { return version; }
+
+    public int size() { return size; }
+
+    public BuildStatus get(int position) {
+        return entry(chunks, position).status();
+    }
+
+    // The statuses in the order they were added, as an unmodifiable list.
+    public List<BuildStatus> getStatuses() {
+        return new StatusList();
+    }
+
+    public BuildStatus getStatusById(String id) {
+        Integer position = ids.get(StatusKeys.id(id));
+        return position == null ? null : get(position);
+    }
+
+    /*
+     * The newest builds of a repository, only those of one branch if branch isn't
+     * null. At most limit of them, newest first.
+     */
+    public List<BuildStatus> getLatestBuilds(String repoName, String branch, int limit) {
+        return page(repoName, branch, null, null, limit).getBuilds();
+    }
+
+    // The builds of a commit, newest first.
+    public List<BuildStatus> getBuildsByCommit(String commitSHA) {
+        return page(null, null, commitSHA, null, Integer.MAX_VALUE).getBuilds();
+    }
+
+    /*
+     * One page of builds, newest first, of at most limit builds. The filters may
+     * be null; branch is only used together with repoName. Without a cursor the
+     * page starts with the newest build, otherwise it is the page before or after
+     * the one the cursor came from. A cursor stays valid while builds are added
+     * or change. Throws IllegalArgumentException for a cursor that was not made
+     * by a page.
+     */
+    public BuildStatusPage page(String repoName, String branch, String commitSHA, String cursor, int limit) {
+        Order order;
+        if (commitSHA != null) {
+            order = byCommit.get(StatusKeys.commit(commitSHA));
+        } else if (repoName != null && branch != null) {
+            order = byBranch.get(branchKey(repoName, branch));
+        } else if (repoName != null) {
+            order = byRepo.get(repoName);
+        } else {
+            order = all;
+        }
+        if (order == null || limit <= 0) {
+            return new BuildStatusPage(List.of(), null, null);
+        }
+        // The builds of a commit can be narrowed down further, the other filters use their own order.
+        String repoFilter = commitSHA != null ? repoName : null;
+        String branchFilter = commitSHA != null && repoName != null ? branch : null;
+
+        PageCursor from = PageCursor.parse(cursor);
+        boolean backwards = from != null && !from.after;
+        // The first build after (or the last before) the cursor.
+        int index = from == null ? 0 : order.indexOf(from.timestamp, from.position, chunks);
+        if (from != null && from.after && index < order.size
+                && order.get(index) == from.position && entry(chunks, from.position).timestamp == from.timestamp) {
+            index++;
+        }
+        int step = backwards ? -1 : 1;
+        int i = backwards ? index - 1 : index;
+        List<Entry> entries = new ArrayList<>();
+        for (; i >= 0 && i < order.size && entries.size() < limit; i += step) {
+            Entry entry = entry(chunks, order.get(i));
+            if ((repoFilter == null || repoFilter.equals(entry.repo()))
+                    && (branchFilter == null || branchFilter.equals(entry.branch()))) {
+                entries.add(entry);
+            }
+        }
+        // i is now just past the page; the builds on the other side of the start are the other link.
+        boolean more = hasMatch(order, i, step, repoFilter, branchFilter);
+        boolean less = from != null && hasMatch(order, backwards ? index : index - 1, -step, repoFilter, branchFilter);
+        if (backwards) {
+            Collections.reverse(entries);
+        }
+        if (entries.isEmpty()) {
+            return new BuildStatusPage(List.of(), null, null);
+        }
+        List<BuildStatus> builds = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            builds.add(entry.status());
+        }
+        Entry newest = entries.get(0);
+        Entry oldest = entries.get(entries.size() - 1);
+        boolean older = backwards ? less : more;
+        boolean newer = backwards ? more : less;
+        return new BuildStatusPage(builds, older ? PageCursor.after(oldest.timestamp, oldest.position) : null,
+                                   newer ? PageCursor.before(newest.timestamp, newest.position) : null);
+    }
+
+    private boolean hasMatch(Order order, int from, int step, String repo, String branch) {
+        for (int i = from; i >= 0 && i < order.size; i += step) {
+            Entry entry = entry(chunks, order.get(i));
+            if ((repo == null || repo.equals(entry.repo())) && (branch == null || branch.equals(entry.branch()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A version with the status added at the end.
+    BuildStatusSnapshot add(BuildStatus status) {
+        return add(new StoredStatus(status));
+    }
+
+    private BuildStatusSnapshot add(StoredStatus stored) {
+        int position = size;
+        Entry entry = new Entry(stored, position);
+        Entry[][] newChunks;
+        if (position % CHUNK == 0) {
+            newChunks = Arrays.copyOf(chunks, chunks.length + 1);
+            newChunks[chunks.length] = new Entry[] { entry };
+        } else {
+            newChunks = chunks.clone();
+            Entry[] last = Arrays.copyOf(chunks[chunks.length - 1], position % CHUNK + 1);
+            last[position % CHUNK] = entry;
+            newChunks[chunks.length - 1] = last;
+        }
+        // Lookups keep finding the first status with an id.
+        if (ids.get(entry.stored.id) != null) {
+            return new BuildStatusSnapshot(newChunks, size + 1, ids, all, byRepo, byBranch, byCommit, version + 1);
+        }
+        return new BuildStatusSnapshot(newChunks, size + 1, ids.with(entry.stored.id, position),
+                                       all.insert(entry, newChunks),
+                                       insert(byRepo, entry.repo(), entry, newChunks),
+                                       insert(byBranch, entry.branchKey(), entry, newChunks),
+                                       insert(byCommit, entry.commit(), entry, newChunks),
+                                       version + 1);
+    }
+
+    // A version with the status replacing the one with its id, or added if there is none.
+    BuildStatusSnapshot upsert(BuildStatus status) {
+        return upsert(new StoredStatus(status));
+    }
+
+    private BuildStatusSnapshot upsert(StoredStatus stored) {
+        Integer position = ids.get(stored.id);
+        if (position == null) {
+            return add(stored);
+        }
+        Entry old = entry(chunks, position);
+        Entry entry = new Entry(stored, position);
+        Entry[][] newChunks = chunks.clone();
+        Entry[] chunk = chunks[position / CHUNK].clone();
+        chunk[position % CHUNK] = entry;
+        newChunks[position / CHUNK] = chunk;
+        return new BuildStatusSnapshot(newChunks, size, ids,
+                                       all.remove(old, chunks).insert(entry, newChunks),
+                                       insert(remove(byRepo, old.repo(), old, chunks), entry.repo(), entry, newChunks),
+                                       insert(remove(byBranch, old.branchKey(), old, chunks), entry.branchKey(), entry,
+                                              newChunks),
+                                       insert(remove(byCommit, old.commit(), old, chunks), entry.commit(), entry, newChunks),
+                                       version + 1);
+    }
+
+    // How many of the statuses are in memory, the others are read from disk when needed.
+    int inMemory() {
+        int count = 0;
+        for (Entry[] chunk : chunks) {
+            for (Entry entry : chunk) {
+                if (entry.stored.isInMemory()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // The statuses as they are stored, for writing them to a new snapshot file.
+    List<StoredStatus> getStored() {
+        return new AbstractList<StoredStatus>() {
+            @Override
+            public StoredStatus get(int index) {
+                return entry(chunks, index).stored;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /*
+     * This version with the statuses of an older one, which were written to a new
+     * snapshot file, taken from there. Statuses that changed since are kept.
+     * Only the list changes, so the lookups are shared.
+     */
+    BuildStatusSnapshot relocate(BuildStatusSnapshot written, List<StoredStatus> moved) {
+        Entry[][] newChunks = chunks.clone();
+        // This version may be shorter than the written one, if statuses were archived meanwhile.
+        for (int c = 0; c * CHUNK < written.size && c < chunks.length; c++) {
+            Entry[] chunk = newChunks[c].clone();
+            for (int i = 0; i < chunk.length && c * CHUNK + i < written.size; i++) {
+                if (chunk[i] == written.chunks[c][i]) {
+                    chunk[i] = new Entry(moved.get(c * CHUNK + i), c * CHUNK + i);
+                }
+            }
+            newChunks[c] = chunk;
+        }
+        return new BuildStatusSnapshot(newChunks, size, ids, all, byRepo, byBranch, byCommit, version);
+    }
+
+    // The statuses the lookups find, newest first, e.g. for the retention policy.
+    List<StoredStatus> newestFirst() {
+        return new AbstractList<StoredStatus>() {
+            @Override
+            public StoredStatus get(int index) {
+                return entry(chunks, all.get(index)).stored;
+            }
+
+            @Override
+            public int size() {
+                return all.size;
+            }
+        };
+    }
+
+    /*
+     * The writes made since base, the version this one was made from, applied
+     * to another version made from base, e.g. one without the statuses that
+     * were archived. Only the chunks that changed are looked at, so this costs
+     * about as much as the writes. The result is newer than this version.
+     */
+    BuildStatusSnapshot rebase(BuildStatusSnapshot base, BuildStatusSnapshot onto) {
+        BuildStatusSnapshot result = onto;
+        for (int c = 0; c < chunks.length; c++) {
+            if (c < base.chunks.length && chunks[c] == base.chunks[c]) {
+                continue;
+            }
+            for (int i = 0; i < chunks[c].length; i++) {
+                int position = c * CHUNK + i;
+                Entry entry = chunks[c][i];
+                if (position >= base.size) {
+                    result = result.add(entry.stored);
+                } else if (entry != entry(base.chunks, position)) {
+                    result = result.upsert(entry.stored);
+                }
+            }
+        }
+        return new BuildStatusSnapshot(result.chunks, result.size, result.ids, result.all, result.byRepo,
+                                       result.byBranch, result.byCommit, version + 1);
+    }
+
+    // The index with the entry put in its place among the builds of the key.
+    private static HashTrie<Order> insert(HashTrie<Order> index, Object key, Entry entry, Entry[][] chunks) {
+        Order order = index.get(key);
+        return index.with(key, (order == null ? Order.EMPTY : order).insert(entry, chunks));
+    }
+
+    // The index without the entry, which is looked up in the chunks it was added with.
+    private static HashTrie<Order> remove(HashTrie<Order> index, Object key, Entry entry, Entry[][] chunks) {
+        Order order = index.get(key);
+        if (order == null) {
+            return index;
+        }
+        Order removed = order.remove(entry, chunks);
+        return index.with(key, removed.size == 0 ? null : removed);
+    }
+
+    private static Entry entry(Entry[][] chunks, int position) {
+        return chunks[position / CHUNK][position % CHUNK];
+    }
+
+    // Branch names are only unique within a repository.
+    static String branchKey(String repo, String branch) {
+        return repo + "\n" + branch;
+    }
+
+    /*
+     * List positions, newest first, in blocks of at most 2 * CHUNK. A change copies
+     * the block it is in and the array of blocks; a full block is split in two.
+     */
+    private static final class Order {
+        static final Order EMPTY = new Order(new int[0][], 0);
+        // Shared by all orders of one block, which most commits and many branches have.
+        private static final int[] ONE_BLOCK = { 0 };
+
+        final int[][] blocks;
+        final int size;
+        // The index of the first position of each block, to find a block by index.
+        private final int[] starts;
+
+        Order(int[][] blocks, int size) {
+            this.blocks = blocks;
+            this.size = size;
+            this.starts = blocks.length == 1 ? ONE_BLOCK : new int[blocks.length];
+            for (int b = 1; b < blocks.length; b++) {
+                starts[b] = starts[b - 1] + blocks[b - 1].length;
+            }
+        }
+
+        static Order of(List<Entry> entries) {
+            if (entries.size() == 1) {
+                return new Order(new int[][] { { entries.get(0).position } }, 1);
+            }
+            List<Entry> sorted = new ArrayList<>(entries);
+            sorted.sort(NEWEST_FIRST);
+            // Half full, so that the first inserts do not split a block.
+            int[][] blocks = new int[(sorted.size() + CHUNK - 1) / CHUNK][];
+            for (int b = 0; b < blocks.length; b++) {
+                blocks[b] = sorted.subList(b * CHUNK, Math.min(sorted.size(), (b + 1) * CHUNK)).stream()
+                                  .mapToInt(e -> e.position).toArray();
+            }
+            return new Order(blocks, sorted.size());
+        }
+
+        int get(int index) {
+            int b = Arrays.binarySearch(starts, index);
+            if (b < 0) {
+                b = -b - 2;
+            }
+            return blocks[b][index - starts[b]];
+        }
+
+        // The index of the first build that is the key or older than it.
+        int indexOf(long timestamp, int position, Entry[][] chunks) {
+            int b = blockOf(timestamp, position, chunks, blocks.length);
+            if (b == blocks.length) {
+                return size;
+            }
+            return starts[b] + indexIn(blocks[b], timestamp, position, chunks);
+        }
+
+        // The block a key goes into: the first whose last build is the key or older, else none.
+        private int blockOf(long timestamp, int position, Entry[][] chunks, int none) {
+            int low = 0;
+            int high = none;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int[] block = blocks[mid];
+                if (notAfter(timestamp, position, entry(chunks, block[block.length - 1]))) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        private static int indexIn(int[] block, long timestamp, int position, Entry[][] chunks) {
+            int low = 0;
+            int high = block.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (notAfter(timestamp, position, entry(chunks, block[mid]))) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        // True if the entry is the key or comes after it, i.e. is older.
+        private static boolean notAfter(long timestamp, int position, Entry entry) {
+            return timestamp != entry.timestamp ? timestamp > entry.timestamp : position >= entry.position;
+        }
+
+        Order insert(Entry entry, Entry[][] chunks) {
+            if (blocks.length == 0) {
+                return new Order(new int[][] { { entry.position } }, 1);
+            }
+            int b = blockOf(entry.timestamp, entry.position, chunks, blocks.length - 1);
+            int[] block = blocks[b];
+            int i = indexIn(block, entry.timestamp, entry.position, chunks);
+            int[] grown = new int[block.length + 1];
+            System.arraycopy(block, 0, grown, 0, i);
+            grown[i] = entry.position;
+            System.arraycopy(block, i, grown, i + 1, block.length - i);
+            if (grown.length <= 2 * CHUNK) {
+                int[][] copy = blocks.clone();
+                copy[b] = grown;
+                return new Order(copy, size + 1);
+            }
+            int[][] copy = new int[blocks.length + 1][];
+            System.arraycopy(blocks, 0, copy, 0, b);
+            copy[b] = Arrays.copyOfRange(grown, 0, grown.length / 2);
+            copy[b + 1] = Arrays.copyOfRange(grown, grown.length / 2, grown.length);
+            System.arraycopy(blocks, b + 1, copy, b + 2, blocks.length - b - 1);
+            return new Order(copy, size + 1);
+        }
+
+        // Without the entry, looked up by its key in the chunks it was added with.
+        Order remove(Entry entry, Entry[][] chunks) {
+            if (blocks.length == 0) {
+                return this;
+            }
+            int b = blockOf(entry.timestamp, entry.position, chunks, blocks.length - 1);
+            int[] block = blocks[b];
+            int i = indexIn(block, entry.timestamp, entry.position, chunks);
+            if (i == block.length || block[i] != entry.position) {
+                return this;
+            }
+            if (block.length == 1) {
+                int[][] copy = new int[blocks.length - 1][];
+                System.arraycopy(blocks, 0, copy, 0, b);
+                System.arraycopy(blocks, b + 1, copy, b, blocks.length - b - 1);
+                return new Order(copy, size - 1);
+            }
+            int[] shrunk = new int[block.length - 1];
+            System.arraycopy(block, 0, shrunk, 0, i);
+            System.arraycopy(block, i + 1, shrunk, i, block.length - i - 1);
+            int[][] copy = blocks.clone();
+            copy[b] = shrunk;
+            return new Order(copy, size - 1);
+        }
+    }
+
+    private final class StatusList extends AbstractList<BuildStatus> implements RandomAccess {
+        @Override
+        public BuildStatus get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+            }
+            return BuildStatusSnapshot.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /*
+     * A persistent hash map: a trie on 5 bits of the hash per level, whose nodes
+     * hold only the children that exist (a bitmap and an array). Changing a key
+     * copies the nodes on its path, about log32(n) of them, and shares the rest
+     * with the previous map. Keys with the same hash end in a Collision.
+     */
+    private static final class HashTrie<V> {
+        private static final int BITS = 5;
+        private static final int MASK = (1 << BITS) - 1;
+
+        // null, a Leaf, a Collision or a Node.
+        private final Object root;
+
+        HashTrie() {
+            this(null);
+        }
+
+        private HashTrie(Object root) {
+            this.root = root;
+        }
+
+        private static final class Leaf {
+            final int hash;
+            final Object key;
+            final Object value;
+
+            Leaf(int hash, Object key, Object value) {
+                this.hash = hash;
+                this.key = key;
+                this.value = value;
+            }
+        }
+
+        // Leaves with the same hash.
+        private static final class Collision {
+            final int hash;
+            final Leaf[] leaves;
+
+            Collision(int hash, Leaf[] leaves) {
+                this.hash = hash;
+                this.leaves = leaves;
+            }
+        }
+
+        private static final class Node {
+            final int bitmap;
+            final Object[] children;
+
+            Node(int bitmap, Object[] children) {
+                this.bitmap = bitmap;
+                this.children = children;
+            }
+
+            int index(int bit) {
+                return Integer.bitCount(bitmap & (bit - 1));
+            }
+        }
+
+        // Built level by level instead of key by key.
+        static <V> HashTrie<V> of(Map<?, V> all) {
+            List<Leaf> leaves = new ArrayList<>(all.size());
+            for (Map.Entry<?, V> entry : all.entrySet()) {
+                leaves.add(new Leaf(hash(entry.getKey()), entry.getKey(), entry.getValue()));
+            }
+            return new HashTrie<>(build(leaves, 0));
+        }
+
+        private static Object build(List<Leaf> leaves, int shift) {
+            if (leaves.isEmpty()) {
+                return null;
+            }
+            if (leaves.size() == 1) {
+                return leaves.get(0);
+            }
+            int hash = leaves.get(0).hash;
+            if (leaves.stream().allMatch(leaf -> leaf.hash == hash)) {
+                return new Collision(hash, leaves.toArray(new Leaf[0]));
+            }
+            List<List<Leaf>> buckets = new ArrayList<>(Collections.nCopies(1 << BITS, null));
+            int bitmap = 0;
+            for (Leaf leaf : leaves) {
+                int slot = (leaf.hash >>> shift) & MASK;
+                if (buckets.get(slot) == null) {
+                    buckets.set(slot, new ArrayList<>());
+                    bitmap |= 1 << slot;
+                }
+                buckets.get(slot).add(leaf);
+            }
+            Object[] children = new Object[Integer.bitCount(bitmap)];
+            int next = 0;
+            for (List<Leaf> bucket : buckets) {
+                if (bucket != null) {
+                    children[next++] = build(bucket, shift + BITS);
+                }
+            }
+            return new Node(bitmap, children);
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(Object key) {
+            int hash = hash(key);
+            Object at = root;
+            for (int shift = 0; at instanceof Node; shift += BITS) {
+                Node node = (Node) at;
+                int bit = 1 << ((hash >>> shift) & MASK);
+                if ((node.bitmap & bit) == 0) {
+                    return null;
+                }
+                at = node.children[node.index(bit)];
+            }
+            if (at instanceof Leaf) {
+                Leaf leaf = (Leaf) at;
+                return leaf.hash == hash && Objects.equals(leaf.key, key) ? (V) leaf.value : null;
+            }
+            if (at instanceof Collision && ((Collision) at).hash == hash) {
+                for (Leaf leaf : ((Collision) at).leaves) {
+                    if (Objects.equals(leaf.key, key)) {
+                        return (V) leaf.value;
+                    }
+                }
+            }
+            return null;
+        }
+
+        // A copy with the key set to value, or removed if value is null.
+        HashTrie<V> with(Object key, V value) {
+            int hash = hash(key);
+            Object changed = value == null ? without(root, hash, key, 0) : with(root, new Leaf(hash, key, value), 0);
+            return changed == root ? this : new HashTrie<>(changed);
+        }
+
+        private static Object with(Object at, Leaf added, int shift) {
+            if (at == null) {
+                return added;
+            }
+            if (at instanceof Leaf) {
+                Leaf leaf = (Leaf) at;
+                if (leaf.hash != added.hash) {
+                    return merge(leaf, leaf.hash, added, shift);
+                }
+                if (Objects.equals(leaf.key, added.key)) {
+                    return leaf.value == added.value ? leaf : added;
+                }
+                return new Collision(leaf.hash, new Leaf[] {leaf, added});
+            }
+            if (at instanceof Collision) {
+                Collision collision = (Collision) at;
+                if (collision.hash != added.hash) {
+                    return merge(collision, collision.hash, added, shift);
+                }
+                Leaf[] leaves = collision.leaves;
+                for (int i = 0; i < leaves.length; i++) {
+                    if (Objects.equals(leaves[i].key, added.key)) {
+                        Leaf[] copy = leaves.clone();
+                        copy[i] = added;
+                        return new Collision(collision.hash, copy);
+                    }
+                }
+                Leaf[] copy = Arrays.copyOf(leaves, leaves.length + 1);
+                copy[leaves.length] = added;
+                return new Collision(collision.hash, copy);
+            }
+            Node node = (Node) at;
+            int bit = 1 << ((added.hash >>> shift) & MASK);
+            int index = node.index(bit);
+            if ((node.bitmap & bit) == 0) {
+                Object[] children = new Object[node.children.length + 1];
+                System.arraycopy(node.children, 0, children, 0, index);
+                children[index] = added;
+                System.arraycopy(node.children, index, children, index + 1, node.children.length - index);
+                return new Node(node.bitmap | bit, children);
+            }
+            Object child = node.children[index];
+            Object changed = with(child, added, shift + BITS);
+            if (changed == child) {
+                return node;
+            }
+            Object[] children = node.children.clone();
+            children[index] = changed;
+            return new Node(node.bitmap, children);
+        }
+
+        // A node holding an existing leaf or collision and a new leaf with another hash.
+        private static Object merge(Object existing, int existingHash, Leaf added, int shift) {
+            int existingSlot = (existingHash >>> shift) & MASK;
+            int addedSlot = (added.hash >>> shift) & MASK;
+            if (existingSlot == addedSlot) {
+                return new Node(1 << addedSlot, new Object[] {merge(existing, existingHash, added, shift + BITS)});
+            }
+            Object[] children = existingSlot < addedSlot ? new Object[] {existing, added} : new Object[] {added, existing};
+            return new Node(1 << existingSlot | 1 << addedSlot, children);
+        }
+
+        private static Object without(Object at, int hash, Object key, int shift) {
+            if (at instanceof Leaf) {
+                Leaf leaf = (Leaf) at;
+                return leaf.hash == hash && Objects.equals(leaf.key, key) ? null : leaf;
+            }
+            if (at instanceof Collision) {
+                Collision collision = (Collision) at;
+                if (collision.hash != hash) {
+                    return collision;
+                }
+                Leaf[] leaves = collision.leaves;
+                for (int i = 0; i < leaves.length; i++) {
+                    if (Objects.equals(leaves[i].key, key)) {
+                        if (leaves.length == 2) {
+                            return leaves[1 - i];
+                        }
+                        Leaf[] copy = new Leaf[leaves.length - 1];
+                        System.arraycopy(leaves, 0, copy, 0, i);
+                        System.arraycopy(leaves, i + 1, copy, i, leaves.length - i - 1);
+                        return new Collision(hash, copy);
+                    }
+                }
+                return collision;
+            }
+            if (at == null) {
+                return null;
+            }
+            Node node = (Node) at;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.bitmap & bit) == 0) {
+                return node;
+            }
+            int index = node.index(bit);
+            Object child = node.children[index];
+            Object changed = without(child, hash, key, shift + BITS);
+            if (changed == child) {
+                return node;
+            }
+            if (changed == null) {
+                if (node.children.length == 1) {
+                    return null;
+                }
+                Object[] children = new Object[node.children.length - 1];
+                System.arraycopy(node.children, 0, children, 0, index);
+                System.arraycopy(node.children, index + 1, children, index, children.length - index);
+                // A leaf or collision alone needs no node above it.
+                if (children.length == 1 && !(children[0] instanceof Node)) {
+                    return children[0];
+                }
+                return new Node(node.bitmap & ~bit, children);
+            }
+            if (node.children.length == 1 && !(changed instanceof Node)) {
+                return changed;
+            }
+            Object[] children = node.children.clone();
+            children[index] = changed;
+            return new Node(node.bitmap, children);
+        }
+
+        private static int hash(Object key) {
+            // Spread so that keys whose hashes differ only in the high bits don't share paths.
+            int h = key == null ? 0 : key.hashCode();
+            return h * 0x9E3779B9;
+        }
+    }
+}
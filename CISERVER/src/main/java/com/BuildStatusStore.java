@@ -0,0 +1,98 @@
+package com;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Where the build statuses are kept. FileBuildStatusStore keeps them in memory
+ * with a JSON snapshot and journal on disk, H2BuildStatusStore in an embedded
+ * database for histories too long for memory. Both move old statuses to a
+ * BuildStatusArchive as their RetentionPolicy says.
+ */
+public interface BuildStatusStore {
+
+    /*
+     * Told about every status that is added or updated, once reads see it.
+     * Called on the thread that wrote the status, so it must not block.
+     */
+    interface Listener {
+        void statusChanged(BuildStatus status);
+    }
+
+    /*
+     * Adds a status. The returned future completes once it is stored durably and
+     * may be ignored.
+     */
+    CompletableFuture<Void> addStatus(BuildStatus status);
+
+    /*
+     * Replaces the status with the same id, e.g. when a pending build finishes.
+     * If no status with that id exists yet it is added.
+     */
+    CompletableFuture<Void> updateStatus(BuildStatus status);
+
+    BuildStatus getStatusById(String id);
+
+    /*
+     * The newest builds of a repository, only those of one branch if branch isn't
+     * null. At most limit of them, newest first.
+     */
+    default List<BuildStatus> getLatestBuilds(String repoName, String branch, int limit) {
+        return getPage(repoName, branch, null, null, limit).getBuilds();
+    }
+
+    // The builds of a commit, newest first.
+    default List<BuildStatus> getBuildsByCommit(String commitSHA) {
+        return getPage(null, null, commitSHA, null, Integer.MAX_VALUE).getBuilds();
+    }
+
+    /*
+     * One page of builds, newest first, of at most limit builds. The filters may
+     * be null; branch is only used together with repoName. cursor is null for the
+     * newest page, otherwise one of the cursors of an earlier page. Throws
+     * IllegalArgumentException for a cursor that was not made by a page.
+     */
+    BuildStatusPage getPage(String repoName, String branch, String commitSHA, String cursor, int limit);
+
+    /*
+     * Moves the statuses the store's RetentionPolicy no longer keeps to its
+     * archive and returns how many were moved. Stores also do this on their own
+     * in the background; reads and writes go on while it runs.
+     */
+    int applyRetention();
+
+    // A status that was moved to the archive, or null if there is none with the id.
+    BuildStatus getArchivedStatus(String id);
+
+    /*
+     * Archived builds, newest first, at most limit of them. The filters work as
+     * for getPage. This reads the archive, so it is slower than getPage.
+     */
+    List<BuildStatus> searchArchive(String repoName, String branch, String commitSHA, int limit);
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+    /*
+     * When the statuses last changed, in milliseconds. Every change makes it
+     * larger, also within the same millisecond and across restarts, so it serves
+     * as the version of what reads return. Read it before reading the statuses.
+     */
+    long getLastModified();
+
+    // How many statuses are stored.
+    int size();
+
+    // How many statuses were stored when the store was opened.
+    int getInitialCount();
+
+    // The status that was added last, or null if there is none.
+    BuildStatus getLastAdded();
+
+    // Completes once everything written before is stored durably.
+    CompletableFuture<Void> flush();
+
+    // Writes what is pending and releases the files; the store can't be used afterwards.
+    void close();
+}
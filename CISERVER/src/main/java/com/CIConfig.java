@@ -0,0 +1,41 @@
+package com;
+
+/*
+ * Server settings. A setting such as "ci.build.maxConcurrent" is read from the
+ * system property of that name (-Dci.build.maxConcurrent=4) or otherwise from
+ * the environment variable CI_BUILD_MAXCONCURRENT, falling back to the default.
+ */
+public final class CIConfig {
+
+    private CIConfig() {}
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.toUpperCase().replace('.', '_'));
+        }
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
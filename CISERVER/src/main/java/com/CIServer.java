@@ -1,29 +1,193 @@
 package com;
 
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class CIServer {
 
 
     public static Server createServer(int portnmbr){
-        System.setProperty("org.eclipse.jetty.LEVEL", "DEBUG");
-        Server server = new Server(portnmbr);
+        Server server = createJetty(portnmbr);
 
         ServletContextHandler handler = new ServletContextHandler(ServletContextHandler.SESSIONS);
         handler.setContextPath("/");
-        server.setHandler(handler);
-        handler.addServlet(new ServletHolder(new GithubWebhook()), "/");
-        handler.addServlet(new ServletHolder(new BuildListServlet()), "/builds");
-        handler.addServlet(new ServletHolder(new BuildNotificationServlet ()), "/notification");
-        handler.addServlet(new ServletHolder(new BuildDetailServlet  ()), "/buildDetail");
+        if (CIConfig.getBoolean("ci.http.gzip", true)) {
+            server.setHandler(gzip(handler));
+        } else {
+            server.setHandler(handler);
+        }
+        BuildQueue buildQueue = new BuildQueue();
+        ProcessExecutor processExecutor = new DefaultProcessExecutor();
+        ProcessExecutor buildExecutor = createBuildExecutor(processExecutor);
+        BuildStatusStore statusStore = createStatusStore();
+        GithubWebhook webhook = new GithubWebhook(buildExecutor, new DefaultGitHubClient(), statusStore, buildQueue);
+        webhook.setMergePhases(CIConfig.getBoolean("ci.maven.mergePhases", false));
+        if (CIConfig.getBoolean("ci.maven.repoCache", true)) {
+            webhook.setMavenRepositoryCache(new MavenRepositoryCache(buildExecutor));
+        }
+        BuildLogStore logStore = new BuildLogStore();
+        webhook.setBuildLogStore(logStore);
+        if (CIConfig.getBoolean("ci.resultCache", true)) {
+            webhook.setBuildResultCache(new BuildResultCache(processExecutor));
+        }
+        configureCheckout(webhook, processExecutor);
+        handler.addServlet(new ServletHolder(webhook), "/");
+        handler.addServlet(new ServletHolder(new BuildQueueServlet(buildQueue)), "/queue");
+        handler.addServlet(new ServletHolder(new MetricsServlet(webhook.getMetrics())), "/metrics");
+        ServletHolder logHolder = new ServletHolder(new LogStreamServlet(logStore, statusStore));
+        logHolder.setAsyncSupported(true);
+        handler.addServlet(logHolder, "/log");
+        // One budget for the rendered rows and pages of finished builds.
+        HtmlFragmentCache html = new HtmlFragmentCache();
+        handler.addServlet(new ServletHolder(new BuildListServlet(statusStore, html)), "/builds");
+        ServletHolder notificationHolder = new ServletHolder(new BuildNotificationServlet(statusStore));
+        notificationHolder.setAsyncSupported(true);
+        handler.addServlet(notificationHolder, "/notification");
+        handler.addServlet(new ServletHolder(new BuildDetailServlet(statusStore, logStore, html)), "/buildDetail");
+        handler.addServlet(new ServletHolder(new BuildApiServlet(statusStore)), "/api/builds/*");
+
+
+        return server;
+    }
+
+    /*
+     * The Jetty server without handlers, set up from the ci.http settings: the
+     * size of its thread pool or virtual threads, the acceptors and idle timeout
+     * of the connector, and HTTP/2 without TLS (h2c) next to HTTP/1.1. The log
+     * level of Jetty is ci.http.logLevel, unless slf4j is already told one.
+     */
+    static Server createJetty(int port) {
+        String jettyLog = "org.slf4j.simpleLogger.log.org.eclipse.jetty";
+        if (System.getProperty(jettyLog) == null) {
+            System.setProperty(jettyLog, CIConfig.getString("ci.http.logLevel", "info"));
+        }
 
+        QueuedThreadPool threads = new QueuedThreadPool(CIConfig.getInt("ci.http.maxThreads", 200),
+                                                        CIConfig.getInt("ci.http.minThreads", 8));
+        threads.setName("http");
+        if (CIConfig.getBoolean("ci.http.virtualThreads", false)) {
+            if (VirtualThreads.areSupported()) {
+                // Requests run on virtual threads, the pool only keeps the selectors and acceptors.
+                threads.setVirtualThreadsExecutor(VirtualThreads.getDefaultVirtualThreadsExecutor());
+            } else {
+                System.err.println("Virtual threads are not supported by this Java version, using the thread pool.");
+            }
+        }
+        Server server = new Server(threads);
 
+        HttpConfiguration config = new HttpConfiguration();
+        config.setSendServerVersion(false);
+        List<ConnectionFactory> protocols = new ArrayList<>();
+        protocols.add(new HttpConnectionFactory(config));
+        if (CIConfig.getBoolean("ci.http.h2c", true)) {
+            protocols.add(new HTTP2CServerConnectionFactory(config));
+        }
+        ServerConnector connector = new ServerConnector(server, CIConfig.getInt("ci.http.acceptors", -1), -1,
+                                                        protocols.toArray(new ConnectionFactory[0]));
+        connector.setPort(port);
+        connector.setIdleTimeout(CIConfig.getLong("ci.http.idleTimeoutMillis", 30000));
+        server.addConnector(connector);
         return server;
     }
 
+    /*
+     * Compresses the pages, the JSON and the event streams of logs and
+     * notifications for clients that accept gzip. Every flush of an event
+     * stream sends what is compressed so far, so events are not held back.
+     */
+    static GzipHandler gzip(ServletContextHandler handler) {
+        GzipHandler gzip = new GzipHandler();
+        // Jetty leaves out event streams unless they are taken off its excluded types.
+        gzip.setExcludedMimeTypes();
+        gzip.setIncludedMimeTypes("text/html", "text/plain", "application/json", BuildApiServlet.NDJSON,
+                                  "text/event-stream");
+        gzip.setSyncFlush(true);
+        gzip.setHandler(handler);
+        return gzip;
+    }
+
+    /*
+     * Chooses where the build statuses are kept from ci.store: "file" (the default)
+     * keeps them in memory and in build_statuses.json, "h2" in the database at
+     * ci.store.h2.url. An empty database first gets the statuses of the file store.
+     */
+    static BuildStatusStore createStatusStore() {
+        String backend = CIConfig.getString("ci.store", "file");
+        if (backend.equals("h2")) {
+            H2BuildStatusStore store = new H2BuildStatusStore(CIConfig.getString("ci.store.h2.url", "jdbc:h2:./build_statuses"));
+            if (store.size() == 0 && (new File(FileBuildStatusStore.FILE_NAME).exists()
+                                      || new File(FileBuildStatusStore.JOURNAL_NAME).exists())) {
+                FileBuildStatusStore files = new FileBuildStatusStore();
+                store.copyFrom(files.getStatuses());
+                files.close();
+                System.out.println("Copied " + files.size() + " build statuses from " + FileBuildStatusStore.FILE_NAME
+                                   + " into the database.");
+            }
+            return store;
+        }
+        if (!backend.equals("file")) {
+            System.err.println("Unknown build status store " + backend + ", using file.");
+        }
+        return new FileBuildStatusStore();
+    }
+
+    /*
+     * Chooses how Maven is run from ci.maven.engine: "invoker" (the default) runs it
+     * through the Maven Invoker, "fork" starts mvn like any other process.
+     */
+    static ProcessExecutor createBuildExecutor(ProcessExecutor processExecutor) {
+        String engine = CIConfig.getString("ci.maven.engine", "invoker");
+        if (engine.equals("fork")) {
+            return processExecutor;
+        }
+        if (!engine.equals("invoker")) {
+            System.err.println("Unknown Maven engine " + engine + ", using invoker.");
+        }
+        return new MavenInvokerExecutor(processExecutor);
+    }
+
+    /*
+     * Sets the checkout strategies from ci.checkout (the default) and ci.checkout.repos,
+     * a list like "owner/repo=shallow,owner/other=clone".
+     */
+    static void configureCheckout(GithubWebhook webhook, ProcessExecutor processExecutor) {
+        Map<String, CheckoutStrategy> strategies = new HashMap<>();
+        strategies.put("clone", new FullCloneCheckout(processExecutor));
+        strategies.put("shallow", new ShallowFetchCheckout(processExecutor));
+        strategies.put("mirror", new RepositoryCache(processExecutor));
+
+        String defaultName = CIConfig.getString("ci.checkout", "mirror");
+        if (strategies.containsKey(defaultName)) {
+            webhook.setCheckoutStrategy(strategies.get(defaultName));
+        } else {
+            System.err.println("Unknown checkout strategy " + defaultName + ", using clone.");
+        }
+        for (String entry : CIConfig.getString("ci.checkout.repos", "").split(",")) {
+            String[] parts = entry.trim().split("[=/]");
+            if (parts.length == 3 && strategies.containsKey(parts[2])) {
+                webhook.setCheckoutStrategy(parts[0], parts[1], strategies.get(parts[2]));
+            } else if (!entry.isBlank()) {
+                System.err.println("Ignoring invalid ci.checkout.repos entry: " + entry);
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
 
         int portNmbr = 8080;
@@ -0,0 +1,21 @@
+package com;
+
+import java.io.File;
+
+/*
+ * How a build gets the source code of the pushed commit into its workspace.
+ */
+public interface CheckoutStrategy {
+
+    /*
+     * Checks out commitSHA of the repository at cloneUrl into the workspace directory,
+     * which must not exist yet. If the checkout fails the workspace is removed again.
+     */
+    void checkout(String owner, String repo, String cloneUrl, String commitSHA,
+                  File workspace, BuildJob job) throws Exception;
+
+    /*
+     * Removes a workspace after the build is done.
+     */
+    void cleanup(String owner, String repo, File workspace);
+}
@@ -0,0 +1,67 @@
+package com;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/*
+ * Validators for the pages, so that a browser that already has a page gets
+ * 304 Not Modified instead of the same page again. If-None-Match is checked
+ * first; If-Modified-Since only when there is none and the page has a
+ * modification time, which HTTP dates give in whole seconds.
+ */
+final class ConditionalGet {
+
+    private ConditionalGet() {
+    }
+
+    // An entity tag for a version of a page.
+    static String etag(Object version) {
+        return "\"" + version + "\"";
+    }
+
+    /*
+     * Sets the validators of the page and sends 304 if the request already has
+     * this version of it. lastModified is in milliseconds, 0 if there is none.
+     * Returns whether the 304 was sent, after which nothing is to be written.
+     */
+    static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String etag, long lastModified) {
+        resp.setHeader("ETag", etag);
+        if (lastModified > 0) {
+            resp.setDateHeader("Last-Modified", lastModified);
+        }
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        boolean matches;
+        if (ifNoneMatch != null) {
+            matches = matches(ifNoneMatch, etag);
+        } else {
+            matches = lastModified > 0 && lastModified / 1000 <= ifModifiedSince(req) / 1000;
+        }
+        if (matches) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return matches;
+    }
+
+    // Whether the list of If-None-Match has the tag, compared weakly as HTTP asks for GET.
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The date of If-Modified-Since, -1 if there is none or it isn't a date.
+    private static long ifModifiedSince(HttpServletRequest req) {
+        try {
+            return req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
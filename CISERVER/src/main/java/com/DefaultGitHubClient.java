@@ -19,6 +19,11 @@ public class DefaultGitHubClient implements GitHubClient {
 
     @Override
     public void postStatus(String owner, String repo, String commitSHA, String state) {
+        postStatus(owner, repo, commitSHA, state, getDescription(state));
+    }
+
+    @Override
+    public void postStatus(String owner, String repo, String commitSHA, String state, String description) {
 
         String token = System.getenv("GITHUB_TOKEN");
         if (token == null || token.isEmpty()) {
@@ -27,7 +32,6 @@ public class DefaultGitHubClient implements GitHubClient {
 
 
         String url = String.format("%s/repos/%s/%s/statuses/%s", baseUrl, owner, repo, commitSHA);
-        String description = getDescription(state);
         String context = "continuous-integration/jetty";
         String jsonBody = String.format(
             "{\"state\": \"%s\", \"context\": \"%s\", \"description\": \"%s\"}",
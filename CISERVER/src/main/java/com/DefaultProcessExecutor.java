@@ -1,29 +1,125 @@
 package com;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 
 
 /*
  * The process executor that is used in a number of differernt places for executing code.
  * 
+ * The output is read line by line and only its last tailChars characters are kept
+ * in memory. Processes of a job that has a BuildLog are streamed into the log.
+ * It is read in chunks of MAX_LINE characters, and a line longer than that is
+ * passed on in pieces of at most MAX_LINE, so an output without newlines can't
+ * fill the memory.
  */
 public class DefaultProcessExecutor implements ProcessExecutor {
+    static final int MAX_LINE = 8192;
+
+    private final int tailChars;
+
+    // Executor with the tail size taken from CIConfig.
+    public DefaultProcessExecutor() {
+        this(CIConfig.getInt("ci.log.tailChars", 64 * 1024));
+    }
+
+    public DefaultProcessExecutor(int tailChars) {
+        this.tailChars = tailChars;
+    }
+
     @Override
     public ProcessResult execute(ProcessBuilder pb) throws IOException, InterruptedException {
+        return execute(pb, null, null);
+    }
+
+    @Override
+    public ProcessResult execute(ProcessBuilder pb, BuildJob job) throws IOException, InterruptedException {
+        return execute(pb, job, job != null ? job.getLog() : null);
+    }
+
+    /*
+     * Like execute(pb, job), with the output going to the sink. Job and sink may be null.
+     */
+    @Override
+    public ProcessResult execute(ProcessBuilder pb, BuildJob job, OutputSink sink) throws IOException, InterruptedException {
         pb.redirectErrorStream(true);
         Process process = pb.start();
-        StringBuilder output = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
+        if (job != null) {
+            job.attachProcess(process);
+        }
+        try {
+            TailBuffer tail = new TailBuffer(tailChars);
+            try (Reader reader = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+                readLines(reader, line -> {
+                    tail.line(line);
+                    if (sink != null) {
+                        sink.line(line);
+                    }
+                });
+            } catch (IOException e) {
+                // Killing the process of a cancelled job closes its output stream.
+                if (job == null || !job.isCancelled()) {
+                    throw e;
+                }
+            }
+            int exitCode = process.waitFor();
+            BuildLog log = sink instanceof BuildLog ? (BuildLog) sink : null;
+            if (log != null) {
+                log.flush();
+            }
+            return new ProcessResult(exitCode, tail.toString(), log);
+        } finally {
+            if (job != null) {
+                job.detachProcess(process);
             }
         }
-        int exitCode = process.waitFor();
-        return new ProcessResult(exitCode, output.toString());
+    }
+
+    /*
+     * Passes the lines of the reader to out, ended by \n, \r or \r\n as with
+     * BufferedReader.readLine. A line longer than MAX_LINE is passed on in pieces
+     * of MAX_LINE characters.
+     */
+    static void readLines(Reader reader, OutputSink out) throws IOException {
+        char[] buffer = new char[MAX_LINE];
+        StringBuilder line = new StringBuilder();
+        boolean afterReturn = false;
+        // A newline right after a piece ends nothing more.
+        boolean afterPiece = false;
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            // The characters of the line from start on are still in the buffer.
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (c != '\n' && c != '\r') {
+                    afterReturn = false;
+                    afterPiece = false;
+                    if (line.length() + i + 1 - start == MAX_LINE) {
+                        line.append(buffer, start, i + 1 - start);
+                        out.line(line.toString());
+                        line.setLength(0);
+                        start = i + 1;
+                        afterPiece = true;
+                    }
+                    continue;
+                }
+                line.append(buffer, start, i - start);
+                start = i + 1;
+                boolean ended = c == '\n' && afterReturn || afterPiece;
+                afterReturn = c == '\r';
+                afterPiece = false;
+                if (!ended) {
+                    out.line(line.toString());
+                }
+                line.setLength(0);
+            }
+            line.append(buffer, start, read - start);
+        }
+        if (line.length() > 0) {
+            out.line(line.toString());
+        }
     }
 }
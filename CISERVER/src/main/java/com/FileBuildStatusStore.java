@@ -1,56 +1,610 @@
 package com;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class FileBuildStatusStore {
-    private static final String FILE_PATH = "build_statuses.json";
+/*
+ * Keeps the build statuses in memory and on disk.
+ *
+ * build_statuses.json is a snapshot of all statuses. Every status added or
+ * updated since is appended to build_statuses.journal as one line of JSON, so a
+ * write costs one record instead of the whole history. After COMPACT_AFTER
+ * records the statuses are written to a new snapshot and the journal starts over.
+ *
+ * The statuses in memory are an immutable BuildStatusSnapshot. Readers take the
+ * current one without locking and always see a consistent version; writers
+ * take a lock, make the next version and publish it through a volatile field.
+ *
+ * The records are written by a writer thread that takes all records waiting at
+ * once and writes them with one call, so writes never wait for the disk. With ci.store.fsyncMillis at 0 every
+ * batch is synced before the futures returned by addStatus and updateStatus
+ * complete; above 0 the journal is synced at most that often, and the futures
+ * complete once the records are written.
+ *
+ * Only the newest ci.store.recentWindow statuses are kept in memory. The older
+ * ones are read from the snapshot when they are needed, through the index
+ * build_statuses.idx (see StatusFile), so startup takes about as long as the
+ * window and the journal, not the whole history. After a new snapshot is
+ * written the statuses that fell out of the window are dropped from memory.
+ *
+ * When the store is opened the journal is replayed on top of the snapshot. A
+ * record cut off by a crash while it was appended is dropped and cut from the
+ * journal; a damaged snapshot keeps the statuses before the damage.
+ *
+ * Statuses the RetentionPolicy no longer keeps are moved to the archive in
+ * build_statuses.archive (see BuildStatusArchive) by a background thread, at
+ * most every ci.store.retentionMinutes, and then left out of the next snapshot.
+ *
+ * The files are in one directory, the working directory by default. Only one
+ * store may use a directory at a time.
+ */
+public class FileBuildStatusStore implements BuildStatusStore {
+    static final String FILE_NAME = "build_statuses.json";
+    static final String JOURNAL_NAME = "build_statuses.journal";
+    static final String INDEX_NAME = "build_statuses.idx";
+    static final String ARCHIVE_NAME = "build_statuses.archive";
+    // The newest statuses that are kept in memory.
+    private static final int RECENT_WINDOW = CIConfig.getInt("ci.store.recentWindow", 1000);
+    // Journal records after which a new snapshot is written.
+    private static final int COMPACT_AFTER = CIConfig.getInt("ci.store.compactAfter", 1000);
+    // 0 to sync every batch, otherwise the longest time written records may stay unsynced.
+    private static final long FSYNC_MILLIS = CIConfig.getLong("ci.store.fsyncMillis", 0);
+    private static final int MAX_BATCH = 512;
     private static final ObjectMapper mapper = new ObjectMapper();
-    private static List<BuildStatus> statuses = new ArrayList<>();
-    public static int initialCount = 0;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File indexFile;
+    private volatile BuildStatusSnapshot current = BuildStatusSnapshot.EMPTY;
+    // Held while a new version is made and its record queued, so the journal has the same order.
+    private final Object writeLock = new Object();
+    private int initialCount = 0;
+    private volatile int journalRecords;
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private final RetentionPolicy retention;
+    private final BuildStatusArchive archive;
+    // Held for a whole retention run, so that two runs don't archive the same statuses.
+    private final Object retentionLock = new Object();
+    // Snapshots written, changed with writeLock held; a retention run gives up if one was written meanwhile.
+    private int snapshotWrites;
+    // While a retention run is going on the journal is not compacted on its own, so that the run can finish.
+    private volatile boolean retaining;
+    private long lastRetention;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong lastModified = new AtomicLong(System.currentTimeMillis());
+    private final ExecutorService retainer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "status-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    static {
-        File file = new File(FILE_PATH);
-        if (file.exists() && file.length() > 0) {
+    // A record for the writer, or with no record a request to sync (or compact).
+    private static class Write {
+        final byte[] record;
+        final boolean compact;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(byte[] record, boolean compact) {
+            this.record = record;
+            this.compact = compact;
+        }
+    }
+
+    // A store with its files in the working directory.
+    public FileBuildStatusStore() {
+        this(new File("."));
+    }
+
+    // A store in the directory with the retention policy of the settings.
+    public FileBuildStatusStore(File directory) {
+        this(directory, RetentionPolicy.fromConfig());
+    }
+
+    public FileBuildStatusStore(File directory, RetentionPolicy retention) {
+        directory.mkdirs();
+        this.retention = retention;
+        this.archive = new BuildStatusArchive(new File(directory, ARCHIVE_NAME));
+        this.snapshotFile = new File(directory, FILE_NAME);
+        this.journalFile = new File(directory, JOURNAL_NAME);
+        this.indexFile = new File(directory, INDEX_NAME);
+        load();
+        writer = new Thread(this::writeLoop, "status-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Don't lose the last records when the server is stopped.
+        shutdownHook = new Thread(this::writePending);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Reads the snapshot and replays the journal on top of it, after writing what is queued.
+    void load() {
+        if (writer != null) {
+            flush().join();
+        }
+        synchronized (writeLock) {
+            List<StoredStatus> statuses = new ArrayList<>();
             try {
-                statuses = mapper.readValue(file, new TypeReference<List<BuildStatus>>() {});
+                statuses = StatusFile.load(snapshotFile, indexFile, RECENT_WINDOW);
+            } catch (IOException e) {
+                System.err.println("Failed to read " + snapshotFile + ": " + e);
+            }
+            try {
+                journalRecords = replayJournal(statuses);
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }else{
-            statuses = new ArrayList<>();
+            current = BuildStatusSnapshot.ofStored(statuses);
+            initialCount = statuses.size();
+            System.out.println("Loaded " + statuses.size() + " build statuses, " + current.inMemory() + " of them in memory.");
         }
-        initialCount = statuses.size();
+        touch();
+    }
+
+    /*
+     * Applies the records of the journal in order. A last record without its newline
+     * was torn by a crash and is cut off, so that the next one starts on a new line.
+     */
+    private int replayJournal(List<StoredStatus> statuses) throws IOException {
+        File journal = journalFile;
+        if (!journal.exists()) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+        Map<Object, Integer> positions = new HashMap<>();
+        for (int i = statuses.size() - 1; i >= 0; i--) {
+            positions.put(statuses.get(i).id, i);
+        }
+        int records = 0;
+        int start = 0;
+        while (start < bytes.length) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            if (end == bytes.length) {
+                System.err.println("Dropping torn record at the end of " + journal + ".");
+                try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+                    raf.setLength(start);
+                }
+                break;
+            }
+            if (end > start) {
+                try {
+                    BuildStatus status = mapper.readValue(bytes, start, end - start, BuildStatus.class);
+                    Integer position = positions.get(status.idKey());
+                    if (position != null) {
+                        statuses.set(position, new StoredStatus(status));
+                    } else {
+                        positions.put(status.idKey(), statuses.size());
+                        statuses.add(new StoredStatus(status));
+                    }
+                    records++;
+                } catch (IOException e) {
+                    System.err.println("Skipping unreadable record in " + journal + ": " + e.getMessage());
+                }
+            }
+            start = end + 1;
+        }
+        return records;
+    }
+
+    @Override
+    public CompletableFuture<Void> addStatus(BuildStatus status) {
+        byte[] record = record(status);
+        CompletableFuture<Void> done;
+        synchronized (writeLock) {
+            current = current.add(status);
+            done = enqueue(record);
+        }
+        touch();
+        notifyListeners(status);
+        scheduleRetention();
+        return done;
+    }
+
+    @Override
+    public CompletableFuture<Void> updateStatus(BuildStatus status) {
+        byte[] record = record(status);
+        CompletableFuture<Void> done;
+        synchronized (writeLock) {
+            current = current.upsert(status);
+            done = enqueue(record);
+        }
+        touch();
+        notifyListeners(status);
+        return done;
+    }
 
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
     }
 
-    public synchronized static void addStatus(BuildStatus status) {
-        statuses.add(status);
-        writeToFile();
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
     }
 
-    public synchronized static List<BuildStatus> getStatuses() {
-        return statuses;
+    @Override
+    public long getLastModified() {
+        return lastModified.get();
     }
 
-    public synchronized static BuildStatus getStatusById(String id) {
-        for (BuildStatus status : statuses) {
-            if (status.getId().equals(id)) {
-                return status;
+    // Called after every change once reads see it.
+    private void touch() {
+        long now = System.currentTimeMillis();
+        lastModified.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    private void notifyListeners(BuildStatus status) {
+        for (Listener listener : listeners) {
+            try {
+                listener.statusChanged(status);
+            } catch (RuntimeException e) {
+                System.err.println("Build status listener failed: " + e);
             }
         }
-        return null;
     }
 
-    private static void writeToFile() {
+    // The current version of all statuses. Use it for reads that must agree with each other.
+    public BuildStatusSnapshot snapshot() {
+        return current;
+    }
+
+    // All statuses of the current version, as an unmodifiable list.
+    public List<BuildStatus> getStatuses() {
+        return current.getStatuses();
+    }
+
+    @Override
+    public BuildStatus getStatusById(String id) {
+        return current.getStatusById(id);
+    }
+
+    @Override
+    public List<BuildStatus> getLatestBuilds(String repoName, String branch, int limit) {
+        return current.getLatestBuilds(repoName, branch, limit);
+    }
+
+    @Override
+    public List<BuildStatus> getBuildsByCommit(String commitSHA) {
+        return current.getBuildsByCommit(commitSHA);
+    }
+
+    // See BuildStatusSnapshot.page.
+    @Override
+    public BuildStatusPage getPage(String repoName, String branch, String commitSHA, String cursor, int limit) {
+        return current.page(repoName, branch, commitSHA, cursor, limit);
+    }
+
+    @Override
+    public int size() {
+        return current.size();
+    }
+
+    @Override
+    public int getInitialCount() {
+        return initialCount;
+    }
+
+    @Override
+    public BuildStatus getLastAdded() {
+        BuildStatusSnapshot snapshot = current;
+        return snapshot.size() == 0 ? null : snapshot.get(snapshot.size() - 1);
+    }
+
+    // Forgets the statuses in memory without touching the files, e.g. between tests.
+    public void clear() {
+        synchronized (writeLock) {
+            current = BuildStatusSnapshot.EMPTY;
+        }
+        touch();
+    }
+
+    // Completes once everything queued before is written and synced.
+    @Override
+    public CompletableFuture<Void> flush() {
+        Write write = new Write(null, false);
+        writes.add(write);
+        return write.done;
+    }
+
+    @Override
+    public BuildStatus getArchivedStatus(String id) {
+        return archive.get(id);
+    }
+
+    @Override
+    public List<BuildStatus> searchArchive(String repoName, String branch, String commitSHA, int limit) {
+        return archive.search(repoName, branch, commitSHA, limit);
+    }
+
+    // Applies the retention policy on the background thread, at most every RetentionPolicy.INTERVAL_MILLIS.
+    private synchronized void scheduleRetention() {
+        long now = System.currentTimeMillis();
+        if (retention.keepsAll() || now - lastRetention < RetentionPolicy.INTERVAL_MILLIS) {
+            return;
+        }
+        lastRetention = now;
+        retainer.submit(() -> {
+            try {
+                applyRetention();
+            } catch (RuntimeException e) {
+                System.err.println("Applying the build status retention failed: " + e);
+            }
+        });
+    }
+
+    /*
+     * Moves the statuses the retention policy doesn't keep to the archive, drops
+     * them from memory and writes a snapshot without them. The archive is
+     * written, and the next version built, from the version the run started
+     * with and without the write lock, so readers and writers go on meanwhile;
+     * only the writes made since are applied with the lock held. A status that
+     * changed since is kept. The journal is not compacted on its own meanwhile;
+     * if a snapshot is written anyway, e.g. by compact(), the run stops and the
+     * next one only drops the statuses, which are archived by then.
+     */
+    @Override
+    public int applyRetention() {
+        if (retention.keepsAll()) {
+            return 0;
+        }
+        synchronized (retentionLock) {
+            retaining = true;
+            try {
+                return retain();
+            } finally {
+                retaining = false;
+            }
+        }
+    }
+
+    private int retain() {
+        BuildStatusSnapshot base;
+        int writes;
+        synchronized (writeLock) {
+            base = current;
+            writes = snapshotWrites;
+        }
+        long now = System.currentTimeMillis();
+        Map<String, Integer> newer = new HashMap<>();
+        Set<StoredStatus> expired = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<BuildStatus> batch = new ArrayList<>();
+        try {
+            for (StoredStatus stored : base.newestFirst()) {
+                int count = newer.merge(BuildStatusSnapshot.branchKey(stored.repo, stored.branch), 1, Integer::sum) - 1;
+                if (retention.keeps(count, stored.timestamp, now)) {
+                    continue;
+                }
+                expired.add(stored);
+                if (!archive.contains(StatusKeys.text(stored.id))) {
+                    batch.add(stored.get());
+                }
+                if (batch.size() == BuildStatusArchive.SEGMENT_SIZE) {
+                    archive.append(batch);
+                    batch.clear();
+                }
+            }
+            archive.append(batch);
+        } catch (IOException e) {
+            System.err.println("Failed to archive build statuses, keeping them: " + e);
+            return 0;
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        List<StoredStatus> kept = new ArrayList<>(base.size() - expired.size());
+        for (StoredStatus stored : base.getStored()) {
+            if (!expired.contains(stored)) {
+                kept.add(stored);
+            }
+        }
+        BuildStatusSnapshot without = BuildStatusSnapshot.ofStored(kept);
+        synchronized (writeLock) {
+            if (snapshotWrites != writes) {
+                System.out.println("A snapshot was written while archiving build statuses, dropping them next time.");
+                return 0;
+            }
+            current = current.rebase(base, without);
+        }
+        touch();
+        try {
+            compact();
+        } catch (IOException e) {
+            System.err.println("Failed to write the build statuses after archiving: " + e.getMessage());
+        }
+        System.out.println("Archived " + expired.size() + " build statuses, " + size() + " remain.");
+        return expired.size();
+    }
+
+    @Override
+    public void close() {
+        retainer.shutdownNow();
+        writePending();
+        writer.interrupt();
+        try {
+            writer.join(5000);
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            // Closed by the shutdown hook itself.
+        }
+    }
+
+    private void writePending() {
+        try {
+            flush().get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.err.println("Failed to write the last build statuses: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Writes all statuses to a new snapshot and empties the journal, after the
+     * queued records. The snapshot replaces the old one atomically; if the journal
+     * isn't emptied because of a crash, replaying it again gives the same statuses.
+     */
+    void compact() throws IOException {
+        Write write = new Write(null, true);
+        writes.add(write);
+        try {
+            write.done.join();
+        } catch (RuntimeException e) {
+            throw new IOException("Compacting the build statuses failed", e.getCause());
+        }
+    }
+
+    // The status as a journal line, taken now so that later changes to the object don't matter.
+    private static byte[] record(BuildStatus status) {
+        try {
+            byte[] json = mapper.writeValueAsBytes(status);
+            byte[] record = new byte[json.length + 1];
+            System.arraycopy(json, 0, record, 0, json.length);
+            record[json.length] = '\n';
+            return record;
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Build status can't be written as JSON", e);
+        }
+    }
+
+    // Called with writeLock held, so the journal has the records in the order of the changes.
+    private CompletableFuture<Void> enqueue(byte[] record) {
+        Write write = new Write(record, false);
+        writes.add(write);
+        return write.done;
+    }
+
+    /*
+     * The writer thread: waits for records, writes everything queued as one batch
+     * and syncs it as configured. With FSYNC_MILLIS it wakes up to sync records that
+     * were written but not synced in time.
+     */
+    private void writeLoop() {
+        FileChannel journal = null;
+        boolean unsynced = false;
+        long lastSync = System.currentTimeMillis();
+        List<Write> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Write first;
+                if (unsynced) {
+                    long wait = Math.max(0, lastSync + FSYNC_MILLIS - System.currentTimeMillis());
+                    first = writes.poll(wait, TimeUnit.MILLISECONDS);
+                } else {
+                    first = writes.take();
+                }
+                batch.clear();
+                if (first != null) {
+                    batch.add(first);
+                    writes.drainTo(batch, MAX_BATCH - 1);
+                }
+                try {
+                    boolean forceSync = false;
+                    boolean compact = false;
+                    List<ByteBuffer> records = new ArrayList<>(batch.size());
+                    for (Write write : batch) {
+                        if (write.record != null) {
+                            records.add(ByteBuffer.wrap(write.record));
+                        } else {
+                            forceSync = true;
+                            compact |= write.compact;
+                        }
+                    }
+                    if (!records.isEmpty()) {
+                        journal = openJournal(journal);
+                        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+                        while (buffers[buffers.length - 1].hasRemaining()) {
+                            journal.write(buffers);
+                        }
+                        journalRecords += records.size();
+                        unsynced = true;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (unsynced && (forceSync || FSYNC_MILLIS <= 0 || now - lastSync >= FSYNC_MILLIS)) {
+                        journal.force(false);
+                        unsynced = false;
+                        lastSync = now;
+                    }
+                    if (compact || journalRecords >= COMPACT_AFTER && !retaining) {
+                        closeQuietly(journal);
+                        journal = null;
+                        writeSnapshot();
+                    }
+                    for (Write write : batch) {
+                        write.done.complete(null);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    closeQuietly(journal);
+                    journal = null;
+                    for (Write write : batch) {
+                        write.done.completeExceptionally(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                closeQuietly(journal);
+                return;
+            }
+        }
+    }
+
+    // The open journal, opened again if the file was removed, e.g. by hand.
+    private FileChannel openJournal(FileChannel journal) throws IOException {
+        if (journal != null && journalFile.exists()) {
+            return journal;
+        }
+        closeQuietly(journal);
+        return FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /*
+     * Writes the current version to a new snapshot and then lets the statuses
+     * that are in it and did not change meanwhile be read from there.
+     */
+    private void writeSnapshot() throws IOException {
+        BuildStatusSnapshot written = current;
+        List<StoredStatus> moved = StatusFile.write(snapshotFile, indexFile, written.getStored(), RECENT_WINDOW);
+        Files.deleteIfExists(journalFile.toPath());
+        journalRecords = 0;
+        synchronized (writeLock) {
+            current = current.relocate(written, moved);
+            snapshotWrites++;
+        }
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
         try {
-            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(FILE_PATH), statuses);
+            channel.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("Failed to close " + journalFile + ": " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
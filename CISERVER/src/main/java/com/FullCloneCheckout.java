@@ -0,0 +1,58 @@
+package com;
+
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Clones the whole repository and then checks out the commit.
+ */
+public class FullCloneCheckout implements CheckoutStrategy {
+    private final ProcessExecutor processExecutor;
+
+    public FullCloneCheckout(ProcessExecutor processExecutor) {
+        this.processExecutor = processExecutor;
+    }
+
+    @Override
+    public void checkout(String owner, String repo, String cloneUrl, String commitSHA,
+                         File workspace, BuildJob job) throws Exception {
+        workspace.mkdirs();
+        boolean done = false;
+        try {
+            // Clone the repository into the workspace.
+            ProcessBuilder clonePB = new ProcessBuilder("git", "clone", cloneUrl, workspace.getAbsolutePath());
+            ProcessResult cloneResult = execute(clonePB, job);
+            if (cloneResult.getExitCode() != 0) {
+                throw new Exception("Git clone failed: " + cloneResult.getOutput());
+            }
+
+            // Check out the specific commit.
+            ProcessBuilder checkoutPB = new ProcessBuilder("git", "checkout", commitSHA);
+            checkoutPB.directory(workspace);
+            ProcessResult checkoutResult = execute(checkoutPB, job);
+            if (checkoutResult.getExitCode() != 0) {
+                throw new Exception("Git checkout of commit " + commitSHA + " failed: " + checkoutResult.getOutput());
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                cleanup(owner, repo, workspace);
+            }
+        }
+    }
+
+    @Override
+    public void cleanup(String owner, String repo, File workspace) {
+        // delete the workspace (clone of the repository)
+        try {
+            FileUtils.deleteDirectory(workspace);
+        } catch (IOException e) {
+            System.out.println("Failed to delete workspace: " + e.getMessage());
+        }
+    }
+
+    private ProcessResult execute(ProcessBuilder pb, BuildJob job) throws IOException, InterruptedException {
+        return job == null ? processExecutor.execute(pb) : processExecutor.execute(pb, job);
+    }
+}
@@ -7,4 +7,11 @@ package com;
  */
 public interface GitHubClient {
     void postStatus(String owner, String repo, String commitSHA, String state);
+
+    /*
+     * Posts a status with a custom description instead of the one derived from the state.
+     */
+    default void postStatus(String owner, String repo, String commitSHA, String state, String description) {
+        postStatus(owner, repo, commitSHA, state);
+    }
 }
\ No newline at end of file
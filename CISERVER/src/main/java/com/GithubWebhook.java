@@ -14,7 +14,12 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -29,16 +34,111 @@ public class GithubWebhook extends HttpServlet {
     // Injected collaborators
     private ProcessExecutor processExecutor;
     private GitHubClient gitHubClient;
+    private BuildStatusStore statusStore;
+    // Null when builds run synchronously inside doPost.
+    private BuildQueue buildQueue;
+    // How workspaces are checked out, by default and for single repositories ("owner/repo").
+    private CheckoutStrategy defaultCheckout;
+    private final Map<String, CheckoutStrategy> repoCheckouts = new ConcurrentHashMap<>();
+    // Run compile and test as one Maven invocation instead of two.
+    private boolean mergePhases;
+    // Local Maven repositories for the builds, null to use the default ~/.m2.
+    private MavenRepositoryCache mavenRepositoryCache;
+    // Results of trees built before, null to always build.
+    private BuildResultCache buildResultCache;
+    private final BuildMetrics metrics = new BuildMetrics();
+    // Where the output of every build is kept, null to keep only the tails.
+    private BuildLogStore buildLogStore;
 
     // Default constructor used in production
     public GithubWebhook() {
-        this(new DefaultProcessExecutor(), new DefaultGitHubClient());
+        this(new DefaultProcessExecutor(), new DefaultGitHubClient(), new FileBuildStatusStore(), new BuildQueue());
     }
 
-    // Constructor for injecting mocks in tests
-    public GithubWebhook(ProcessExecutor processExecutor, GitHubClient gitHubClient) {
+    // Constructor for injecting mocks in tests, builds run synchronously
+    public GithubWebhook(ProcessExecutor processExecutor, GitHubClient gitHubClient, BuildStatusStore statusStore) {
         this.processExecutor = processExecutor;
         this.gitHubClient = gitHubClient;
+        this.statusStore = statusStore;
+        this.defaultCheckout = new FullCloneCheckout(processExecutor);
+    }
+
+    // Constructor for the asynchronous mode, builds are put on the given queue
+    public GithubWebhook(ProcessExecutor processExecutor, GitHubClient gitHubClient, BuildStatusStore statusStore,
+                         BuildQueue buildQueue) {
+        this(processExecutor, gitHubClient, statusStore);
+        this.buildQueue = buildQueue;
+    }
+
+    @Override
+    public void init() {
+        if (buildQueue != null) {
+            buildQueue.start(this::executeBuild, this::recordSuperseded);
+        }
+    }
+
+    // The queue builds are put on, or null in the synchronous mode.
+    public BuildQueue getBuildQueue() {
+        return buildQueue;
+    }
+
+    // Sets how repositories without a strategy of their own are checked out.
+    public void setCheckoutStrategy(CheckoutStrategy checkout) {
+        this.defaultCheckout = checkout;
+    }
+
+    // Sets how one repository is checked out.
+    public void setCheckoutStrategy(String owner, String repo, CheckoutStrategy checkout) {
+        repoCheckouts.put(owner + "/" + repo, checkout);
+    }
+
+    public CheckoutStrategy getCheckoutStrategy(String owner, String repo) {
+        return repoCheckouts.getOrDefault(owner + "/" + repo, defaultCheckout);
+    }
+
+    /*
+     * With merged phases a build is a single "mvn clean test", which saves one Maven
+     * startup per build. Compile errors are then only reported as a failed build.
+     */
+    public void setMergePhases(boolean mergePhases) {
+        this.mergePhases = mergePhases;
+    }
+
+    public boolean isMergePhases() {
+        return mergePhases;
+    }
+
+    // Sets the local Maven repositories builds use, null for the default one.
+    public void setMavenRepositoryCache(MavenRepositoryCache mavenRepositoryCache) {
+        this.mavenRepositoryCache = mavenRepositoryCache;
+    }
+
+    // Sets the cache of successful builds per tree, null to always build.
+    public void setBuildResultCache(BuildResultCache buildResultCache) {
+        this.buildResultCache = buildResultCache;
+    }
+
+    // Sets where build logs are kept, null for no logs.
+    public void setBuildLogStore(BuildLogStore buildLogStore) {
+        this.buildLogStore = buildLogStore;
+    }
+
+    public BuildLogStore getBuildLogStore() {
+        return buildLogStore;
+    }
+
+    public BuildMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void destroy() {
+        if (buildQueue != null) {
+            buildQueue.shutdown();
+        }
+        if (mavenRepositoryCache != null) {
+            mavenRepositoryCache.shutdown();
+        }
     }
 
     /*
@@ -51,8 +151,9 @@ public class GithubWebhook extends HttpServlet {
 
 
     /*
-     * The webhook is handled here and the 
-     * 
+     * The webhook is handled here. In the asynchronous mode the build is only
+     * queued and GitHub gets a 202 with the build id, otherwise the build runs
+     * before the response is sent.
      */
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -62,54 +163,16 @@ public class GithubWebhook extends HttpServlet {
             try (InputStream inputStream = request.getInputStream()) {
                 payload = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
             }
+            BuildJob job = parsePayload(payload);
+            preseed(job);
 
-            // Default values if extraction fails
-            String repoName = "unknown";
-            String commitSHA = "unknown";
-            String branch = "unknown";
-            String ownerLogin = "unknown";
-            try {
-                ObjectMapper mapper = new ObjectMapper();
-                JsonNode root = mapper.readTree(payload);
-                commitSHA = root.path("after").asText();
-                JsonNode repoNode = root.path("repository");
-                repoName = repoNode.path("name").asText();
-                ownerLogin = repoNode.path("owner").path("login").asText();
-                branch = root.path("ref").asText();
-
-                System.out.println("Owner Login: " + ownerLogin);
-                System.out.println("Repository: " + repoName);
-                System.out.println("Commit SHA (after): " + commitSHA);
-                System.out.println("Branch: " + branch);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            
-            int exitCode = 0;
-            String buildErrorDetails = "";
-            try {
-                runBuildAtCommit(ownerLogin, repoName, commitSHA);
-
-            } catch (Exception e) {
-                buildErrorDetails = e.getMessage();
-                exitCode = 1;
+            if (buildQueue != null) {
+                enqueueBuild(job, response);
+                return;
             }
 
-            // Prepare build status information.
-            boolean success = exitCode == 0;
-            String statusString = success ? "success" : "failure";
-            String details = success ? "Build succeeded." : "Build and/or tests failed: " + buildErrorDetails;
-
-            // Create a BuildStatus object and save it.
-            BuildStatus buildStatus = new BuildStatus(repoName, commitSHA, branch, success, details);
-            FileBuildStatusStore.addStatus(buildStatus);
-
-            System.out.println("Posting to GitHub.");
-            gitHubClient.postStatus(ownerLogin, repoName, commitSHA, statusString);
-
-
             // Respond based on the build result
-            if (exitCode == 0) {
+            if (executeBuild(job)) {
                 response.setStatus(HttpServletResponse.SC_OK);
                 response.getWriter().println("Build succeeded.");
             } else {
@@ -122,62 +185,325 @@ public class GithubWebhook extends HttpServlet {
         }
     }
 
+    /*
+     * Extracts the repository, commit and branch of a push event.
+     * Fields that can't be read are set to "unknown".
+     */
+    private BuildJob parsePayload(String payload) {
+        // Default values if extraction fails
+        String repoName = "unknown";
+        String commitSHA = "unknown";
+        String branch = "unknown";
+        String ownerLogin = "unknown";
+        try {
+            ObjectMapper mapper = new ObjectMapper();
+            JsonNode root = mapper.readTree(payload);
+            commitSHA = root.path("after").asText();
+            JsonNode repoNode = root.path("repository");
+            repoName = repoNode.path("name").asText();
+            ownerLogin = repoNode.path("owner").path("login").asText();
+            branch = root.path("ref").asText();
+
+            System.out.println("Owner Login: " + ownerLogin);
+            System.out.println("Repository: " + repoName);
+            System.out.println("Commit SHA (after): " + commitSHA);
+            System.out.println("Branch: " + branch);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new BuildJob(ownerLogin, repoName, branch, commitSHA);
+    }
+
+    /*
+     * Starts resolving the dependencies of a repository that was never built before,
+     * so that they are there by the time the build runs.
+     */
+    private void preseed(BuildJob job) {
+        String cloneUrl = cloneUrl(job.getOwner(), job.getRepoName());
+        if (mavenRepositoryCache == null || cloneUrl == null) {
+            return;
+        }
+        mavenRepositoryCache.preseed(job.getOwner(), job.getRepoName(), cloneUrl, job.getCommitSHA(),
+                                     getCheckoutStrategy(job.getOwner(), job.getRepoName()));
+    }
+
+    /*
+     * Records a pending status for the job and puts it on the build queue.
+     * Answers 202 with the build id, or 503 if the queue is full.
+     */
+    private void enqueueBuild(BuildJob job, HttpServletResponse response) throws IOException {
+        BuildStatus pending = new BuildStatus(job.getRepoName(), job.getCommitSHA(), job.getBranch(), false, "Build queued.");
+        pending.setId(job.getId());
+        pending.setState(BuildStatus.STATE_PENDING);
+        statusStore.addStatus(pending);
+
+        if (!buildQueue.submit(job)) {
+            BuildStatus rejected = new BuildStatus(job.getRepoName(), job.getCommitSHA(), job.getBranch(), false, "Build queue is full.");
+            rejected.setId(job.getId());
+            rejected.setState(BuildStatus.STATE_ERROR);
+            statusStore.updateStatus(rejected);
+
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.getWriter().println("Build queue is full, try again later.");
+            return;
+        }
+
+        System.out.println("Queued build " + job);
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.setHeader("Location", "/buildDetail?id=" + job.getId());
+        response.getWriter().println("Build queued with id " + job.getId());
+    }
+
+    /*
+     * Runs the build of a job, saves its BuildStatus and posts the result to GitHub.
+     * Called from doPost in the synchronous mode and from the queue workers otherwise.
+     * Returns true if the build succeeded.
+     */
+    protected boolean executeBuild(BuildJob job) {
+        long start = System.currentTimeMillis();
+        int exitCode = 0;
+        String buildErrorDetails = "";
+        openLog(job);
+        try {
+            runBuildAtCommit(job.getOwner(), job.getRepoName(), job.getCommitSHA(), job);
+
+        } catch (Exception e) {
+            buildErrorDetails = e.getMessage();
+            exitCode = 1;
+        } finally {
+            closeLog(job);
+        }
+
+        // A cancelled build failed because its processes were killed, not because of the code.
+        if (job.isCancelled()) {
+            recordSuperseded(job, job.getCancelReason());
+            return false;
+        }
+
+        // Prepare build status information.
+        boolean success = exitCode == 0;
+        String statusString = success ? "success" : "failure";
+        // The output is in the build log, so the status only says what failed.
+        if (job.getLog() != null) {
+            buildErrorDetails = firstLine(buildErrorDetails);
+        }
+        String details = success ? "Build succeeded." : "Build and/or tests failed: " + buildErrorDetails;
+        boolean cached = success && job.getCachedFrom() != null;
+        if (cached) {
+            details = "Build succeeded. The same tree was built by build " + job.getCachedFrom() + ".";
+        }
+        metrics.buildFinished(success, System.currentTimeMillis() - start);
+
+        // Create a BuildStatus object and save it, replacing the pending one if there is one.
+        BuildStatus buildStatus = new BuildStatus(job.getRepoName(), job.getCommitSHA(), job.getBranch(), success, details);
+        buildStatus.setId(job.getId());
+        if (cached) {
+            buildStatus.setCachedFrom(job.getCachedFrom());
+        }
+        statusStore.updateStatus(buildStatus);
+
+        System.out.println("Posting to GitHub.");
+        if (cached) {
+            gitHubClient.postStatus(job.getOwner(), job.getRepoName(), job.getCommitSHA(), statusString,
+                                    "Build succeeded (same tree as an earlier build).");
+        } else {
+            gitHubClient.postStatus(job.getOwner(), job.getRepoName(), job.getCommitSHA(), statusString);
+        }
+        return success;
+    }
+
+    private void openLog(BuildJob job) {
+        if (buildLogStore == null) {
+            return;
+        }
+        try {
+            job.setLog(buildLogStore.open(job.getId()));
+        } catch (IOException e) {
+            System.err.println("Failed to create build log for " + job + ": " + e.getMessage());
+        }
+    }
+
+    // Closes the log of a finished build and compresses it in the store.
+    private void closeLog(BuildJob job) {
+        BuildLog log = job.getLog();
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+            buildLogStore.seal(job.getId());
+        } catch (IOException e) {
+            System.err.println("Failed to close build log " + log.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    private static String firstLine(String text) {
+        if (text == null) {
+            return null;
+        }
+        int end = text.indexOf('\n');
+        return end < 0 ? text : text.substring(0, end);
+    }
+
+    /*
+     * Called by the queue when a queued job was dropped for a newer commit on the same branch.
+     */
+    private void recordSuperseded(BuildJob job, BuildJob newer) {
+        recordSuperseded(job, "Superseded by commit " + newer.getCommitSHA());
+    }
+
+    /*
+     * Saves a superseded BuildStatus for the job and tells GitHub that it won't be built.
+     */
+    private void recordSuperseded(BuildJob job, String reason) {
+        BuildStatus buildStatus = new BuildStatus(job.getRepoName(), job.getCommitSHA(), job.getBranch(), false, reason);
+        buildStatus.setId(job.getId());
+        buildStatus.setState(BuildStatus.STATE_SUPERSEDED);
+        statusStore.updateStatus(buildStatus);
+        metrics.buildSuperseded();
+
+        try {
+            gitHubClient.postStatus(job.getOwner(), job.getRepoName(), job.getCommitSHA(), "error", reason);
+        } catch (RuntimeException e) {
+            System.err.println("Failed to post superseded status for " + job + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * The URL to clone a repository from with the token of GITHUB_TOKEN in it, or
+     * null if that isn't set. Tests override it to build from a local repository.
+     */
+    protected String cloneUrl(String owner, String repo) {
+        String token = System.getenv("GITHUB_TOKEN");
+        return token == null ? null : "https://" + token + "@github.com/" + owner + "/" + repo + ".git";
+    }
+
     /*
      * Function for cloning the repo and checking out the based on the listed SHA. 
      * 
      */
     protected void runBuildAtCommit(String owner, String repo, String commitSHA) throws Exception {
-        String token = System.getenv("GITHUB_TOKEN");
-        if (token == null) {
+        runBuildAtCommit(owner, repo, commitSHA, null);
+    }
+
+    /*
+     * Like runBuildAtCommit(owner, repo, commitSHA), but the processes are run on
+     * behalf of the job so that cancelling it stops the build. The job may be null.
+     */
+    protected void runBuildAtCommit(String owner, String repo, String commitSHA, BuildJob job) throws Exception {
+        String cloneUrl = cloneUrl(owner, repo);
+        if (cloneUrl == null) {
             throw new Exception("GITHUB_TOKEN environment variable is not set.");
-         }
-        String cloneUrl = "https://" + token + "@github.com/" + owner + "/" + repo + ".git";
-        File workspace = new File("workspace_" + System.currentTimeMillis());
-        
-        workspace.mkdirs();
+        }
+        // Several builds may start in the same millisecond, so add a random part.
+        File workspace = new File("workspace_" + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8));
         System.out.println(workspace.getAbsolutePath());
+
+        CheckoutStrategy checkout = getCheckoutStrategy(owner, repo);
+        checkout.checkout(owner, repo, cloneUrl, commitSHA, workspace, job);
         try {
-            // Clone the repository into the workspace.
-            ProcessBuilder clonePB = new ProcessBuilder("git", "clone", cloneUrl, workspace.getAbsolutePath());
-            ProcessResult cloneResult = processExecutor.execute(clonePB);
-            if (cloneResult.getExitCode() != 0) {
-                throw new Exception("Git clone failed: " + cloneResult.getOutput());
+            // Without a job there is nobody to tell that the result came from the cache.
+            String cacheKey = null;
+            if (buildResultCache != null && job != null) {
+                cacheKey = buildResultCache.key(workspace, buildConfiguration(), job);
+                BuildResultCache.Entry hit = buildResultCache.get(cacheKey);
+                if (hit != null) {
+                    System.out.println("Tree of " + commitSHA + " was built by build " + hit.getBuildId() + ", skipping the build.");
+                    job.setCachedFrom(hit.getBuildId());
+                    metrics.cacheHit();
+                    return;
+                }
+                metrics.cacheMiss();
             }
-
-            // Check out the specific commit.
-            ProcessBuilder checkoutPB = new ProcessBuilder("git", "checkout", commitSHA);
-            checkoutPB.directory(workspace);
-            ProcessResult checkoutResult = processExecutor.execute(checkoutPB);
-            if (checkoutResult.getExitCode() != 0) {
-                throw new Exception("Git checkout of commit " + commitSHA + " failed: " + checkoutResult.getOutput());
+            if (mavenRepositoryCache == null) {
+                runBuildPhases(workspace, job);
+            } else {
+                runBuildPhasesWithCache(owner, repo, workspace, job);
+            }
+            if (cacheKey != null) {
+                buildResultCache.put(cacheKey, job.getId(), commitSHA);
             }
-            // Run the Maven build (compile and test) in the workspace.
-            runCompilePhase(workspace);
-            runTestPhase(workspace);
         } finally {
-            // delete the workspace (clone of the repository)
-            try{
-                FileUtils.deleteDirectory(workspace);
-                System.out.println("Deleted workspace." + workspace.getAbsolutePath());
-            } catch (IOException e) {
-                System.out.println("Failed to delete workspace: " + e.getMessage());
+            checkout.cleanup(owner, repo, workspace);
+            System.out.println("Deleted workspace." + workspace.getAbsolutePath());
+        }
+    }
+
+    /*
+     * Everything besides the source tree that decides the result of a build.
+     * Builds with a different configuration don't share cached results.
+     */
+    protected String buildConfiguration() {
+        return String.join(" ", mavenCommand(List.of(), mergePhases ? "clean test" : "clean compile, test"))
+                + "; java " + System.getProperty("java.version");
+    }
+
+    /*
+     * Runs the build phases against the local repository the cache hands out. An
+     * offline build that misses a dependency is run once more online.
+     */
+    private void runBuildPhasesWithCache(String owner, String repo, File workspace, BuildJob job) throws Exception {
+        MavenRepositoryCache.Lease lease = mavenRepositoryCache.acquire(owner, repo, workspace);
+        boolean resolved = false;
+        try {
+            try {
+                runBuildPhases(workspace, job, lease.getMavenArgs());
+            } catch (Exception e) {
+                if (!lease.isOffline() || !MavenRepositoryCache.isResolutionFailure(e.getMessage())) {
+                    throw e;
+                }
+                System.out.println("Offline build is missing dependencies, building online.");
+                runBuildPhases(workspace, job, lease.getOnlineArgs());
             }
+            resolved = true;
+        } catch (Exception e) {
+            // Compile errors and failing tests still mean that everything was resolved.
+            resolved = !MavenRepositoryCache.isResolutionFailure(e.getMessage()) && !isCancelled(job);
+            throw e;
+        } finally {
+            mavenRepositoryCache.release(lease, resolved);
         }
+    }
 
+    /*
+     * Runs the Maven build (compile and test) in the workspace.
+     */
+    protected void runBuildPhases(File workspace, BuildJob job) throws Exception {
+        runBuildPhases(workspace, job, List.of());
+    }
 
+    /*
+     * Like runBuildPhases(workspace, job), with extra arguments for every Maven run.
+     */
+    protected void runBuildPhases(File workspace, BuildJob job, List<String> mavenArgs) throws Exception {
+        checkCancelled(job);
+        if (mergePhases) {
+            runMergedPhases(workspace, job, mavenArgs);
+            return;
+        }
+        runCompilePhase(workspace, job, mavenArgs);
+        checkCancelled(job);
+        runTestPhase(workspace, job, mavenArgs);
     }
 
-    
     /**
      * Runs the Maven compile phase using ProcessBuilder.
      * Executes "mvn -B clean compile" in the current directory.
      * If the process fails, throws an Exception including the full log output.
      */
     protected void runCompilePhase(File workspace) throws Exception {
+        runCompilePhase(workspace, null);
+    }
+
+    protected void runCompilePhase(File workspace, BuildJob job) throws Exception {
+        runCompilePhase(workspace, job, List.of());
+    }
+
+    protected void runCompilePhase(File workspace, BuildJob job, List<String> mavenArgs) throws Exception {
         System.out.println("Starting compile phase...");
-        ProcessBuilder pb = new ProcessBuilder("mvn", "-B", "-f", "CISERVER/pom.xml", "clean", "compile");
+        ProcessBuilder pb = new ProcessBuilder(mavenCommand(mavenArgs, "clean", "compile"));
         pb.directory(workspace);
-        ProcessResult compileResult = processExecutor.execute(pb);
+        ProcessResult compileResult = execute(pb, job);
         System.out.println("Compile phase exit code: " + compileResult.getExitCode());
         System.out.println("Compile output:\n" + compileResult.getOutput());
         if (compileResult.getExitCode() != 0) {
@@ -189,16 +515,73 @@ public class GithubWebhook extends HttpServlet {
      * Runs the Maven test phase using the injected ProcessExecutor.
      */
     protected void runTestPhase(File workspace) throws Exception {
+        runTestPhase(workspace, null);
+    }
+
+    protected void runTestPhase(File workspace, BuildJob job) throws Exception {
+        runTestPhase(workspace, job, List.of());
+    }
+
+    protected void runTestPhase(File workspace, BuildJob job, List<String> mavenArgs) throws Exception {
         System.out.println("Starting test phase...");
-        ProcessBuilder pb = new ProcessBuilder("mvn", "-B", "-f", "CISERVER/pom.xml", "test");
+        ProcessBuilder pb = new ProcessBuilder(mavenCommand(mavenArgs, "test"));
         pb.directory(workspace);
-        ProcessResult testResult = processExecutor.execute(pb);
+        ProcessResult testResult = execute(pb, job);
         System.out.println("Test phase exit code: " + testResult.getExitCode());
         System.out.println("Test output:\n" + testResult.getOutput());
         if (testResult.getExitCode() != 0) {
             throw new Exception("Test phase failed with exit code " + testResult.getExitCode() + "\n" + testResult.getOutput());
         }
     }
+
+    /*
+     * Runs "mvn -B clean test", which compiles and tests in one Maven invocation.
+     */
+    protected void runMergedPhases(File workspace, BuildJob job, List<String> mavenArgs) throws Exception {
+        System.out.println("Starting build (compile and test)...");
+        ProcessBuilder pb = new ProcessBuilder(mavenCommand(mavenArgs, "clean", "test"));
+        pb.directory(workspace);
+        ProcessResult result = execute(pb, job);
+        System.out.println("Build exit code: " + result.getExitCode());
+        System.out.println("Build output:\n" + result.getOutput());
+        if (result.getExitCode() != 0) {
+            throw new Exception("Build failed with exit code " + result.getExitCode() + "\n" + result.getOutput());
+        }
+    }
+
+    // "mvn -B -f CISERVER/pom.xml", the extra arguments and the goals.
+    private static List<String> mavenCommand(List<String> mavenArgs, String... goals) {
+        List<String> command = new ArrayList<>(List.of("mvn", "-B", "-f", "CISERVER/pom.xml"));
+        command.addAll(mavenArgs);
+        command.addAll(Arrays.asList(goals));
+        return command;
+    }
+
+    /*
+     * Runs a process through the ProcessExecutor, on behalf of the job if there is one.
+     * If the job has a log the command and its output are streamed into it.
+     */
+    private ProcessResult execute(ProcessBuilder pb, BuildJob job) throws IOException, InterruptedException {
+        if (job == null) {
+            return processExecutor.execute(pb);
+        }
+        BuildLog log = job.getLog();
+        if (log == null) {
+            return processExecutor.execute(pb, job);
+        }
+        log.line("$ " + String.join(" ", pb.command()));
+        return processExecutor.execute(pb, job, log);
+    }
+
+    private static boolean isCancelled(BuildJob job) {
+        return job != null && job.isCancelled();
+    }
+
+    private static void checkCancelled(BuildJob job) throws Exception {
+        if (job != null && job.isCancelled()) {
+            throw new Exception("Build cancelled: " + job.getCancelReason());
+        }
+    }
 }
 
 
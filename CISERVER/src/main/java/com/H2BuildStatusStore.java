@@ -0,0 +1,585 @@
+package com;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+/*
+ * Keeps the build statuses in an embedded H2 database, for histories too long
+ * to keep in memory. Every status is one row with its JSON, the same as in
+ * build_statuses.json, and the values it is looked up by in columns of their
+ * own. The lookups and pages are queries on indexes that end with the build
+ * time and position, so a page costs about as much as the builds on it.
+ *
+ * Every write is a transaction of its own. H2 writes committed transactions to
+ * its file only within about a second, so the futures are completed by a sync
+ * thread that takes all writes committed meanwhile and syncs them with one
+ * CHECKPOINT SYNC. As with FileBuildStatusStore, with ci.store.fsyncMillis
+ * above 0 the futures complete once the write is committed and the database is
+ * synced at most that often.
+ *
+ * Statuses the RetentionPolicy no longer keeps are moved to a BuildStatusArchive
+ * by a background thread, at most every ci.store.retentionMinutes.
+ *
+ * Statuses can be moved over from a FileBuildStatusStore with copyFrom.
+ */
+public class H2BuildStatusStore implements BuildStatusStore {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    // H2's SQL state for a violated unique index.
+    private static final String DUPLICATE_KEY = "23505";
+    private static final long FSYNC_MILLIS = CIConfig.getLong("ci.store.fsyncMillis", 0);
+    private static final int MAX_BATCH = 512;
+
+    private final JdbcConnectionPool pool;
+    private final RetentionPolicy retention;
+    private final BuildStatusArchive archive;
+    private final Object retentionLock = new Object();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong lastModified = new AtomicLong(System.currentTimeMillis());
+    private int initialCount;
+    private long lastRetention;
+    // Committed writes waiting for a sync; a forced one is a flush.
+    private final BlockingQueue<Sync> syncs = new LinkedBlockingQueue<>();
+    private final Thread syncer;
+    private volatile long syncCount;
+    private final ExecutorService retainer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "status-retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Sync {
+        final boolean force;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Sync(boolean force) {
+            this.force = force;
+        }
+    }
+
+    /*
+     * url is an H2 JDBC URL, e.g. jdbc:h2:./build_statuses for build_statuses.mv.db.
+     * The archive is build_statuses.archive in the working directory, the same
+     * as that of a FileBuildStatusStore there.
+     */
+    public H2BuildStatusStore(String url) {
+        this(url, new File(FileBuildStatusStore.ARCHIVE_NAME), RetentionPolicy.fromConfig());
+    }
+
+    public H2BuildStatusStore(String url, File archiveDirectory, RetentionPolicy retention) {
+        this.retention = retention;
+        this.archive = new BuildStatusArchive(archiveDirectory);
+        pool = JdbcConnectionPool.create(url, "sa", "");
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+            // position is the order the statuses were added in, like the list of FileBuildStatusStore.
+            statement.execute("CREATE TABLE IF NOT EXISTS build_status ("
+                              + "position INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                              + "id VARCHAR(255) NOT NULL, "
+                              + "repo_name VARCHAR(255), "
+                              + "branch VARCHAR(255), "
+                              + "commit_sha VARCHAR(255), "
+                              + "build_time BIGINT NOT NULL, "
+                              + "status CHARACTER LARGE OBJECT NOT NULL, "
+                              + "CONSTRAINT build_status_id UNIQUE (id))");
+            statement.execute("CREATE INDEX IF NOT EXISTS build_status_time ON build_status (build_time, position)");
+            statement.execute("CREATE INDEX IF NOT EXISTS build_status_repo "
+                              + "ON build_status (repo_name, build_time, position)");
+            statement.execute("CREATE INDEX IF NOT EXISTS build_status_branch "
+                              + "ON build_status (repo_name, branch, build_time, position)");
+            statement.execute("CREATE INDEX IF NOT EXISTS build_status_commit "
+                              + "ON build_status (commit_sha, build_time, position)");
+            initialCount = count(connection);
+        } catch (SQLException e) {
+            pool.dispose();
+            throw new IllegalStateException("Failed to open the build status database " + url, e);
+        }
+        System.out.println("Opened the build status database with " + initialCount + " build statuses.");
+        syncer = new Thread(this::syncLoop, "status-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /*
+     * Adds a status. If there already is one with its id, that one is kept, as
+     * FileBuildStatusStore does.
+     */
+    @Override
+    public CompletableFuture<Void> addStatus(BuildStatus status) {
+        scheduleRetention();
+        return write("INSERT INTO build_status (id, repo_name, branch, commit_sha, build_time, status) "
+                     + "VALUES (?, ?, ?, ?, ?, ?)", status);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateStatus(BuildStatus status) {
+        return write("MERGE INTO build_status (id, repo_name, branch, commit_sha, build_time, status) KEY (id) "
+                     + "VALUES (?, ?, ?, ?, ?, ?)", status);
+    }
+
+    private CompletableFuture<Void> write(String sql, BuildStatus status) {
+        String json;
+        try {
+            json = mapper.writeValueAsString(status);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Build status can't be written as JSON", e);
+        }
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, status.getId());
+                statement.setString(2, status.getRepoName());
+                statement.setString(3, status.getBranch());
+                statement.setString(4, status.getCommitSHA());
+                statement.setLong(5, status.getTimestamp());
+                statement.setString(6, json);
+                statement.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                if (!DUPLICATE_KEY.equals(e.getSQLState())) {
+                    throw e;
+                }
+                // The status kept may not be synced yet either.
+                return sync(false);
+            }
+            touch();
+            notifyListeners(status);
+            return sync(false);
+        } catch (SQLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<Void> sync(boolean force) {
+        Sync sync = new Sync(force);
+        syncs.add(sync);
+        return sync.done;
+    }
+
+    /*
+     * The sync thread: waits for committed writes and syncs all waiting at once,
+     * or with FSYNC_MILLIS at most that often, waking up to sync those left.
+     */
+    private void syncLoop() {
+        boolean unsynced = false;
+        long lastSync = System.currentTimeMillis();
+        List<Sync> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Sync first;
+                if (unsynced) {
+                    long wait = Math.max(0, lastSync + FSYNC_MILLIS - System.currentTimeMillis());
+                    first = syncs.poll(wait, TimeUnit.MILLISECONDS);
+                } else {
+                    first = syncs.take();
+                }
+                batch.clear();
+                if (first != null) {
+                    batch.add(first);
+                    syncs.drainTo(batch, MAX_BATCH - 1);
+                    unsynced = true;
+                }
+                boolean force = false;
+                for (Sync sync : batch) {
+                    force |= sync.force;
+                }
+                long now = System.currentTimeMillis();
+                try {
+                    if (unsynced && (force || FSYNC_MILLIS <= 0 || now - lastSync >= FSYNC_MILLIS)) {
+                        checkpoint();
+                        unsynced = false;
+                        lastSync = now;
+                    }
+                    for (Sync sync : batch) {
+                        sync.done.complete(null);
+                    }
+                } catch (SQLException e) {
+                    System.err.println("Failed to sync the build status database: " + e);
+                    for (Sync sync : batch) {
+                        sync.done.completeExceptionally(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void checkpoint() throws SQLException {
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CHECKPOINT SYNC");
+        }
+        syncCount++;
+    }
+
+    // How often the database was synced, for tests.
+    long getSyncCount() {
+        return syncCount;
+    }
+
+    @Override
+    public BuildStatus getStatusById(String id) {
+        List<Row> rows = query("SELECT position, build_time, status FROM build_status WHERE id = ?", List.of(id));
+        return rows.isEmpty() ? null : rows.get(0).status;
+    }
+
+    /*
+     * One page of builds, see BuildStatusStore.getPage. The cursors are made the
+     * same way as by BuildStatusSnapshot, with the position of the row.
+     */
+    @Override
+    public BuildStatusPage getPage(String repoName, String branch, String commitSHA, String cursor, int limit) {
+        PageCursor from = PageCursor.parse(cursor);
+        if (limit <= 0) {
+            return new BuildStatusPage(List.of(), null, null);
+        }
+        List<Object> parameters = new ArrayList<>();
+        StringBuilder filter = new StringBuilder("TRUE");
+        // The columns the index starts with; ordering by them too lets H2 read the
+        // rows in index order instead of sorting all matching rows.
+        String prefix = "";
+        if (commitSHA != null) {
+            filter.append(" AND commit_sha = ?");
+            parameters.add(commitSHA);
+            prefix = "commit_sha, ";
+        }
+        if (repoName != null) {
+            filter.append(" AND repo_name = ?");
+            parameters.add(repoName);
+            if (branch != null) {
+                filter.append(" AND branch = ?");
+                parameters.add(branch);
+            }
+            if (commitSHA == null) {
+                prefix = branch != null ? "repo_name, branch, " : "repo_name, ";
+            }
+        }
+        String newestFirst = (prefix + "build_time, position").replace(",", " DESC,") + " DESC";
+        if (from == null) {
+            List<Row> rows = query("SELECT position, build_time, status FROM build_status WHERE " + filter
+                                   + " ORDER BY " + newestFirst + " LIMIT ?", with(parameters, (long) limit + 1));
+            return page(rows, limit, false, false);
+        }
+        // A page after the cursor has the older builds, one before it the newer ones.
+        boolean backwards = !from.after;
+        String side = backwards ? "(build_time, position) > (?, ?)" : "(build_time, position) < (?, ?)";
+        String otherSide = backwards ? "(build_time, position) <= (?, ?)" : "(build_time, position) >= (?, ?)";
+        String order = backwards ? prefix + "build_time, position" : newestFirst;
+        List<Object> keyed = new ArrayList<>(parameters);
+        keyed.add(from.timestamp);
+        keyed.add(from.position);
+        List<Row> rows = query("SELECT position, build_time, status FROM build_status WHERE " + filter + " AND " + side
+                               + " ORDER BY " + order + " LIMIT ?", with(keyed, (long) limit + 1));
+        boolean other = exists("SELECT 1 FROM build_status WHERE " + filter + " AND " + otherSide + " LIMIT 1", keyed);
+        return page(rows, limit, backwards, other);
+    }
+
+    // A page of at most limit of the rows; one more row means there are more in that direction.
+    private static BuildStatusPage page(List<Row> rows, int limit, boolean backwards, boolean other) {
+        boolean more = rows.size() > limit;
+        List<Row> entries = more ? rows.subList(0, limit) : rows;
+        if (entries.isEmpty()) {
+            return new BuildStatusPage(List.of(), null, null);
+        }
+        if (backwards) {
+            Collections.reverse(entries);
+        }
+        List<BuildStatus> builds = new ArrayList<>(entries.size());
+        for (Row row : entries) {
+            builds.add(row.status);
+        }
+        Row newest = entries.get(0);
+        Row oldest = entries.get(entries.size() - 1);
+        boolean older = backwards ? other : more;
+        boolean newer = backwards ? more : other;
+        return new BuildStatusPage(builds, older ? PageCursor.after(oldest.time, oldest.position) : null,
+                                   newer ? PageCursor.before(newest.time, newest.position) : null);
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified.get();
+    }
+
+    // Called after every change once reads see it.
+    private void touch() {
+        long now = System.currentTimeMillis();
+        lastModified.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    private void notifyListeners(BuildStatus status) {
+        for (Listener listener : listeners) {
+            try {
+                listener.statusChanged(status);
+            } catch (RuntimeException e) {
+                System.err.println("Build status listener failed: " + e);
+            }
+        }
+    }
+
+    @Override
+    public BuildStatus getArchivedStatus(String id) {
+        return archive.get(id);
+    }
+
+    @Override
+    public List<BuildStatus> searchArchive(String repoName, String branch, String commitSHA, int limit) {
+        return archive.search(repoName, branch, commitSHA, limit);
+    }
+
+    // Applies the retention policy on the background thread, at most every RetentionPolicy.INTERVAL_MILLIS.
+    private synchronized void scheduleRetention() {
+        long now = System.currentTimeMillis();
+        if (retention.keepsAll() || now - lastRetention < RetentionPolicy.INTERVAL_MILLIS) {
+            return;
+        }
+        lastRetention = now;
+        retainer.submit(() -> {
+            try {
+                applyRetention();
+            } catch (RuntimeException e) {
+                System.err.println("Applying the build status retention failed: " + e);
+            }
+        });
+    }
+
+    /*
+     * Moves the statuses the retention policy doesn't keep to the archive, a
+     * segment at a time: a batch is archived and then deleted in one
+     * transaction. A row whose build time changed since it was read is kept. The
+     * expired rows are found with one query that numbers the builds of every
+     * branch, newest first; H2 keeps serving reads and writes meanwhile.
+     */
+    @Override
+    public int applyRetention() {
+        if (retention.keepsAll()) {
+            return 0;
+        }
+        long cutoff = retention.maxAgeMillis > 0 ? System.currentTimeMillis() - retention.maxAgeMillis : Long.MAX_VALUE;
+        synchronized (retentionLock) {
+            int moved = 0;
+            try (Connection connection = pool.getConnection();
+                 PreparedStatement statement = connection.prepareStatement(
+                         "SELECT status FROM (SELECT status, build_time, ROW_NUMBER() OVER "
+                         + "(PARTITION BY repo_name, branch ORDER BY build_time DESC, position DESC) - 1 AS newer "
+                         + "FROM build_status) AS ranked WHERE NOT (newer < ? OR build_time > ?)")) {
+                statement.setInt(1, retention.keepPerBranch);
+                statement.setLong(2, cutoff);
+                List<BuildStatus> batch = new ArrayList<>();
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        batch.add(mapper.readValue(result.getString(1), BuildStatus.class));
+                        if (batch.size() == BuildStatusArchive.SEGMENT_SIZE) {
+                            moved += archive(batch);
+                            batch.clear();
+                        }
+                    }
+                }
+                moved += archive(batch);
+            } catch (SQLException | IOException e) {
+                System.err.println("Failed to archive build statuses: " + e);
+            }
+            if (moved > 0) {
+                System.out.println("Archived " + moved + " build statuses, " + size() + " remain.");
+            }
+            return moved;
+        }
+    }
+
+    // Archives the statuses that aren't yet and deletes them all; returns how many were deleted.
+    private int archive(List<BuildStatus> statuses) throws SQLException, IOException {
+        List<BuildStatus> unarchived = new ArrayList<>();
+        for (BuildStatus status : statuses) {
+            if (!archive.contains(status.getId())) {
+                unarchived.add(status);
+            }
+        }
+        archive.append(unarchived);
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM build_status WHERE id = ? AND build_time = ?")) {
+                for (BuildStatus status : statuses) {
+                    statement.setString(1, status.getId());
+                    statement.setLong(2, status.getTimestamp());
+                    statement.addBatch();
+                }
+                int deleted = 0;
+                for (int count : statement.executeBatch()) {
+                    deleted += Math.max(0, count);
+                }
+                connection.commit();
+                touch();
+                return deleted;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        try (Connection connection = pool.getConnection()) {
+            return count(connection);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to count the build statuses", e);
+        }
+    }
+
+    @Override
+    public int getInitialCount() {
+        return initialCount;
+    }
+
+    @Override
+    public BuildStatus getLastAdded() {
+        List<Row> rows = query("SELECT position, build_time, status FROM build_status ORDER BY position DESC LIMIT 1",
+                               List.of());
+        return rows.isEmpty() ? null : rows.get(0).status;
+    }
+
+    // Completes once everything committed before is synced.
+    @Override
+    public CompletableFuture<Void> flush() {
+        return sync(true);
+    }
+
+    @Override
+    public void close() {
+        retainer.shutdownNow();
+        try {
+            flush().get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.err.println("Failed to write the last build statuses: " + e.getMessage());
+        }
+        syncer.interrupt();
+        try {
+            syncer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.dispose();
+    }
+
+    /*
+     * Adds the statuses of another store in the order they were added there, in
+     * one transaction, replacing those with the same id, and syncs them. They
+     * count as stored when the store was opened.
+     */
+    public void copyFrom(List<BuildStatus> statuses) {
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "MERGE INTO build_status (id, repo_name, branch, commit_sha, build_time, status) KEY (id) "
+                    + "VALUES (?, ?, ?, ?, ?, ?)")) {
+                for (BuildStatus status : statuses) {
+                    statement.setString(1, status.getId());
+                    statement.setString(2, status.getRepoName());
+                    statement.setString(3, status.getBranch());
+                    statement.setString(4, status.getCommitSHA());
+                    statement.setLong(5, status.getTimestamp());
+                    statement.setString(6, mapper.writeValueAsString(status));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+                touch();
+                initialCount = count(connection);
+            } catch (SQLException | JsonProcessingException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException | JsonProcessingException e) {
+            throw new IllegalStateException("Failed to copy the build statuses", e);
+        }
+        flush().join();
+    }
+
+    private static int count(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM build_status")) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    private List<Row> query(String sql, List<Object> parameters) {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            List<Row> rows = new ArrayList<>();
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    rows.add(new Row(result.getInt(1), result.getLong(2),
+                                     mapper.readValue(result.getString(3), BuildStatus.class)));
+                }
+            }
+            return rows;
+        } catch (SQLException | JsonProcessingException e) {
+            throw new IllegalStateException("Failed to read build statuses", e);
+        }
+    }
+
+    private boolean exists(String sql, List<Object> parameters) {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to read build statuses", e);
+        }
+    }
+
+    private static List<Object> with(List<Object> parameters, Object last) {
+        List<Object> all = new ArrayList<>(parameters);
+        all.add(last);
+        return all;
+    }
+
+    private static final class Row {
+        final int position;
+        final long time;
+        final BuildStatus status;
+
+        Row(int position, long time, BuildStatus status) {
+            this.position = position;
+            this.time = time;
+            this.status = status;
+        }
+    }
+}
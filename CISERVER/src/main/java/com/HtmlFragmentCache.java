@@ -0,0 +1,93 @@
+package com;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/*
+ * Rendered HTML of builds that no longer change, as UTF-8 bytes ready to be
+ * written to a response: the rows of the build list and the pages of finished
+ * builds. Keys hold the build id and whatever else the HTML depends on.
+ *
+ * The cache is bounded by the bytes it holds, not by the number of entries; when
+ * it is full the least recently used entries are dropped. A maximum of 0 turns
+ * it off.
+ */
+public class HtmlFragmentCache {
+    // What an entry costs besides its bytes: the key, the map entry and the array header.
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    // A cache of ci.html.cacheBytes, 16 MB unless set.
+    public HtmlFragmentCache() {
+        this(CIConfig.getLong("ci.html.cacheBytes", 16L * 1024 * 1024));
+    }
+
+    public HtmlFragmentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+     * The bytes cached for the key, or those made by render, which are cached
+     * unless they alone would take more than a tenth of the cache. Rendering
+     * happens without the lock, so two threads may render the same key.
+     */
+    public byte[] get(String key, Supplier<byte[]> render) {
+        synchronized (this) {
+            byte[] cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        byte[] rendered = render.get();
+        put(key, rendered);
+        return rendered;
+    }
+
+    private synchronized void put(String key, byte[] value) {
+        long cost = cost(key, value);
+        if (cost > maxBytes / 10) {
+            return;
+        }
+        byte[] previous = entries.put(key, value);
+        if (previous != null) {
+            bytes -= cost(key, previous);
+        }
+        bytes += cost;
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            bytes -= cost(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long cost(String key, byte[] value) {
+        return ENTRY_OVERHEAD + 2L * key.length() + value.length;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Bytes taken by the entries, counting an estimate of their overhead.
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
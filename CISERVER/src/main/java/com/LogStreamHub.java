@@ -0,0 +1,260 @@
+package com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/*
+ * Follows the logs of builds that someone is watching and hands new lines to
+ * the viewers as Server-Sent Events. Logs are read through the BuildLogStore, so
+ * a log sealed while it is watched is read on from its segments.
+ *
+ * There is one tailer per watched build. It reads every new piece of the log once
+ * and sends the same event bytes to all viewers that have seen everything before
+ * it. Viewers that start at an earlier offset catch up one chunk at a time from
+ * the store, so nobody holds a whole log in memory. A viewer that falls too far
+ * behind is dropped and can reconnect with the offset of the last event it got.
+ */
+public class LogStreamHub {
+    private static final int CHUNK = 64 * 1024;
+    // Events a viewer may have waiting before it is dropped.
+    private static final int MAX_BACKLOG = 32;
+    private static final byte[] END_EVENT = "event: end\ndata: \n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final BuildLogStore store;
+    private final Predicate<String> finished;
+    private final long intervalMillis;
+    private final Map<String, Tailer> tailers = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "log-tailer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+     * Someone watching a log. Events are passed to it on the tailer thread
+     * and must not block.
+     */
+    public interface Viewer {
+        // Offset in the log up to which the viewer got events.
+        long getPosition();
+
+        // Number of events not yet written to the viewer.
+        int getBacklog();
+
+        // Passes an event that covers the log up to position.
+        void send(byte[] event, long position);
+
+        // The log is complete and the viewer has all of it.
+        void end(byte[] event);
+
+        // Drops a viewer that can't keep up.
+        void close();
+    }
+
+    /*
+     * finished tells whether the log of a build id is complete, which
+     * ends the stream once the viewers have all of it.
+     */
+    public LogStreamHub(BuildLogStore store, Predicate<String> finished, long intervalMillis) {
+        this.store = store;
+        this.finished = finished;
+        this.intervalMillis = intervalMillis;
+    }
+
+    // Starts sending the log of a build to the viewer from its position.
+    public synchronized void subscribe(String buildId, Viewer viewer) {
+        Tailer tailer = tailers.get(buildId);
+        if (tailer == null) {
+            tailer = new Tailer(buildId);
+            tailers.put(buildId, tailer);
+            Tailer started = tailer;
+            tailer.future = scheduler.scheduleWithFixedDelay(started::tick, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        tailer.viewers.add(viewer);
+    }
+
+    public synchronized void unsubscribe(String buildId, Viewer viewer) {
+        Tailer tailer = tailers.get(buildId);
+        if (tailer == null) {
+            return;
+        }
+        tailer.viewers.remove(viewer);
+        if (tailer.viewers.isEmpty()) {
+            tailer.future.cancel(false);
+            tailers.remove(buildId);
+        }
+    }
+
+    // Number of builds being followed, one tailer each.
+    public synchronized int getTailerCount() {
+        return tailers.size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    // Follows one log for all its viewers.
+    private class Tailer {
+        final String buildId;
+        final List<Viewer> viewers = new CopyOnWriteArrayList<>();
+        ScheduledFuture<?> future;
+        // Start of the first line the tailer has not read yet.
+        long position = -1;
+
+        Tailer(String buildId) {
+            this.buildId = buildId;
+        }
+
+        void tick() {
+            try {
+                // Check completion before the size, so that a complete log can't grow afterwards.
+                boolean complete = finished.test(buildId);
+                long size = store.length(buildId);
+                if (size < 0) {
+                    if (complete) {
+                        endAll(0);
+                    }
+                    return;
+                }
+                if (position < 0) {
+                    position = lineStart(buildId, size);
+                }
+                readNew(size, complete);
+                catchUp(complete);
+                if (complete && position >= size) {
+                    endAll(size);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Failed to follow log of build " + buildId + ": " + e.getMessage());
+            }
+        }
+
+        // Reads what was added to the log and sends it to the viewers that are up to date.
+        private void readNew(long size, boolean complete) throws IOException {
+            while (position < size) {
+                Chunk chunk = read(buildId, position, size, complete);
+                if (chunk == null) {
+                    return;
+                }
+                for (Viewer viewer : viewers) {
+                    if (viewer.getPosition() == position) {
+                        if (viewer.getBacklog() >= MAX_BACKLOG) {
+                            dropViewer(viewer);
+                        } else {
+                            viewer.send(chunk.event, chunk.end);
+                        }
+                    }
+                }
+                position = chunk.end;
+            }
+        }
+
+        // Gives viewers that started earlier in the log one chunk each, up to where the tailer is.
+        private void catchUp(boolean complete) throws IOException {
+            for (Viewer viewer : viewers) {
+                long from = viewer.getPosition();
+                if (from < position && viewer.getBacklog() < MAX_BACKLOG / 2) {
+                    Chunk chunk = read(buildId, from, position, complete);
+                    if (chunk != null) {
+                        viewer.send(chunk.event, chunk.end);
+                    }
+                }
+            }
+        }
+
+        private void endAll(long size) {
+            for (Viewer viewer : viewers) {
+                if (viewer.getPosition() >= size) {
+                    viewer.end(END_EVENT);
+                    unsubscribe(buildId, viewer);
+                }
+            }
+        }
+
+        private void dropViewer(Viewer viewer) {
+            viewer.close();
+            unsubscribe(buildId, viewer);
+        }
+    }
+
+    // An event with the lines from some offset up to end.
+    private static class Chunk {
+        final byte[] event;
+        final long end;
+
+        Chunk(byte[] event, long end) {
+            this.event = event;
+            this.end = end;
+        }
+    }
+
+    /*
+     * Reads whole lines from "from" up to at most CHUNK bytes or limit. Returns null
+     * if there is no complete line yet, unless the log is complete or the line is
+     * longer than a chunk.
+     */
+    private Chunk read(String buildId, long from, long limit, boolean complete) throws IOException {
+        int length = (int) Math.min(CHUNK, limit - from);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && store.read(buildId, from + buffer.position(), buffer) > 0) {
+            // Keep reading, a read may return fewer bytes.
+        }
+        int read = buffer.position();
+        int end = read;
+        while (end > 0 && buffer.get(end - 1) != '\n') {
+            end--;
+        }
+        if (end == 0) {
+            boolean rest = complete && from + read >= limit;
+            if (read == 0 || (!rest && read < CHUNK)) {
+                return null;
+            }
+            end = read;
+        }
+        String text = new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+        return new Chunk(event(text, from + end), from + end);
+    }
+
+    // Formats lines as a Server-Sent Event whose id is the offset after them.
+    private static byte[] event(String text, long end) {
+        StringBuilder event = new StringBuilder(text.length() + 64);
+        event.append("id: ").append(end).append("\n");
+        String body = text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+        for (String line : body.split("\n", -1)) {
+            event.append("data: ").append(line.replace("\r", "")).append("\n");
+        }
+        event.append("\n");
+        return event.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Offset after the last newline before size, where the next line starts.
+    private long lineStart(String buildId, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long end = size;
+        while (end > 0) {
+            long start = Math.max(0, end - buffer.capacity());
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining() && store.read(buildId, start + buffer.position(), buffer) > 0) {
+                // Keep reading, a read may return fewer bytes.
+            }
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+}
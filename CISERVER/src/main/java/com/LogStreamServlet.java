@@ -0,0 +1,239 @@
+package com;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Streams the log of a running or finished build (/log?id=<build id>).
+ *
+ * Browsers get a page that shows the log as it grows. The log itself is sent as
+ * Server-Sent Events whose ids are byte offsets into the log, so a client that
+ * reconnects with Last-Event-ID (or ?offset=) continues where it stopped. The
+ * stream ends with an "end" event once the build is finished.
+ *
+ * The servlet must be registered with async support.
+ */
+public class LogStreamServlet extends HttpServlet {
+    private final BuildLogStore store;
+    private final BuildStatusStore statusStore;
+    private final LogStreamHub hub;
+
+    public LogStreamServlet(BuildLogStore store, BuildStatusStore statusStore) {
+        this(store, statusStore, new LogStreamHub(store, buildId -> isFinished(statusStore, buildId), 250));
+    }
+
+    public LogStreamServlet(BuildLogStore store, BuildStatusStore statusStore, LogStreamHub hub) {
+        this.store = store;
+        this.statusStore = statusStore;
+        this.hub = hub;
+    }
+
+    // Logs of builds that are no longer pending don't grow anymore.
+    private static boolean isFinished(BuildStatusStore statusStore, String buildId) {
+        BuildStatus status = statusStore.getStatusById(buildId);
+        return status == null || status.isFinished();
+    }
+
+    public LogStreamHub getHub() {
+        return hub;
+    }
+
+    @Override
+    public void destroy() {
+        hub.shutdown();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String id = req.getParameter("id");
+        // The id becomes a file name, so only allow what build ids consist of.
+        if (id == null || !id.matches("[A-Za-z0-9-]+")) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid build id");
+            return;
+        }
+        if (!store.exists(id) && statusStore.getStatusById(id) == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No log for build " + id);
+            return;
+        }
+        String accept = req.getHeader("Accept");
+        if (accept == null || !accept.contains("text/event-stream")) {
+            writePage(id, resp);
+            return;
+        }
+
+        long offset;
+        try {
+            String lastEventId = req.getHeader("Last-Event-ID");
+            String value = lastEventId != null ? lastEventId : req.getParameter("offset");
+            offset = value != null ? Long.parseLong(value.trim()) : 0;
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid offset");
+            return;
+        }
+
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        AsyncContext context = req.startAsync();
+        // Builds can run for a long time, the stream ends with the build.
+        context.setTimeout(0);
+        SseViewer viewer = new SseViewer(id, context, resp.getOutputStream(), offset);
+        context.addListener(viewer);
+        resp.getOutputStream().setWriteListener(viewer);
+        hub.subscribe(id, viewer);
+    }
+
+    // A page that shows the log through EventSource.
+    private static void writePage(String id, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/html; charset=UTF-8");
+        resp.setCharacterEncoding("UTF-8");
+        try (PrintWriter out = resp.getWriter()) {
+            out.println("<!DOCTYPE html>");
+            out.println("<html lang=\"en\">");
+            out.println("<head>");
+            out.println("  <meta charset=\"UTF-8\">");
+            out.println("  <title>CI Server - Build Log</title>");
+            out.println("</head>");
+            out.println("<body>");
+            out.println("<h1>Build Log for ID: " + id + "</h1>");
+            out.println("<p id='state'>Running...</p>");
+            out.println("<pre id='log'></pre>");
+            out.println("<p><a href='/buildDetail?id=" + id + "'>Back to build detail</a></p>");
+            out.println("<script>");
+            out.println("  var log = document.getElementById('log');");
+            out.println("  var source = new EventSource('/log?id=" + id + "');");
+            out.println("  source.onmessage = function(e) { log.textContent += e.data + '\\n'; };");
+            out.println("  source.addEventListener('end', function() {");
+            out.println("    source.close();");
+            out.println("    document.getElementById('state').textContent = 'Finished.';");
+            out.println("  });");
+            out.println("</script>");
+            out.println("</body>");
+            out.println("</html>");
+        }
+    }
+
+    /*
+     * One open event stream. Events are queued by the tailer and written with
+     * non-blocking output whenever the connection can take more.
+     */
+    private class SseViewer implements LogStreamHub.Viewer, WriteListener, AsyncListener {
+        private final String buildId;
+        private final AsyncContext context;
+        private final ServletOutputStream out;
+        private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+        private volatile long position;
+        private boolean ending;
+        private boolean dirty;
+        private boolean closed;
+
+        SseViewer(String buildId, AsyncContext context, ServletOutputStream out, long position) {
+            this.buildId = buildId;
+            this.context = context;
+            this.out = out;
+            this.position = position;
+        }
+
+        @Override
+        public long getPosition() { return position; }
+
+        @Override
+        public int getBacklog() { return pending.size(); }
+
+        @Override
+        public void send(byte[] event, long position) {
+            pending.add(event);
+            this.position = position;
+            drain();
+        }
+
+        @Override
+        public void end(byte[] event) {
+            synchronized (this) {
+                ending = true;
+            }
+            pending.add(event);
+            drain();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.clear();
+            hub.unsubscribe(buildId, this);
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                // Already completed by the container.
+            }
+        }
+
+        // Writes queued events while the connection is ready and flushes once it is empty.
+        private synchronized void drain() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (out.isReady()) {
+                    byte[] next = pending.poll();
+                    if (next != null) {
+                        out.write(next);
+                        dirty = true;
+                    } else if (dirty) {
+                        dirty = false;
+                        out.flush();
+                    } else {
+                        if (ending) {
+                            close();
+                        }
+                        return;
+                    }
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com;
+
+import org.apache.maven.shared.invoker.DefaultInvocationRequest;
+import org.apache.maven.shared.invoker.DefaultInvoker;
+import org.apache.maven.shared.invoker.InvocationOutputHandler;
+import org.apache.maven.shared.invoker.InvocationRequest;
+import org.apache.maven.shared.invoker.InvocationResult;
+import org.apache.maven.shared.invoker.Invoker;
+import org.apache.maven.shared.invoker.MavenInvocationException;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Process executor that runs "mvn" commands through the Maven Invoker API and
+ * everything else through another executor.
+ *
+ * The invoker is created once and reused for all builds. If the Maven daemon
+ * (mvnd) is installed it is used as the executable, so Maven, its plugins and
+ * the JIT stay warm between builds instead of starting a cold JVM every time.
+ */
+public class MavenInvokerExecutor implements ProcessExecutor {
+    private final ProcessExecutor delegate;
+    private final Invoker invoker;
+    private final int tailChars = CIConfig.getInt("ci.log.tailChars", 64 * 1024);
+
+    // Uses mvnd if it is on the PATH and plain mvn otherwise, unless ci.maven.executable is set.
+    public MavenInvokerExecutor(ProcessExecutor delegate) {
+        this(delegate, findExecutable(CIConfig.getString("ci.maven.executable", null)));
+    }
+
+    public MavenInvokerExecutor(ProcessExecutor delegate, File mavenExecutable) {
+        this.delegate = delegate;
+        this.invoker = new DefaultInvoker();
+        if (mavenExecutable != null) {
+            invoker.setMavenExecutable(mavenExecutable);
+            System.out.println("Running Maven builds with " + mavenExecutable);
+        }
+    }
+
+    @Override
+    public ProcessResult execute(ProcessBuilder pb) throws IOException, InterruptedException {
+        return execute(pb, null);
+    }
+
+    @Override
+    public ProcessResult execute(ProcessBuilder pb, BuildJob job) throws IOException, InterruptedException {
+        BuildLog log = job != null ? job.getLog() : null;
+        if (log != null) {
+            return execute(pb, job, log);
+        }
+        if (!isMaven(pb)) {
+            return job == null ? delegate.execute(pb) : delegate.execute(pb, job);
+        }
+        return invoke(pb, job, null);
+    }
+
+    @Override
+    public ProcessResult execute(ProcessBuilder pb, BuildJob job, OutputSink sink) throws IOException, InterruptedException {
+        return isMaven(pb) ? invoke(pb, job, sink) : delegate.execute(pb, job, sink);
+    }
+
+    private static boolean isMaven(ProcessBuilder pb) {
+        List<String> command = pb.command();
+        return !command.isEmpty() && command.get(0).equals("mvn");
+    }
+
+    // Runs an mvn command through the invoker, streaming the output into the sink if there is one.
+    private ProcessResult invoke(ProcessBuilder pb, BuildJob job, OutputSink sink) throws IOException {
+        List<String> command = pb.command();
+        TailBuffer tail = new TailBuffer(tailChars);
+        InvocationRequest request = new DefaultInvocationRequest();
+        request.setBaseDirectory(pb.directory() != null ? pb.directory() : new File("."));
+        for (String arg : command.subList(1, command.size())) {
+            request.addArg(arg);
+        }
+        // Pass on the variables the caller changed, the rest is inherited anyway.
+        Map<String, String> inherited = System.getenv();
+        for (Map.Entry<String, String> env : pb.environment().entrySet()) {
+            if (!env.getValue().equals(inherited.get(env.getKey()))) {
+                request.addShellEnvironment(env.getKey(), env.getValue());
+            }
+        }
+        // Called from one thread for stdout and one for stderr, both sinks are synchronized.
+        InvocationOutputHandler handler = line -> {
+            tail.line(line);
+            if (sink != null) {
+                sink.line(line);
+            }
+        };
+        request.setOutputHandler(handler);
+        request.setErrorHandler(handler);
+
+        // The invoker kills Maven when the waiting thread is interrupted, which is how cancel reaches it.
+        Thread current = Thread.currentThread();
+        if (job != null) {
+            job.attachThread(current);
+        }
+        try {
+            InvocationResult result = invoker.execute(request);
+            if (result.getExecutionException() != null) {
+                if (job != null && job.isCancelled()) {
+                    return new ProcessResult(-1, tail.toString(), log(sink));
+                }
+                throw new IOException("Maven invocation failed: " + result.getExecutionException().getMessage(),
+                                      result.getExecutionException());
+            }
+            BuildLog log = log(sink);
+            if (log != null) {
+                log.flush();
+            }
+            return new ProcessResult(result.getExitCode(), tail.toString(), log);
+        } catch (MavenInvocationException e) {
+            throw new IOException("Maven invocation failed: " + e.getMessage(), e);
+        } finally {
+            if (job != null) {
+                job.detachThread(current);
+                if (job.isCancelled()) {
+                    // The interrupt was meant for Maven, not for the worker thread.
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    private static BuildLog log(OutputSink sink) {
+        return sink instanceof BuildLog ? (BuildLog) sink : null;
+    }
+
+    /*
+     * Returns the configured executable, or mvnd or mvn from the PATH.
+     * Null lets the invoker find Maven through maven.home or MAVEN_HOME.
+     */
+    static File findExecutable(String configured) {
+        if (configured != null) {
+            return new File(configured);
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String name : new String[] {"mvnd", "mvn"}) {
+            for (String dir : path.split(File.pathSeparator)) {
+                File candidate = new File(dir, name);
+                if (candidate.isFile() && candidate.canExecute()) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,509 @@
+package com;
+
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Local Maven repositories managed by the server instead of the shared ~/.m2.
+ *
+ * Every build worker has a repository of its own (or every repository being
+ * built, with perRepo), passed to Maven with -Dmaven.repo.local. Below it lies a
+ * shared repository that is filled in the background by resolving the
+ * dependencies of repositories seen for the first time, passed as the read-only
+ * tail (-Dmaven.repo.local.tail, Maven 3.9 and later).
+ *
+ * Once a build with the same pom files has resolved everything, later builds run
+ * offline. Artifacts of a repository no build has used for maxAge are deleted,
+ * and if the repositories are still bigger than maxBytes those of the least
+ * recently used repositories go as well, the longest downloaded first. Which
+ * artifacts a build reads can't be told, and access times don't move on noatime
+ * mounts, so the use of a repository is recorded when a lease is given back, in
+ * the modification time of a .ci-used file.
+ *
+ * Every lease holds the read lock of the shared repository for as long as the
+ * build may read it as its tail; the shared repository is only evicted holding
+ * the write lock, so a build starting meanwhile waits for the eviction.
+ */
+public class MavenRepositoryCache {
+    private static final String SHARED = "shared";
+    private static final String WARM_FILE = ".ci-warm";
+    private static final String USED_FILE = ".ci-used";
+    private static final long EVICTION_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private final ProcessExecutor processExecutor;
+    private final File root;
+    private final boolean perRepo;
+    private final boolean offline;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final Map<String, Layer> layers = new HashMap<>();
+    private final Set<String> seeding = new HashSet<>();
+    // Repositories ("owner/repo") a layer is warm for, so preseed doesn't have to look.
+    private final Set<String> known = new HashSet<>();
+    private long lastEviction;
+    private final ReentrantReadWriteLock tailLock = new ReentrantReadWriteLock();
+    private final ExecutorService seeder = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "maven-cache-seeder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // One local repository and the pom hashes ("owner/repo hash") it has everything for.
+    private static class Layer {
+        final File dir;
+        final ReentrantLock lock = new ReentrantLock();
+        final Set<String> warm = new HashSet<>();
+        int leases;
+        // When a build last used it; a repository from before this was recorded counts as used now.
+        volatile long lastUsed;
+
+        Layer(File dir) {
+            this.dir = dir;
+            File used = new File(dir, USED_FILE);
+            this.lastUsed = used.exists() ? used.lastModified() : System.currentTimeMillis();
+        }
+    }
+
+    /*
+     * A local repository handed to one build. Must be given back with release.
+     */
+    public static class Lease {
+        private final Layer layer;
+        private final Layer tail;
+        private final String warmKey;
+        private final boolean offline;
+
+        private Lease(Layer layer, Layer tail, String warmKey, boolean offline) {
+            this.layer = layer;
+            this.tail = tail;
+            this.warmKey = warmKey;
+            this.offline = offline;
+        }
+
+        public File getDirectory() { return layer.dir; }
+
+        public boolean isOffline() { return offline; }
+
+        // Maven arguments for this lease, with -o if the repository is warm.
+        public List<String> getMavenArgs() {
+            List<String> args = getOnlineArgs();
+            if (offline) {
+                args.add("-o");
+            }
+            return args;
+        }
+
+        public List<String> getOnlineArgs() {
+            List<String> args = new ArrayList<>();
+            args.add("-Dmaven.repo.local=" + layer.dir.getAbsolutePath());
+            args.add("-Dmaven.repo.local.tail=" + tail.dir.getAbsolutePath());
+            return args;
+        }
+    }
+
+    // Cache with the settings taken from CIConfig.
+    public MavenRepositoryCache(ProcessExecutor processExecutor) {
+        this(processExecutor,
+             new File(CIConfig.getString("ci.maven.repoCache.dir", "maven-cache")),
+             CIConfig.getBoolean("ci.maven.repoCache.perRepo", false),
+             CIConfig.getBoolean("ci.maven.offline", true),
+             CIConfig.getLong("ci.maven.repoCache.maxBytes", 5L * 1024 * 1024 * 1024),
+             TimeUnit.DAYS.toMillis(CIConfig.getInt("ci.maven.repoCache.maxAgeDays", 30)));
+    }
+
+    public MavenRepositoryCache(ProcessExecutor processExecutor, File root, boolean perRepo,
+                                boolean offline, long maxBytes, long maxAgeMillis) {
+        this.processExecutor = processExecutor;
+        this.root = root;
+        this.perRepo = perRepo;
+        this.offline = offline;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        synchronized (this) {
+            loadLayers();
+        }
+    }
+
+    /*
+     * Hands out the local repository for a build of the workspace on the current thread.
+     * Builds that share a repository (perRepo with maxPerRepo above 1) wait for each other.
+     */
+    public Lease acquire(String owner, String repo, File workspace) throws IOException {
+        String warmKey = owner + "/" + repo + " " + pomHash(workspace);
+        Layer layer;
+        Layer shared;
+        synchronized (this) {
+            layer = layer(perRepo ? "repos/" + owner + "/" + repo : "workers/" + workerName());
+            shared = layer(SHARED);
+            layer.leases++;
+        }
+        layer.lock.lock();
+        tailLock.readLock().lock();
+        boolean warm;
+        synchronized (this) {
+            warm = layer.warm.contains(warmKey) || shared.warm.contains(warmKey);
+        }
+        return new Lease(layer, shared, warmKey, offline && warm);
+    }
+
+    /*
+     * Gives a repository back. If the build got all its dependencies, builds with
+     * the same pom files may run offline from now on.
+     */
+    public void release(Lease lease, boolean resolved) {
+        try {
+            if (resolved) {
+                markWarm(lease.layer, lease.warmKey);
+            }
+        } finally {
+            tailLock.readLock().unlock();
+            lease.layer.lock.unlock();
+            synchronized (this) {
+                lease.layer.leases--;
+            }
+        }
+        recordUse(lease.layer);
+        recordUse(lease.tail);
+        scheduleEviction();
+    }
+
+    private void recordUse(Layer layer) {
+        long now = System.currentTimeMillis();
+        layer.lastUsed = now;
+        try {
+            layer.dir.mkdirs();
+            Path used = new File(layer.dir, USED_FILE).toPath();
+            if (!Files.exists(used)) {
+                Files.createFile(used);
+            }
+            Files.setLastModifiedTime(used, FileTime.fromMillis(now));
+        } catch (IOException e) {
+            System.out.println("Failed to record the use of " + layer.dir + ": " + e.getMessage());
+        }
+    }
+
+    /*
+     * Resolves the dependencies of a repository that no build has used yet into the
+     * shared repository, on a background thread. The commit is checked out into a
+     * workspace of its own, so it does not get in the way of the build.
+     */
+    public void preseed(String owner, String repo, String cloneUrl, String commitSHA, CheckoutStrategy checkout) {
+        String key = owner + "/" + repo;
+        synchronized (this) {
+            if (known.contains(key) || !seeding.add(key)) {
+                return;
+            }
+        }
+        seeder.submit(() -> {
+            File workspace = new File("seed_" + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8));
+            try {
+                checkout.checkout(owner, repo, cloneUrl, commitSHA, workspace, null);
+                try {
+                    seed(owner, repo, workspace);
+                } finally {
+                    checkout.cleanup(owner, repo, workspace);
+                }
+            } catch (Exception e) {
+                System.out.println("Pre-seeding Maven repository for " + key + " failed: " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    seeding.remove(key);
+                }
+            }
+        });
+    }
+
+    /*
+     * Runs dependency:go-offline for the workspace against the shared repository.
+     */
+    public void seed(String owner, String repo, File workspace) throws Exception {
+        Layer shared;
+        synchronized (this) {
+            shared = layer(SHARED);
+        }
+        String warmKey = owner + "/" + repo + " " + pomHash(workspace);
+        System.out.println("Pre-seeding Maven repository for " + owner + "/" + repo);
+        shared.lock.lock();
+        try {
+            ProcessBuilder pb = new ProcessBuilder("mvn", "-B", "-f", "CISERVER/pom.xml",
+                                                   "-Dmaven.repo.local=" + shared.dir.getAbsolutePath(),
+                                                   "dependency:go-offline");
+            pb.directory(workspace);
+            ProcessResult result = processExecutor.execute(pb);
+            if (result.getExitCode() != 0) {
+                throw new Exception("dependency:go-offline failed with exit code " + result.getExitCode());
+            }
+            markWarm(shared, warmKey);
+        } finally {
+            shared.lock.unlock();
+        }
+        recordUse(shared);
+    }
+
+    // Evicts on the background thread, at most every EVICTION_INTERVAL.
+    private synchronized void scheduleEviction() {
+        long now = System.currentTimeMillis();
+        if (now - lastEviction < EVICTION_INTERVAL) {
+            return;
+        }
+        lastEviction = now;
+        seeder.submit(() -> {
+            try {
+                evict();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Evicting Maven artifacts failed: " + e.getMessage());
+            }
+        });
+    }
+
+    public void shutdown() {
+        seeder.shutdownNow();
+    }
+
+    /*
+     * True if the Maven output says that a dependency or plugin could not be
+     * downloaded, as opposed to a compile error or a failing test.
+     */
+    public static boolean isResolutionFailure(String output) {
+        return output != null && (output.contains("offline mode")
+                                  || output.contains("Could not resolve")
+                                  || output.contains("Could not transfer"));
+    }
+
+    /*
+     * Deletes the artifacts of repositories no build used for maxAge and then the
+     * least recently used ones until everything fits into maxBytes. Repositories in use are skipped,
+     * and the shared one is only touched while no build holds a lease and no
+     * seed is running.
+     */
+    public void evict() throws IOException {
+        List<Layer> all;
+        List<Layer> idle = new ArrayList<>();
+        boolean tailLocked = false;
+        synchronized (this) {
+            all = new ArrayList<>(layers.values());
+            Layer shared = layers.get(SHARED);
+            for (Layer layer : all) {
+                if (layer != shared) {
+                    if (layer.leases == 0 && layer.lock.tryLock()) {
+                        idle.add(layer);
+                    }
+                } else if (seeding.isEmpty() && tailLock.writeLock().tryLock()) {
+                    // No lease holds the read lock, and none can be taken until it is unlocked.
+                    if (layer.lock.tryLock()) {
+                        idle.add(layer);
+                        tailLocked = true;
+                    } else {
+                        tailLock.writeLock().unlock();
+                    }
+                }
+            }
+        }
+        try {
+            long total = 0;
+            List<Artifact> artifacts = new ArrayList<>();
+            for (Layer layer : all) {
+                if (layer.dir.exists()) {
+                    total += FileUtils.sizeOfDirectory(layer.dir);
+                }
+            }
+            for (Layer layer : idle) {
+                artifacts.addAll(findArtifacts(layer));
+            }
+            artifacts.sort(Comparator.<Artifact>comparingLong(a -> a.lastUsed).thenComparingLong(a -> a.downloaded));
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            for (Artifact artifact : artifacts) {
+                if (artifact.lastUsed >= cutoff && total <= maxBytes) {
+                    break;
+                }
+                try {
+                    FileUtils.deleteDirectory(artifact.dir);
+                    total -= artifact.size;
+                    // The repository no longer has everything the recorded builds needed.
+                    clearWarm(artifact.layer);
+                } catch (IOException e) {
+                    System.out.println("Failed to evict " + artifact.dir + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            for (Layer layer : idle) {
+                layer.lock.unlock();
+            }
+            if (tailLocked) {
+                tailLock.writeLock().unlock();
+            }
+        }
+    }
+
+    // An artifact version directory, when its repository was last used and when it was downloaded.
+    private static class Artifact {
+        final Layer layer;
+        final File dir;
+        final long lastUsed;
+        final long downloaded;
+        final long size;
+
+        Artifact(Layer layer, File dir, long downloaded, long size) {
+            this.layer = layer;
+            this.dir = dir;
+            this.lastUsed = Math.max(layer.lastUsed, downloaded);
+            this.downloaded = downloaded;
+            this.size = size;
+        }
+    }
+
+    // Version directories are the ones holding a .pom file.
+    private static List<Artifact> findArtifacts(Layer layer) throws IOException {
+        List<Artifact> artifacts = new ArrayList<>();
+        if (!layer.dir.exists()) {
+            return artifacts;
+        }
+        List<Path> poms;
+        try (Stream<Path> files = Files.walk(layer.dir.toPath())) {
+            poms = files.filter(p -> p.getFileName().toString().endsWith(".pom")).collect(Collectors.toList());
+        }
+        Set<Path> seen = new HashSet<>();
+        for (Path pom : poms) {
+            Path dir = pom.getParent();
+            if (!seen.add(dir)) {
+                continue;
+            }
+            long downloaded = 0;
+            long size = 0;
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    downloaded = Math.max(downloaded, attributes.lastModifiedTime().toMillis());
+                    size += attributes.size();
+                }
+            }
+            artifacts.add(new Artifact(layer, dir.toFile(), downloaded, size));
+        }
+        return artifacts;
+    }
+
+    /*
+     * SHA-256 of all pom files in the workspace, which decides whether the
+     * dependencies can have changed.
+     */
+    static String pomHash(File workspace) throws IOException {
+        List<Path> poms;
+        try (Stream<Path> files = Files.walk(workspace.toPath())) {
+            poms = files.filter(p -> p.getFileName().toString().equals("pom.xml"))
+                        .filter(p -> !workspace.toPath().relativize(p).startsWith(".git"))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Path pom : poms) {
+                digest.update(workspace.toPath().relativize(pom).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(pom));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Builds on the queue workers each get their own repository, all other threads share one.
+    private static String workerName() {
+        String name = Thread.currentThread().getName();
+        return name.startsWith("build-worker-") ? name : "default";
+    }
+
+    // The "owner/repo" of a warm key.
+    private static String ownerRepo(String warmKey) {
+        int space = warmKey.indexOf(' ');
+        return space < 0 ? warmKey : warmKey.substring(0, space);
+    }
+
+    // Must hold the monitor.
+    private Layer layer(String path) {
+        return layers.computeIfAbsent(path, p -> {
+            Layer layer = new Layer(new File(root, p));
+            try {
+                Path warmFile = new File(layer.dir, WARM_FILE).toPath();
+                if (Files.exists(warmFile)) {
+                    layer.warm.addAll(Files.readAllLines(warmFile, StandardCharsets.UTF_8));
+                    for (String warmKey : layer.warm) {
+                        known.add(ownerRepo(warmKey));
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to read " + WARM_FILE + " of " + layer.dir + ": " + e.getMessage());
+            }
+            return layer;
+        });
+    }
+
+    // Registers repositories left on disk by an earlier run, when the cache is made. Must hold the monitor.
+    private void loadLayers() {
+        layer(SHARED);
+        for (File worker : listDirectories(new File(root, "workers"))) {
+            layer("workers/" + worker.getName());
+        }
+        for (File owner : listDirectories(new File(root, "repos"))) {
+            for (File repo : listDirectories(owner)) {
+                layer("repos/" + owner.getName() + "/" + repo.getName());
+            }
+        }
+    }
+
+    private static File[] listDirectories(File dir) {
+        File[] dirs = dir.listFiles(File::isDirectory);
+        return dirs != null ? dirs : new File[0];
+    }
+
+    private synchronized void markWarm(Layer layer, String warmKey) {
+        if (!layer.warm.add(warmKey)) {
+            return;
+        }
+        known.add(ownerRepo(warmKey));
+        try {
+            layer.dir.mkdirs();
+            Files.write(new File(layer.dir, WARM_FILE).toPath(), layer.warm, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Failed to write " + WARM_FILE + " of " + layer.dir + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void clearWarm(Layer layer) {
+        layer.warm.clear();
+        known.clear();
+        for (Layer other : layers.values()) {
+            for (String warmKey : other.warm) {
+                known.add(ownerRepo(warmKey));
+            }
+        }
+        try {
+            Files.deleteIfExists(new File(layer.dir, WARM_FILE).toPath());
+        } catch (IOException e) {
+            System.out.println("Failed to delete " + WARM_FILE + " of " + layer.dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/*
+ * Serves the BuildMetrics in the Prometheus text format.
+ */
+public class MetricsServlet extends HttpServlet {
+    private final BuildMetrics metrics;
+
+    public MetricsServlet(BuildMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        resp.setCharacterEncoding("UTF-8");
+        try (PrintWriter out = resp.getWriter()) {
+            out.print(metrics.render());
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com;
+
+import java.io.IOException;
+
+/*
+ * Receives the output of a process line by line while it runs.
+ */
+@FunctionalInterface
+public interface OutputSink {
+    void line(String line) throws IOException;
+}
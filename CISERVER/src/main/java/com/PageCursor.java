@@ -0,0 +1,50 @@
+package com;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/*
+ * Where a page of builds starts: just after (older than) or just before (newer
+ * than) the build with this timestamp and position, the order it was added in.
+ * Sent to clients as base64 so they do not depend on what is in it.
+ */
+final class PageCursor {
+    final boolean after;
+    final long timestamp;
+    final int position;
+
+    PageCursor(boolean after, long timestamp, int position) {
+        this.after = after;
+        this.timestamp = timestamp;
+        this.position = position;
+    }
+
+    static String after(long timestamp, int position) {
+        return encode("a", timestamp, position);
+    }
+
+    static String before(long timestamp, int position) {
+        return encode("b", timestamp, position);
+    }
+
+    private static String encode(String direction, long timestamp, int position) {
+        String text = direction + ":" + timestamp + ":" + position;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Null for no cursor; throws IllegalArgumentException for one that was not made here.
+    static PageCursor parse(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+            if (parts.length == 3 && (parts[0].equals("a") || parts[0].equals("b"))) {
+                return new PageCursor(parts[0].equals("a"), Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+            }
+        } catch (IllegalArgumentException e) {
+            // Not base64 or not numbers, rejected below.
+        }
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+}
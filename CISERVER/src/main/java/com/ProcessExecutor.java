@@ -8,6 +8,26 @@ import java.io.IOException;
  */
 public interface ProcessExecutor {
     ProcessResult execute(ProcessBuilder pb) throws IOException, InterruptedException;
+
+    /*
+     * Runs the process on behalf of a build job so that cancelling the job can kill it.
+     */
+    default ProcessResult execute(ProcessBuilder pb, BuildJob job) throws IOException, InterruptedException {
+        return execute(pb);
+    }
+
+    /*
+     * Runs the process and passes every line of its output to the sink as it
+     * arrives. The output of the result is then only the tail.
+     * Executors that can't stream pass the lines on once the process is done.
+     */
+    default ProcessResult execute(ProcessBuilder pb, BuildJob job, OutputSink sink) throws IOException, InterruptedException {
+        ProcessResult result = job == null ? execute(pb) : execute(pb, job);
+        for (String line : result.getOutput().lines().toList()) {
+            sink.line(line);
+        }
+        return result;
+    }
 }
 
 
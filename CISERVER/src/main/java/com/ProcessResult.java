@@ -4,14 +4,22 @@ package com;
 /*
  * Need to define 
  * 
+ * For processes whose output was streamed into a BuildLog, output only holds the
+ * tail of it and the whole output is in the log.
  */
 public class ProcessResult {
     private final int exitCode;
     private final String output;
+    private final BuildLog log;
 
     public ProcessResult(int exitCode, String output) {
+        this(exitCode, output, null);
+    }
+
+    public ProcessResult(int exitCode, String output, BuildLog log) {
         this.exitCode = exitCode;
         this.output = output;
+        this.log = log;
     }
 
     public int getExitCode() {
@@ -21,4 +29,9 @@ public class ProcessResult {
     public String getOutput() {
         return output;
     }
+
+    // The log the whole output was written to, or null.
+    public BuildLog getLog() {
+        return log;
+    }
 }
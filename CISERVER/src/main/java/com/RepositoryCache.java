@@ -0,0 +1,298 @@
+package com;
+
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Keeps a bare mirror of every built repository on local disk, so a build only
+ * has to fetch the commits that are new since the last build instead of cloning
+ * the whole history. Build workspaces are git worktrees of the mirror, checked
+ * out at the exact commit, which shares the objects with the mirror.
+ *
+ * Fetching and adding or removing worktrees of the same mirror is serialized by
+ * a per-repository lock. When the mirrors together get bigger than maxBytes the
+ * least recently used ones that no build is using are deleted.
+ *
+ * The size of a mirror is measured after it was fetched or a worktree was
+ * removed, under its own lock only, and the cache keeps the total. Once the
+ * total is over maxBytes the mirrors are evicted on a background thread, so
+ * checkouts never wait for a walk of the mirrors.
+ */
+public class RepositoryCache implements CheckoutStrategy {
+    private final ProcessExecutor processExecutor;
+    private final File root;
+    private final long maxBytes;
+    private final Map<String, Mirror> mirrors = new HashMap<>();
+    // Sum of the known sizes of the mirrors.
+    private long totalBytes;
+    private boolean evictionScheduled;
+    private final ExecutorService evictor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mirror-eviction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A mirror and the builds using it. Guarded by the RepositoryCache monitor except for the lock itself.
+    private static class Mirror {
+        final File dir;
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+        long lastUsed;
+        // Bytes on disk when last measured, -1 if not measured yet.
+        long size = -1;
+
+        Mirror(File dir) {
+            this.dir = dir;
+            this.lastUsed = dir.lastModified();
+        }
+    }
+
+    // Cache with the location and size taken from CIConfig.
+    public RepositoryCache(ProcessExecutor processExecutor) {
+        this(processExecutor,
+             new File(CIConfig.getString("ci.cache.dir", "repo-cache")),
+             CIConfig.getLong("ci.cache.maxBytes", 10L * 1024 * 1024 * 1024));
+    }
+
+    public RepositoryCache(ProcessExecutor processExecutor, File root, long maxBytes) {
+        this.processExecutor = processExecutor;
+        this.root = root;
+        this.maxBytes = maxBytes;
+        loadExistingMirrors();
+        if (!mirrors.isEmpty()) {
+            // Measures the mirrors of an earlier run.
+            scheduleEviction();
+        }
+    }
+
+    /*
+     * Updates the mirror of the repository from cloneUrl and checks out the commit
+     * into the workspace directory, which must not exist or be empty.
+     * Every workspace must be given back with cleanup.
+     */
+    @Override
+    public void checkout(String owner, String repo, String cloneUrl, String commitSHA,
+                         File workspace, BuildJob job) throws Exception {
+        Mirror mirror = acquire(owner, repo);
+        boolean created = false;
+        mirror.lock.lock();
+        try {
+            updateMirror(mirror, cloneUrl, job);
+            measure(mirror);
+            ProcessResult result = git(mirror, job, "worktree", "add", "--detach",
+                                       workspace.getAbsolutePath(), commitSHA);
+            if (result.getExitCode() != 0) {
+                throw new Exception("Git checkout of commit " + commitSHA + " failed: " + result.getOutput());
+            }
+            created = true;
+        } finally {
+            mirror.lock.unlock();
+            if (!created) {
+                release(mirror);
+            }
+        }
+    }
+
+    /*
+     * Removes a workspace created by checkout and evicts cold mirrors if
+     * the cache has grown too big.
+     */
+    @Override
+    public void cleanup(String owner, String repo, File workspace) {
+        Mirror mirror;
+        synchronized (this) {
+            mirror = mirrors.get(key(owner, repo));
+        }
+        if (mirror == null) {
+            return;
+        }
+        mirror.lock.lock();
+        try {
+            git(mirror, null, "worktree", "remove", "--force", workspace.getAbsolutePath());
+            if (workspace.exists()) {
+                FileUtils.deleteDirectory(workspace);
+            }
+            git(mirror, null, "worktree", "prune");
+            measure(mirror);
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Failed to remove workspace " + workspace + ": " + e.getMessage());
+        } finally {
+            mirror.lock.unlock();
+            release(mirror);
+        }
+    }
+
+    // Measures a mirror whose lock is held and schedules an eviction if the cache got too big.
+    private void measure(Mirror mirror) {
+        long size = mirror.dir.exists() ? FileUtils.sizeOfDirectory(mirror.dir) : 0;
+        synchronized (this) {
+            totalBytes += size - Math.max(0, mirror.size);
+            mirror.size = size;
+            if (totalBytes > maxBytes) {
+                scheduleEviction();
+            }
+        }
+    }
+
+    // Evicts on the background thread unless an eviction is waiting already.
+    private synchronized void scheduleEviction() {
+        if (evictionScheduled) {
+            return;
+        }
+        evictionScheduled = true;
+        evictor.submit(() -> {
+            synchronized (this) {
+                evictionScheduled = false;
+            }
+            try {
+                evict();
+            } catch (RuntimeException e) {
+                System.out.println("Evicting repository mirrors failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /*
+     * Deletes the least recently used mirrors that are not in use until the
+     * cache fits into maxBytes again. Mirrors not measured yet are measured
+     * first. The victims are only picked under the cache monitor; they are
+     * deleted holding just their own lock, which a build of the repository
+     * starting meanwhile waits for before it creates the mirror again.
+     */
+    public void evict() {
+        List<Mirror> unmeasured = new ArrayList<>();
+        synchronized (this) {
+            for (Mirror mirror : mirrors.values()) {
+                if (mirror.size < 0) {
+                    unmeasured.add(mirror);
+                }
+            }
+        }
+        for (Mirror mirror : unmeasured) {
+            if (mirror.lock.tryLock()) {
+                try {
+                    if (mirror.size < 0) {
+                        measure(mirror);
+                    }
+                } finally {
+                    mirror.lock.unlock();
+                }
+            }
+        }
+        List<Map.Entry<String, Mirror>> victims = new ArrayList<>();
+        synchronized (this) {
+            long total = totalBytes;
+            List<Map.Entry<String, Mirror>> candidates = new ArrayList<>(mirrors.entrySet());
+            candidates.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+            for (Map.Entry<String, Mirror> entry : candidates) {
+                if (total <= maxBytes) {
+                    break;
+                }
+                Mirror mirror = entry.getValue();
+                if (mirror.users == 0 && mirror.lock.tryLock()) {
+                    victims.add(entry);
+                    total -= Math.max(0, mirror.size);
+                }
+            }
+        }
+        for (Map.Entry<String, Mirror> entry : victims) {
+            Mirror mirror = entry.getValue();
+            try {
+                FileUtils.deleteDirectory(mirror.dir);
+                synchronized (this) {
+                    totalBytes -= Math.max(0, mirror.size);
+                    mirror.size = 0;
+                    // A build that took the mirror meanwhile creates it again.
+                    if (mirror.users == 0) {
+                        mirrors.remove(entry.getKey());
+                    }
+                }
+                System.out.println("Evicted repository mirror " + entry.getKey());
+            } catch (IOException e) {
+                System.out.println("Failed to evict mirror " + mirror.dir + ": " + e.getMessage());
+            } finally {
+                mirror.lock.unlock();
+            }
+        }
+    }
+
+    // Directory of the mirror of a repository, whether or not it exists yet.
+    public File getMirrorDir(String owner, String repo) {
+        return new File(new File(root, owner), repo + ".git");
+    }
+
+    private synchronized Mirror acquire(String owner, String repo) {
+        Mirror mirror = mirrors.computeIfAbsent(key(owner, repo), k -> new Mirror(getMirrorDir(owner, repo)));
+        mirror.users++;
+        mirror.lastUsed = System.currentTimeMillis();
+        return mirror;
+    }
+
+    private synchronized void release(Mirror mirror) {
+        mirror.users--;
+        mirror.lastUsed = System.currentTimeMillis();
+        // The mirror may be evicted now.
+        if (totalBytes > maxBytes) {
+            scheduleEviction();
+        }
+    }
+
+    /*
+     * Creates the bare mirror on first use and fetches all branches and tags.
+     * The URL is passed on every fetch so the token in it is never stored on disk.
+     */
+    private void updateMirror(Mirror mirror, String cloneUrl, BuildJob job) throws Exception {
+        if (!new File(mirror.dir, "HEAD").exists()) {
+            mirror.dir.mkdirs();
+            ProcessResult init = git(mirror, job, "init", "--bare");
+            if (init.getExitCode() != 0) {
+                throw new Exception("Git init of mirror failed: " + init.getOutput());
+            }
+        }
+        ProcessResult fetch = git(mirror, job, "fetch", "--prune", "--tags", cloneUrl,
+                                  "+refs/heads/*:refs/heads/*");
+        if (fetch.getExitCode() != 0) {
+            throw new Exception("Git fetch into mirror failed: " + fetch.getOutput());
+        }
+    }
+
+    private ProcessResult git(Mirror mirror, BuildJob job, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(List.of(args));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(mirror.dir);
+        return job == null ? processExecutor.execute(pb) : processExecutor.execute(pb, job);
+    }
+
+    // Registers mirrors left on disk by an earlier run of the server.
+    private void loadExistingMirrors() {
+        File[] owners = root.listFiles(File::isDirectory);
+        if (owners == null) {
+            return;
+        }
+        for (File ownerDir : owners) {
+            File[] repos = ownerDir.listFiles(f -> f.isDirectory() && f.getName().endsWith(".git"));
+            if (repos == null) {
+                continue;
+            }
+            for (File repoDir : repos) {
+                String repo = repoDir.getName().substring(0, repoDir.getName().length() - ".git".length());
+                mirrors.put(key(ownerDir.getName(), repo), new Mirror(repoDir));
+            }
+        }
+    }
+
+    private static String key(String owner, String repo) {
+        return owner + "/" + repo;
+    }
+}
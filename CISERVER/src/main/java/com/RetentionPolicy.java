@@ -0,0 +1,40 @@
+package com;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Which build statuses a store keeps; the others are moved to its archive (see
+ * BuildStatusArchive). A status is kept if it is one of the newest keepPerBranch
+ * builds of its repository and branch, or if it is younger than maxAgeMillis.
+ * A limit of 0 is not used, and with neither limit every status is kept.
+ */
+public final class RetentionPolicy {
+    public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0);
+    // How often a store applies the policy, at most.
+    static final long INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(CIConfig.getLong("ci.store.retentionMinutes", 60));
+
+    final int keepPerBranch;
+    final long maxAgeMillis;
+
+    public RetentionPolicy(int keepPerBranch, long maxAgeMillis) {
+        this.keepPerBranch = Math.max(0, keepPerBranch);
+        this.maxAgeMillis = Math.max(0, maxAgeMillis);
+    }
+
+    // The policy of ci.store.keepPerBranch and ci.store.retentionDays.
+    public static RetentionPolicy fromConfig() {
+        return new RetentionPolicy(CIConfig.getInt("ci.store.keepPerBranch", 0),
+                                   TimeUnit.DAYS.toMillis(CIConfig.getLong("ci.store.retentionDays", 0)));
+    }
+
+    public boolean keepsAll() {
+        return keepPerBranch == 0 && maxAgeMillis == 0;
+    }
+
+    // newer is how many builds of the same repository and branch are newer than this one.
+    public boolean keeps(int newer, long timestamp, long now) {
+        return keepsAll()
+               || keepPerBranch > 0 && newer < keepPerBranch
+               || maxAgeMillis > 0 && now - timestamp < maxAgeMillis;
+    }
+}
@@ -0,0 +1,72 @@
+package com;
+
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Fetches only the pushed commit with depth 1 into an empty repository instead
+ * of cloning the whole history. Servers that don't allow fetching a commit by
+ * its SHA get a full clone instead.
+ */
+public class ShallowFetchCheckout implements CheckoutStrategy {
+    private final ProcessExecutor processExecutor;
+    private final CheckoutStrategy fallback;
+
+    public ShallowFetchCheckout(ProcessExecutor processExecutor) {
+        this(processExecutor, new FullCloneCheckout(processExecutor));
+    }
+
+    public ShallowFetchCheckout(ProcessExecutor processExecutor, CheckoutStrategy fallback) {
+        this.processExecutor = processExecutor;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void checkout(String owner, String repo, String cloneUrl, String commitSHA,
+                         File workspace, BuildJob job) throws Exception {
+        workspace.mkdirs();
+        boolean done = false;
+        try {
+            ProcessResult init = git(workspace, job, "init", "--quiet");
+            if (init.getExitCode() != 0) {
+                throw new Exception("Git init failed: " + init.getOutput());
+            }
+            ProcessResult fetch = git(workspace, job, "fetch", "--depth", "1", cloneUrl, commitSHA);
+            if (fetch.getExitCode() != 0) {
+                System.out.println("Fetching commit " + commitSHA + " failed, falling back to a full clone: " + fetch.getOutput());
+                FileUtils.deleteDirectory(workspace);
+                fallback.checkout(owner, repo, cloneUrl, commitSHA, workspace, job);
+                done = true;
+                return;
+            }
+            ProcessResult checkout = git(workspace, job, "checkout", "--quiet", "--detach", "FETCH_HEAD");
+            if (checkout.getExitCode() != 0) {
+                throw new Exception("Git checkout of commit " + commitSHA + " failed: " + checkout.getOutput());
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                cleanup(owner, repo, workspace);
+            }
+        }
+    }
+
+    @Override
+    public void cleanup(String owner, String repo, File workspace) {
+        try {
+            FileUtils.deleteDirectory(workspace);
+        } catch (IOException e) {
+            System.out.println("Failed to delete workspace: " + e.getMessage());
+        }
+    }
+
+    private ProcessResult git(File workspace, BuildJob job, String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(workspace);
+        return job == null ? processExecutor.execute(pb) : processExecutor.execute(pb, job);
+    }
+}
@@ -0,0 +1,351 @@
+package com;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/*
+ * One version of the snapshot file, open for reading the statuses that are not
+ * kept in memory.
+ *
+ * The snapshot is a JSON array with one status per line. Next to it the index
+ * file has, for every status, where its JSON is and the values the lookups
+ * need, so that startup only parses the statuses it keeps in memory. The index
+ * names the length of the snapshot and a checksum of its end; if they don't
+ * match, e.g. after a crash between writing the two, the snapshot is read whole
+ * and the index written again.
+ *
+ * A version stays readable after a newer snapshot replaced the file, for the
+ * BuildStatusSnapshots that still point into it. It is closed once none does.
+ */
+final class StatusFile {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Cleaner cleaner = Cleaner.create();
+    private static final int INDEX_MAGIC = 0x43494458;
+    private static final int INDEX_VERSION = 2;
+    private static final byte KEY_NULL = 0;
+    private static final byte KEY_STRING = 1;
+    private static final byte KEY_UUID = 2;
+    private static final byte KEY_SHA = 3;
+    // The end of the snapshot that the index checksum covers.
+    private static final int CHECKED_BYTES = 64 * 1024;
+
+    private final FileChannel channel;
+
+    private StatusFile(FileChannel channel) {
+        this.channel = channel;
+        cleaner.register(this, new Closer(channel));
+    }
+
+    // Must not refer to the StatusFile, or it would never become unreachable.
+    private static class Closer implements Runnable {
+        private final FileChannel channel;
+
+        Closer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close a build status snapshot: " + e.getMessage());
+            }
+        }
+    }
+
+    private static StatusFile open(File file) throws IOException {
+        return new StatusFile(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Build status snapshot ends before the status at " + offset);
+            }
+        }
+        return buffer.array();
+    }
+
+    BuildStatus readStatus(long offset, int length) {
+        try {
+            return mapper.readValue(read(offset, length), BuildStatus.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read a build status from the snapshot", e);
+        }
+    }
+
+    static byte[] json(BuildStatus status) throws JsonProcessingException {
+        return mapper.writeValueAsBytes(status);
+    }
+
+    /*
+     * The statuses of a snapshot, the last window of them in memory. Without an
+     * index that matches, the whole snapshot is parsed. If it breaks off in the
+     * middle, e.g. because the disk was full, the statuses before that are kept,
+     * the damaged file is saved next to it and the snapshot cut after the last
+     * whole status.
+     */
+    static List<StoredStatus> load(File snapshot, File index, int window) throws IOException {
+        if (!snapshot.exists() || snapshot.length() == 0) {
+            return new ArrayList<>();
+        }
+        List<StoredStatus> statuses = readIndex(snapshot, index, window);
+        return statuses != null ? statuses : scan(snapshot, index, window);
+    }
+
+    /*
+     * Writes the statuses as the new snapshot and index, replacing the old ones.
+     * Returns them as they are stored now, the last window of them in memory.
+     */
+    static List<StoredStatus> write(File snapshot, File index, List<StoredStatus> statuses, int window)
+            throws IOException {
+        int count = statuses.size();
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             OutputStream out = new BufferedOutputStream(file, 64 * 1024)) {
+            long position = 0;
+            out.write('[');
+            out.write('\n');
+            position += 2;
+            for (int i = 0; i < count; i++) {
+                byte[] json = statuses.get(i).json();
+                offsets[i] = position;
+                lengths[i] = json.length;
+                out.write(json);
+                position += json.length;
+                if (i < count - 1) {
+                    out.write(',');
+                    position++;
+                }
+                out.write('\n');
+                position++;
+            }
+            out.write(']');
+            out.write('\n');
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        StatusFile file = open(snapshot);
+        List<StoredStatus> moved = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            moved.add(statuses.get(i).movedTo(file, offsets[i], lengths[i], i >= count - window));
+        }
+        writeIndex(snapshot, index, moved, offsets, lengths);
+        return moved;
+    }
+
+    // The statuses listed in the index, or null if there is no index for this snapshot.
+    private static List<StoredStatus> readIndex(File snapshot, File index, int window) throws IOException {
+        if (!index.exists()) {
+            return null;
+        }
+        StatusFile file = open(snapshot);
+        long length = file.channel.size();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index), 64 * 1024))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || in.readLong() != length || in.readLong() != tailChecksum(file.channel, length)) {
+                return null;
+            }
+            int count = in.readInt();
+            int first = Math.max(0, count - window);
+            List<StoredStatus> statuses = new ArrayList<>(count);
+            byte[] recent = null;
+            long recentOffset = 0;
+            for (int i = 0; i < count; i++) {
+                long offset = in.readLong();
+                int size = in.readInt();
+                long timestamp = in.readLong();
+                BuildStatus status = null;
+                if (i >= first) {
+                    // The recent ones are next to each other at the end, read them at once.
+                    if (recent == null) {
+                        recentOffset = offset;
+                        recent = file.read(offset, (int) (length - offset));
+                    }
+                    status = mapper.readValue(recent, (int) (offset - recentOffset), size, BuildStatus.class);
+                }
+                statuses.add(new StoredStatus(status, file, offset, size, readKey(in), timestamp, readString(in),
+                                              readString(in), readKey(in)));
+            }
+            return statuses;
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable " + index + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * Parses the whole snapshot. This also reads snapshots written before there
+     * was an index, which had a status over several lines.
+     */
+    private static List<StoredStatus> scan(File snapshot, File index, int window) throws IOException {
+        List<BuildStatus> parsed = new ArrayList<>();
+        List<long[]> places = new ArrayList<>();
+        long end = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024);
+             JsonParser parser = mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "The snapshot is not a JSON array");
+            }
+            end = parser.currentLocation().getByteOffset();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                long start = parser.currentTokenLocation().getByteOffset();
+                parsed.add(mapper.readValue(parser, BuildStatus.class));
+                end = parser.currentLocation().getByteOffset();
+                places.add(new long[] { start, end - start });
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new JsonParseException(parser, "Expected a status or the end of the array");
+            }
+        } catch (IOException e) {
+            truncate(snapshot, parsed.size(), end, e);
+        }
+        StatusFile file = open(snapshot);
+        int count = parsed.size();
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        List<StoredStatus> statuses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = places.get(i)[0];
+            lengths[i] = (int) places.get(i)[1];
+            statuses.add(new StoredStatus(parsed.get(i)).movedTo(file, offsets[i], lengths[i], i >= count - window));
+        }
+        writeIndex(snapshot, index, statuses, offsets, lengths);
+        return statuses;
+    }
+
+    // Keeps the statuses before the damage, after saving the damaged snapshot.
+    private static void truncate(File snapshot, int count, long end, IOException damage) throws IOException {
+        File damaged = new File(snapshot.getPath() + ".damaged");
+        System.err.println(snapshot + " is damaged after " + count + " statuses (" + damage.getMessage()
+                           + "). Keeping those and saving the damaged file as " + damaged + ".");
+        Files.copy(snapshot.toPath(), damaged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.WRITE)) {
+            if (count == 0) {
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap("[]\n".getBytes(StandardCharsets.UTF_8)), 0);
+            } else {
+                channel.truncate(end);
+                channel.write(ByteBuffer.wrap("\n]\n".getBytes(StandardCharsets.UTF_8)), end);
+            }
+            channel.force(true);
+        }
+    }
+
+    private static void writeIndex(File snapshot, File index, List<StoredStatus> statuses, long[] offsets,
+                                   int[] lengths) throws IOException {
+        File tmp = new File(index.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+             FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            long length = channel.size();
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(length);
+            out.writeLong(tailChecksum(channel, length));
+            out.writeInt(statuses.size());
+            for (int i = 0; i < statuses.size(); i++) {
+                StoredStatus status = statuses.get(i);
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                out.writeLong(status.timestamp);
+                writeKey(out, status.id);
+                writeString(out, status.repo);
+                writeString(out, status.branch);
+                writeKey(out, status.commit);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long tailChecksum(FileChannel channel, long length) throws IOException {
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(CHECKED_BYTES, length));
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, length - tail.capacity() + tail.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(tail.array());
+        return crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // A key of StatusKeys as a type byte and its value.
+    private static void writeKey(DataOutputStream out, Object key) throws IOException {
+        if (key instanceof UUID) {
+            out.writeByte(KEY_UUID);
+            out.writeLong(((UUID) key).getMostSignificantBits());
+            out.writeLong(((UUID) key).getLeastSignificantBits());
+        } else if (key instanceof StatusKeys.Sha) {
+            StatusKeys.Sha sha = (StatusKeys.Sha) key;
+            out.writeByte(KEY_SHA);
+            out.writeLong(sha.high);
+            out.writeLong(sha.middle);
+            out.writeInt(sha.low);
+        } else if (key != null) {
+            out.writeByte(KEY_STRING);
+            out.writeUTF((String) key);
+        } else {
+            out.writeByte(KEY_NULL);
+        }
+    }
+
+    private static Object readKey(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case KEY_UUID:
+                return new UUID(in.readLong(), in.readLong());
+            case KEY_SHA:
+                return new StatusKeys.Sha(in.readLong(), in.readLong(), in.readInt());
+            case KEY_STRING:
+                return in.readUTF();
+            case KEY_NULL:
+                return null;
+            default:
+                throw new IOException("Unknown key type in the build status index");
+        }
+    }
+}
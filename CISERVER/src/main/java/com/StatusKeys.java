@@ -0,0 +1,111 @@
+package com;
+
+import java.lang.ref.WeakReference;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+/*
+ * Smaller forms of the values every build status has, for the statuses that
+ * are kept in memory by the hundred thousand:
+ *
+ * - An id made by BuildStatus is a UUID, two longs instead of a 36 character
+ *   string.
+ * - A full commit SHA is a Sha, 20 bytes instead of 40 characters.
+ * - Repository and branch names repeat from build to build and are shared
+ *   through one dictionary. It holds them weakly, so the names of statuses
+ *   that were dropped or archived don't stay in memory.
+ *
+ * Values that don't have the expected form, like ids set by hand, are kept as
+ * they are. toString() of a key always gives back the original string, and
+ * keys are equal if their strings are, so they can be used in maps.
+ */
+final class StatusKeys {
+    // The value refers to the key weakly too, or the key could never be collected. Guarded by itself.
+    private static final WeakHashMap<String, WeakReference<String>> names = new WeakHashMap<>();
+
+    private StatusKeys() {}
+
+    // A UUID if the id is one in its usual lower case form, otherwise the id.
+    static Object id(String id) {
+        if (id == null || id.length() != 36) {
+            return id;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : id;
+        } catch (IllegalArgumentException e) {
+            return id;
+        }
+    }
+
+    // A Sha if the commit is a full lower case SHA-1, otherwise the commit.
+    static Object commit(String commit) {
+        if (commit == null || commit.length() != 40) {
+            return commit;
+        }
+        long[] parts = new long[3];
+        for (int i = 0; i < 40; i++) {
+            char c = commit.charAt(i);
+            int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+            if (digit < 0) {
+                return commit;
+            }
+            parts[i / 16] = parts[i / 16] << 4 | digit;
+        }
+        return new Sha(parts[0], parts[1], (int) parts[2]);
+    }
+
+    // The same name as the last time it was seen, so each name in use is in memory once.
+    static String name(String name) {
+        if (name == null) {
+            return null;
+        }
+        synchronized (names) {
+            WeakReference<String> reference = names.get(name);
+            String known = reference != null ? reference.get() : null;
+            if (known != null) {
+                return known;
+            }
+            names.put(name, new WeakReference<>(name));
+            return name;
+        }
+    }
+
+    static String text(Object key) {
+        return key == null ? null : key.toString();
+    }
+
+    // A SHA-1 as 16 + 16 + 8 hex digits.
+    static final class Sha {
+        final long high;
+        final long middle;
+        final int low;
+
+        Sha(long high, long middle, int low) {
+            this.high = high;
+            this.middle = middle;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Sha && ((Sha) other).high == high && ((Sha) other).middle == middle
+                   && ((Sha) other).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ middle) ^ low;
+        }
+
+        @Override
+        public String toString() {
+            return hex(high, 16) + hex(middle, 16) + hex(low & 0xffffffffL, 8);
+        }
+
+        private static String hex(long value, int digits) {
+            String hex = Long.toHexString(value);
+            return "0".repeat(digits - hex.length()) + hex;
+        }
+    }
+}
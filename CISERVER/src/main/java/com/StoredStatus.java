@@ -0,0 +1,73 @@
+package com;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+
+/*
+ * A build status of a BuildStatusSnapshot, either in memory or only in a
+ * snapshot file, from which it is read when it is needed. The values the
+ * lookups use are in memory either way, copied when the status was stored,
+ * in the small forms of StatusKeys.
+ */
+final class StoredStatus {
+    // See StatusKeys.id.
+    final Object id;
+    final long timestamp;
+    final String repo;
+    final String branch;
+    // See StatusKeys.commit.
+    final Object commit;
+    // Null if the status is only on disk.
+    private final BuildStatus status;
+    // Where its JSON is, or null if it is not in a snapshot file yet.
+    private final StatusFile file;
+    private final long offset;
+    private final int length;
+    // The status last read from disk, which may be dropped again when memory is short.
+    private volatile SoftReference<BuildStatus> cached;
+
+    StoredStatus(BuildStatus status) {
+        this(status, null, 0, 0, status.idKey(), status.getTimestamp(), status.getRepoName(), status.getBranch(),
+             status.commitKey());
+    }
+
+    StoredStatus(BuildStatus status, StatusFile file, long offset, int length, Object id, long timestamp,
+                 String repo, String branch, Object commit) {
+        this.status = status;
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.repo = StatusKeys.name(repo);
+        this.branch = StatusKeys.name(branch);
+        this.commit = commit;
+    }
+
+    BuildStatus get() {
+        if (status != null) {
+            return status;
+        }
+        SoftReference<BuildStatus> reference = cached;
+        BuildStatus loaded = reference == null ? null : reference.get();
+        if (loaded == null) {
+            loaded = file.readStatus(offset, length);
+            cached = new SoftReference<>(loaded);
+        }
+        return loaded;
+    }
+
+    boolean isInMemory() {
+        return status != null;
+    }
+
+    // The status as JSON, copied from the file if it is in one.
+    byte[] json() throws IOException {
+        return file != null ? file.read(offset, length) : StatusFile.json(status);
+    }
+
+    // The same status at its place in a new snapshot file, kept in memory only if keep is true.
+    StoredStatus movedTo(StatusFile file, long offset, int length, boolean keep) {
+        return new StoredStatus(keep ? get() : null, file, offset, length, id, timestamp, repo, branch, commit);
+    }
+}
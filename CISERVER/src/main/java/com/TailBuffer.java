@@ -0,0 +1,51 @@
+package com;
+
+import java.util.ArrayDeque;
+
+/*
+ * Keeps the last lines of an output, at most maxChars characters of them.
+ * Older lines are dropped and only counted; of a line longer than maxChars on
+ * its own only the end is kept.
+ */
+public class TailBuffer implements OutputSink {
+    private final int maxChars;
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    private int chars;
+    private long dropped;
+
+    public TailBuffer(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    @Override
+    public synchronized void line(String line) {
+        if (line.length() >= maxChars) {
+            line = line.substring(line.length() - Math.max(0, maxChars - 1));
+        }
+        lines.addLast(line);
+        chars += line.length() + 1;
+        // The newest line is always kept.
+        while (chars > maxChars && lines.size() > 1) {
+            chars -= lines.removeFirst().length() + 1;
+            dropped++;
+        }
+    }
+
+    // Number of lines that did not fit.
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    // The kept lines, each ending with a newline, after a note on how many were dropped.
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder(chars + 40);
+        if (dropped > 0) {
+            out.append("[").append(dropped).append(" earlier lines omitted]\n");
+        }
+        for (String line : lines) {
+            out.append(line).append("\n");
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,173 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for BuildApiServlet on a running Jetty server.
+ *
+ * Contract being tested:
+ * - /api/builds/<id> returns a build as JSON, also an archived one, and 404
+ *   for an unknown id.
+ * - /api/builds returns the builds newest first, filtered by repository,
+ *   branch, commit, status and time; following nextCursor returns every match
+ *   once until it is null.
+ * - With format=ndjson every matching build is one line of JSON.
+ * - Invalid times and cursors are answered with 400.
+ */
+public class BuildApiServletTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private FileBuildStatusStore statusStore;
+    private Server server;
+    private int port;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        start(new FileBuildStatusStore(tempDir.resolve("store").toFile(), RetentionPolicy.KEEP_ALL));
+    }
+
+    private void start(FileBuildStatusStore store) throws Exception {
+        statusStore = store;
+        server = new Server(0);
+        ServletContextHandler handler = new ServletContextHandler();
+        handler.addServlet(new ServletHolder(new BuildApiServlet(statusStore)), "/api/builds/*");
+        server.setHandler(handler);
+        server.start();
+        port = server.getURI().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.stop();
+        statusStore.close();
+    }
+
+    @Test
+    public void build_shouldBeFoundById() throws Exception {
+        // A store that archives all but the newest build of a branch.
+        tearDown();
+        start(new FileBuildStatusStore(tempDir.resolve("retained").toFile(), new RetentionPolicy(1, 0)));
+        BuildStatus old = add("repo", "main", "sha1", true, 1000);
+        BuildStatus newer = add("repo", "main", "sha2", false, 2000);
+        statusStore.applyRetention();
+
+        JsonNode build = json(get("/api/builds/" + newer.getId(), 200));
+        assertEquals("sha2", build.get("commitSHA").asText());
+        assertEquals("failure", build.get("state").asText());
+        assertEquals(2000, build.get("timestamp").asLong());
+        assertFalse(build.get("archived").asBoolean());
+
+        JsonNode archived = json(get("/api/builds/" + old.getId(), 200));
+        assertEquals("sha1", archived.get("commitSHA").asText());
+        assertTrue(archived.get("archived").asBoolean());
+
+        assertTrue(json(get("/api/builds/unknown", 404)).has("error"));
+    }
+
+    @Test
+    public void builds_shouldBeFilteredAndPaged() throws Exception {
+        List<String> failures = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            BuildStatus status = add("repo", i % 2 == 0 ? "main" : "feature", "sha" + i, i % 3 != 0, 1000 + i);
+            if (i % 3 == 0 && i >= 5 && i <= 25) {
+                failures.add(0, status.getId());
+            }
+        }
+        add("other", "main", "sha0", false, 1010);
+
+        // Pages of 2 failures between 1005 and 1025, newest first.
+        List<String> found = new ArrayList<>();
+        String cursor = null;
+        do {
+            JsonNode page = json(get("/api/builds?repo=repo&status=failure&since=1005&until=1025&limit=2"
+                                     + (cursor == null ? "" : "&cursor=" + cursor), 200));
+            for (JsonNode build : page.get("builds")) {
+                found.add(build.get("id").asText());
+            }
+            cursor = page.get("nextCursor").isNull() ? null : page.get("nextCursor").asText();
+        } while (cursor != null);
+        assertEquals(failures, found);
+
+        JsonNode main = json(get("/api/builds?repo=repo&branch=main&limit=100", 200));
+        assertEquals(15, main.get("builds").size());
+        assertTrue(main.get("nextCursor").isNull());
+        JsonNode commit = json(get("/api/builds?sha=sha0", 200));
+        assertEquals("other", commit.get("builds").get(0).get("repoName").asText());
+        assertEquals(2, commit.get("builds").size());
+        JsonNode until = json(get("/api/builds?until=1970-01-01T00:00:01.002Z", 200));
+        assertEquals(List.of(1002L, 1001L, 1000L), timestamps(until.get("builds")));
+    }
+
+    @Test
+    public void ndjson_shouldExportEveryMatchingBuild() throws Exception {
+        for (int i = 0; i < 1200; i++) {
+            add("repo" + i % 2, "main", "sha" + i, true, i);
+        }
+        String[] lines = get("/api/builds?repo=repo1&format=ndjson", 200).body().split("\n");
+        assertEquals(600, lines.length);
+        assertEquals(1199, mapper.readTree(lines[0]).get("timestamp").asLong());
+        assertEquals(1, mapper.readTree(lines[599]).get("timestamp").asLong());
+
+        HttpResponse<String> accepted = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/builds?limit=3"))
+                        .header("Accept", BuildApiServlet.NDJSON).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(BuildApiServlet.NDJSON, accepted.headers().firstValue("Content-Type").orElse(null));
+        assertEquals(3, accepted.body().split("\n").length);
+    }
+
+    @Test
+    public void invalidParameters_shouldBeRejected() throws Exception {
+        assertTrue(json(get("/api/builds?since=yesterday", 400)).get("error").asText().contains("since"));
+        assertTrue(json(get("/api/builds?cursor=broken", 400)).get("error").asText().contains("cursor"));
+    }
+
+    private BuildStatus add(String repo, String branch, String sha, boolean success, long timestamp) {
+        BuildStatus status = new BuildStatus(repo, sha, branch, success, "Details");
+        status.setTimestamp(timestamp);
+        statusStore.addStatus(status);
+        return status;
+    }
+
+    private HttpResponse<String> get(String path, int expectedStatus) throws Exception {
+        HttpResponse<String> response = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(expectedStatus, response.statusCode(), response.body());
+        return response;
+    }
+
+    private JsonNode json(HttpResponse<String> response) throws Exception {
+        return mapper.readTree(response.body());
+    }
+
+    private static List<Long> timestamps(JsonNode builds) {
+        List<Long> timestamps = new ArrayList<>();
+        for (JsonNode build : builds) {
+            timestamps.add(build.get("timestamp").asLong());
+        }
+        return timestamps;
+    }
+}
@@ -27,6 +27,9 @@ public class BuildAtCommitErrorIntegrationTest {
     @Mock
     private ProcessExecutor processExecutor;
 
+    @Mock
+    private BuildStatusStore statusStore;
+
     // Declare the webhook as a class-level field.
     private GithubWebhook webhook;
     private GitHubClient githubclient; 
@@ -36,7 +39,7 @@ public class BuildAtCommitErrorIntegrationTest {
     @BeforeEach
     public void setup() {
        // Initialize the class-level webhook instance.
-       webhook = new GithubWebhook(processExecutor, githubclient);
+       webhook = new GithubWebhook(processExecutor, githubclient, statusStore);
     }
 
     @AfterEach
@@ -1,26 +1,28 @@
 package com;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 
 
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.BeforeEach;
-import org.junit.jupiter.api.AfterAll;
-import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import com.BuildDetailServlet;
@@ -32,46 +34,26 @@ public class BuildDetailServletTest {
     private BuildDetailServlet servlet;
     private HttpServletRequest request;
     private HttpServletResponse response;
-    private StringWriter responseWriter;
-
-
-  
-    // Variable to hold the original file content
-    private static String originalFileContent;
-    // The path to the persistent file.
-    private static final String FILE_PATH = "build_statuses.json";
-    @BeforeAll
-    public static void backupFile() throws IOException {
-        Path path = Paths.get(FILE_PATH);
-        if (Files.exists(path)) {
-            originalFileContent = Files.readString(path, StandardCharsets.UTF_8);
-        } else {
-            originalFileContent = null;
-        }
-    }
+    private ByteArrayOutputStream responseBody;
+
+    // A new store for every test, in a directory of its own.
+    @TempDir
+    Path storeDir;
+    private FileBuildStatusStore statusStore;
 
-    @AfterAll
-    public static void restoreFile() throws IOException {
-        Path path = Paths.get(FILE_PATH);
-        if (originalFileContent != null) {
-            // Restore the original content.
-            Files.writeString(path, originalFileContent, StandardCharsets.UTF_8);
-        } else {
-            // If the file did not originally exist, remove any file created during tests.
-            Files.deleteIfExists(path);
-        }
-    }
-    
     @BeforeEach
     public void setUp() throws Exception {
-        servlet = new BuildDetailServlet();
+        statusStore = new FileBuildStatusStore(storeDir.toFile());
+        servlet = new BuildDetailServlet(statusStore);
         request = Mockito.mock(HttpServletRequest.class);
         response = Mockito.mock(HttpServletResponse.class);
-        responseWriter = new StringWriter();
-        Mockito.when(response.getWriter()).thenReturn(new PrintWriter(responseWriter));
+        responseBody = new ByteArrayOutputStream();
+        Mockito.when(response.getOutputStream()).thenReturn(outputStream(responseBody));
+    }
 
-        // Clear the store for a clean state.
-        FileBuildStatusStore.getStatuses().clear();
+    @AfterEach
+    public void tearDown() {
+        statusStore.close();
     }
 
     @Test
@@ -82,7 +64,7 @@ public class BuildDetailServletTest {
     public void testDoGet_statusNotFound() throws Exception {
         Mockito.when(request.getParameter("id")).thenReturn("nonexistent");
         servlet.doGet(request, response);
-        String output = responseWriter.toString();
+        String output = output();
         assertTrue(output.contains("Build status not found for id: nonexistent"),
                 "Output should indicate that no build status was found for the given id.");
     }
@@ -103,11 +85,11 @@ public class BuildDetailServletTest {
         long now = System.currentTimeMillis();
         status.setTimestamp(now);
 
-        FileBuildStatusStore.addStatus(status);
+        statusStore.addStatus(status);
         Mockito.when(request.getParameter("id")).thenReturn("456");
 
         servlet.doGet(request, response);
-        String output = responseWriter.toString();
+        String output = output();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy--dd--MM HH:mm:ss");
         String expectedDate = sdf.format(new Date(now));
 
@@ -119,12 +101,12 @@ public class BuildDetailServletTest {
 
     @Test
     /**
-     * Test that if obtaining the writer from the response throws an IOException,
+     * Test that if obtaining the output stream from the response throws an IOException,
      * the servlet calls sendError with the proper HTTP status code and message.
      */
     public void testDoGet_whenWriterThrowsException() throws Exception {
-        // Force response.getWriter() to throw an IOException.
-        Mockito.when(response.getWriter()).thenThrow(new IOException("Test IOException"));
+        // Force response.getOutputStream() to throw an IOException.
+        Mockito.when(response.getOutputStream()).thenThrow(new IOException("Test IOException"));
         Mockito.when(request.getParameter("id")).thenReturn("anyId");
 
         servlet.doGet(request, response);
@@ -142,7 +124,7 @@ public class BuildDetailServletTest {
     public void testDoGet_nullIdParameter() throws Exception {
         Mockito.when(request.getParameter("id")).thenReturn(null);
         servlet.doGet(request, response);
-        String output = responseWriter.toString();
+        String output = output();
         assertTrue(output.contains("Build status not found for id: null"),
                    "Output should indicate that no build status was found when the id parameter is null.");
     }
@@ -164,15 +146,152 @@ public class BuildDetailServletTest {
         long now = System.currentTimeMillis();
         status.setTimestamp(now);
 
-        FileBuildStatusStore.addStatus(status);
+        statusStore.addStatus(status);
         Mockito.when(request.getParameter("id")).thenReturn("789");
 
         servlet.doGet(request, response);
-        String output = responseWriter.toString();
+        String output = output();
 
         assertTrue(output.contains("Build Detail for ID: 789"),
                    "Output should contain the build detail header with the correct id.");
         // Depending on your implementation, "null" may be printed for missing fields.
         assertTrue(output.contains("null"), "Output should display 'null' for fields that are not set.");
     }
+
+    @Test
+    /**
+     * Test that a finished build is sent with long-lived cache headers and a tag
+     * of its own, and that a request with that tag gets 304 without a page.
+     */
+    public void testDoGet_finishedBuildIsCachedForLong() throws Exception {
+        BuildStatus status = new BuildStatus("Repo", "sha", "main", true, "Build and tests succeeded.");
+        statusStore.addStatus(status);
+        Mockito.when(request.getParameter("id")).thenReturn(status.getId());
+
+        servlet.doGet(request, response);
+        Mockito.verify(response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(response).setHeader(Mockito.eq("ETag"), etag.capture());
+
+        // Other builds don't change its tag.
+        statusStore.addStatus(new BuildStatus("Repo", "sha2", "main", true, "Build and tests succeeded."));
+        HttpServletResponse cached = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(request.getHeader("If-None-Match")).thenReturn(etag.getValue());
+        servlet.doGet(request, cached);
+        Mockito.verify(cached).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Mockito.verify(cached, Mockito.never()).getOutputStream();
+    }
+
+    @Test
+    /**
+     * Test that the page of a finished build is rendered once and then taken
+     * from the cache, while that of a pending build is rendered every time.
+     */
+    public void testDoGet_finishedPageIsRenderedOnce() throws Exception {
+        HtmlFragmentCache pages = new HtmlFragmentCache(1024 * 1024);
+        BuildDetailServlet cachingServlet = new BuildDetailServlet(statusStore, null, pages);
+        BuildStatus pending = new BuildStatus("Repo", "sha1", "main", false, "Build queued.");
+        pending.setState(BuildStatus.STATE_PENDING);
+        BuildStatus finished = new BuildStatus("Repo", "sha2", "main", true, "Build and tests succeeded.");
+        statusStore.addStatus(pending);
+        statusStore.addStatus(finished);
+
+        Mockito.when(request.getParameter("id")).thenReturn(pending.getId());
+        cachingServlet.doGet(request, response);
+        cachingServlet.doGet(request, response);
+        assertEquals(0, pages.size());
+
+        Mockito.when(request.getParameter("id")).thenReturn(finished.getId());
+        responseBody.reset();
+        cachingServlet.doGet(request, response);
+        String first = output();
+        responseBody.reset();
+        cachingServlet.doGet(request, response);
+        assertEquals(first, output());
+        assertTrue(first.contains("sha2"), "Output should show the finished build.");
+        assertEquals(1, pages.getMisses());
+        assertEquals(1, pages.getHits());
+    }
+
+    @Test
+    /**
+     * Test that a pending build must be checked again, and is only not modified
+     * until a status changes.
+     */
+    public void testDoGet_pendingBuildIsNotModifiedUntilAChange() throws Exception {
+        BuildStatus status = new BuildStatus("Repo", "sha", "main", false, "Build queued.");
+        status.setState(BuildStatus.STATE_PENDING);
+        statusStore.addStatus(status);
+        Mockito.when(request.getParameter("id")).thenReturn(status.getId());
+        Mockito.when(request.getDateHeader("If-Modified-Since")).thenReturn(statusStore.getLastModified());
+
+        HttpServletResponse notModified = Mockito.mock(HttpServletResponse.class);
+        servlet.doGet(request, notModified);
+        Mockito.verify(notModified).setHeader("Cache-Control", "no-cache");
+        Mockito.verify(notModified).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        // A second later, as HTTP dates have whole seconds.
+        status.setState(BuildStatus.STATE_SUCCESS);
+        Thread.sleep(1000);
+        statusStore.updateStatus(status);
+        servlet.doGet(request, response);
+        Mockito.verify(response, Mockito.never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        assertTrue(output().contains("Success"), "Output should show the finished build.");
+    }
+
+    @Test
+    /**
+     * Test that with a log store the page shows the requested lines of the sealed
+     * build log, escaped, and links to the lines before them.
+     */
+    public void testDoGet_logLineRange(@TempDir Path logDir) throws Exception {
+        BuildLogStore store = new BuildLogStore(logDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE);
+        try (BuildLog log = store.open("321")) {
+            for (int i = 1; i <= 10; i++) {
+                log.line("line " + i + (i == 5 ? " <error>" : ""));
+            }
+        }
+        store.seal("321");
+        BuildStatus status = new BuildStatus("Repo", "sha", "main", false, "Build and/or tests failed.");
+        status.setId("321");
+        statusStore.addStatus(status);
+        Mockito.when(request.getParameter("id")).thenReturn("321");
+        Mockito.when(request.getParameter("lines")).thenReturn("4-6");
+
+        new BuildDetailServlet(statusStore, store).doGet(request, response);
+        String output = output();
+
+        assertTrue(output.contains("line 4\nline 5 &lt;error&gt;\nline 6</pre>"), "Output should contain lines 4 to 6.");
+        assertTrue(!output.contains("line 3\n") && !output.contains("line 7"), "Output should contain only the range.");
+        assertTrue(output.contains("lines=1-3"), "Output should link to the previous lines.");
+    }
+
+    // The page written to the response so far.
+    private String output() {
+        return responseBody.toString(StandardCharsets.UTF_8);
+    }
+
+    // A servlet output stream that writes to the buffer.
+    private static ServletOutputStream outputStream(ByteArrayOutputStream buffer) {
+        return new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+
+            @Override
+            public void write(int b) {
+                buffer.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                buffer.write(b, off, len);
+            }
+        };
+    }
 }
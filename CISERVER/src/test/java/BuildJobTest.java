@@ -0,0 +1,54 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for cancelling a BuildJob.
+ *
+ * Contract being tested:
+ * - Cancelling a job kills the process it runs and all of its child processes,
+ *   so the executor returns instead of waiting for the children to finish.
+ * - A process started for an already cancelled job is killed right away.
+ */
+public class BuildJobTest {
+
+    @Test
+    public void cancel_shouldKillProcessTree() throws Exception {
+        BuildJob job = new BuildJob("owner", "repo", "refs/heads/main", "sha");
+        DefaultProcessExecutor executor = new DefaultProcessExecutor();
+        // The background sleep keeps the output pipe open unless it is killed as well.
+        ProcessBuilder pb = new ProcessBuilder("sh", "-c", "sleep 30 & sleep 30");
+
+        CompletableFuture<ProcessResult> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return executor.execute(pb, job);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(500);
+        job.cancel("test");
+
+        ProcessResult processResult = result.get(10, TimeUnit.SECONDS);
+        assertNotEquals(0, processResult.getExitCode());
+        assertTrue(job.isCancelled());
+        assertEquals("test", job.getCancelReason());
+    }
+
+    @Test
+    public void cancelledJob_shouldKillNewProcess() throws Exception {
+        BuildJob job = new BuildJob("owner", "repo", "refs/heads/main", "sha");
+        job.cancel("test");
+
+        long start = System.currentTimeMillis();
+        ProcessResult result = new DefaultProcessExecutor().execute(new ProcessBuilder("sleep", "30"), job);
+
+        assertNotEquals(0, result.getExitCode());
+        assertTrue(System.currentTimeMillis() - start < 10000, "The process should be killed right away.");
+    }
+}
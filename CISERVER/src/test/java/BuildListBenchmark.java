@@ -0,0 +1,114 @@
+package com;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.io.FileUtils;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many pages of the build list BuildListServlet renders per
+ * second with 100k finished builds, with and without its HtmlFragmentCache.
+ * Request and response are plain stubs, so no HTTP is involved.
+ *
+ * Not a unit test. Build the test classes and run it through JMH:
+ *
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes:<dependencies> org.openjdk.jmh.Main BuildListBenchmark
+ *
+ * -p cacheBytes=0 turns the cache off, -p limit=... changes the builds per page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class BuildListBenchmark {
+
+    @Param({"100000"})
+    public int builds;
+
+    @Param({"50", "1000"})
+    public int limit;
+
+    @Param({"0", "16777216"})
+    public long cacheBytes;
+
+    private File directory;
+    private FileBuildStatusStore statusStore;
+    private BuildListServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    // Bytes of the pages, so that writing them can't be left out.
+    private long written;
+
+    @Setup(Level.Trial)
+    public void fill() throws Exception {
+        directory = Files.createTempDirectory("list-benchmark").toFile();
+        statusStore = new FileBuildStatusStore(directory);
+        for (int i = 0; i < builds; i++) {
+            BuildStatus status = new BuildStatus("repo" + i % 10, "sha" + i, "branch" + i % 50, i % 7 != 0, "Details");
+            status.setTimestamp(1_700_000_000_000L + i * 1000L);
+            statusStore.addStatus(status);
+        }
+        statusStore.flush().join();
+        servlet = new BuildListServlet(statusStore, new HtmlFragmentCache(cacheBytes));
+
+        // Stubs only, they don't record the calls made on them.
+        request = Mockito.mock(HttpServletRequest.class, Mockito.withSettings().stubOnly());
+        Mockito.when(request.getParameter("limit")).thenReturn(String.valueOf(limit));
+        response = Mockito.mock(HttpServletResponse.class, Mockito.withSettings().stubOnly());
+        Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+
+            @Override
+            public void write(int b) {
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written += len;
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws Exception {
+        statusStore.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void firstPage() throws Exception {
+        servlet.doGet(request, response);
+    }
+}
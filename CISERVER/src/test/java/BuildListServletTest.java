@@ -8,23 +8,33 @@ import org.eclipse.jetty.servlet.ServletHolder;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class BuildListServletTest {
+    @TempDir
+    Path storeDir;
+    private FileBuildStatusStore statusStore;
+    private HtmlFragmentCache rows;
     private Server server;
     private final HttpClient client = HttpClient.newHttpClient();
 
     @BeforeEach
     void setUp() throws Exception {
+        statusStore = new FileBuildStatusStore(storeDir.toFile());
+        rows = new HtmlFragmentCache(1024 * 1024);
         server = new Server(8070);
         ServletContextHandler context = new ServletContextHandler();
         context.setContextPath("/");
-        context.addServlet(new ServletHolder(new BuildListServlet()), "/builds");
+        context.addServlet(new ServletHolder(new BuildListServlet(statusStore, rows)), "/builds");
         server.setHandler(context);
         server.start();
     }
@@ -32,6 +42,7 @@ class BuildListServletTest {
     @AfterEach
     void tearDown() throws Exception {
         server.stop();
+        statusStore.close();
     }
 
     @Test
@@ -52,4 +63,92 @@ class BuildListServletTest {
             () -> assertTrue(response.body().contains("<table>"))
         );
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldAnswerNotModifiedUntilTheStatusesChange() throws Exception {
+        statusStore.addStatus(new BuildStatus("repo", "sha1", "main", true, "Details"));
+        HttpResponse<String> first = get(HttpRequest.newBuilder(URI.create("http://localhost:8070/builds")));
+        String etag = first.headers().firstValue("ETag").orElseThrow();
+        String lastModified = first.headers().firstValue("Last-Modified").orElseThrow();
+        assertEquals("no-cache", first.headers().firstValue("Cache-Control").orElse(null));
+
+        HttpResponse<String> same = get(HttpRequest.newBuilder(URI.create("http://localhost:8070/builds"))
+                                            .header("If-None-Match", "\"other\", " + etag));
+        assertEquals(304, same.statusCode());
+        assertEquals("", same.body());
+        HttpResponse<String> notModifiedSince = get(HttpRequest.newBuilder(URI.create("http://localhost:8070/builds"))
+                                                        .header("If-Modified-Since", lastModified));
+        assertEquals(304, notModifiedSince.statusCode());
+
+        statusStore.addStatus(new BuildStatus("repo", "sha2", "main", true, "Details"));
+        HttpResponse<String> changed = get(HttpRequest.newBuilder(URI.create("http://localhost:8070/builds"))
+                                               .header("If-None-Match", etag));
+        assertEquals(200, changed.statusCode());
+        assertTrue(changed.body().contains("sha2"));
+        assertNotEquals(etag, changed.headers().firstValue("ETag").orElse(null));
+    }
+
+    private HttpResponse<String> get(HttpRequest.Builder request) throws Exception {
+        return client.send(request.GET().build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void shouldRenderRowsOfFinishedBuildsOnce() throws Exception {
+        BuildStatus pending = new BuildStatus("repo", "sha1", "main", false, "Build queued.");
+        pending.setState(BuildStatus.STATE_PENDING);
+        statusStore.addStatus(pending);
+        statusStore.addStatus(new BuildStatus("repo", "sha2", "main", true, "Details"));
+
+        String first = get("/builds");
+        String second = get("/builds");
+        assertEquals(first, second);
+        assertTrue(first.contains("<code>sha1</code>") && first.contains("<code>sha2</code>"));
+        assertEquals(1, rows.size());
+        assertEquals(1, rows.getHits());
+
+        // Once finished, its row has another key.
+        pending.setState(BuildStatus.STATE_FAILURE);
+        statusStore.updateStatus(pending);
+        assertTrue(get("/builds").contains("<td>Failure</td>"));
+        assertEquals(2, rows.size());
+    }
+
+    @Test
+    void shouldLinkToOlderAndNewerPages() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            BuildStatus status = new BuildStatus("repo", "sha" + i, "main", true, "Details");
+            status.setTimestamp(1000 + i);
+            statusStore.addStatus(status);
+        }
+
+        String first = get("/builds?repo=repo&limit=2");
+        assertTrue(first.contains("sha4") && first.contains("sha3") && !first.contains("sha2"));
+        assertFalse(first.contains("Newer"));
+
+        String second = get(link(first, "Older"));
+        assertTrue(second.contains("sha2") && second.contains("sha1") && !second.contains("sha3"));
+
+        String back = get(link(second, "Newer"));
+        assertTrue(back.contains("sha4") && back.contains("sha3") && !back.contains("sha2"));
+
+        HttpResponse<String> invalid = client.send(
+            HttpRequest.newBuilder(URI.create("http://localhost:8070/builds?cursor=broken")).build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, invalid.statusCode());
+    }
+
+    private String get(String path) throws Exception {
+        HttpResponse<String> response = client.send(
+            HttpRequest.newBuilder(URI.create("http://localhost:8070" + path)).build(),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        return response.body();
+    }
+
+    // The target of the link with this text, as a path.
+    private static String link(String html, String text) {
+        Matcher matcher = Pattern.compile("<a href=\"([^\"]*)\">[^<]*" + text).matcher(html);
+        assertTrue(matcher.find(), "No link to " + text);
+        return "/builds" + matcher.group(1).replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,197 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for BuildLogStore.
+ *
+ * Contract being tested:
+ * - A sealed log is an ordinary gzip file made of several segments, and reads of
+ *   byte and line ranges give the same text as before sealing.
+ * - Lines longer than a segment are read whole, also when a segment ends right
+ *   before the compressed file is read further.
+ * - A byte range leaves out the characters its ends cut.
+ * - Retention deletes logs older than the maximum age and then the oldest until
+ *   the rest fits, but not the logs of running builds.
+ */
+public class BuildLogStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void sealedLog_shouldReadLikePlainLog() throws Exception {
+        BuildLogStore store = new BuildLogStore(tempDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE);
+        StringBuilder expected = new StringBuilder();
+        try (BuildLog log = store.open("build")) {
+            for (int i = 0; i < 40000; i++) {
+                String line = "[INFO] Compiling source file number " + i;
+                log.line(line);
+                expected.append(line).append('\n');
+            }
+        }
+        String text = expected.toString();
+        long offset = BuildLogStore.SEGMENT_SIZE - 100;
+        String plainRange = store.readRange("build", offset, 300);
+
+        store.seal("build");
+
+        assertFalse(store.getLiveFile("build").exists(), "The plain log should be replaced.");
+        assertTrue(store.isSealed("build"));
+        assertTrue(store.getSegmentFile("build").length() < text.length() / 4, "The log should be compressed.");
+        try (InputStream in = new GZIPInputStream(new FileInputStream(store.getSegmentFile("build")))) {
+            assertEquals(text, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(text.length(), store.length("build"));
+        assertEquals(40000, store.lineCount("build"));
+        // The range spans two segments.
+        assertEquals(plainRange, store.readRange("build", offset, 300));
+        assertEquals(text.substring((int) offset, (int) offset + 300), plainRange);
+        assertEquals(List.of("[INFO] Compiling source file number 30000", "[INFO] Compiling source file number 30001"),
+                     store.readLines("build", 30000, 2));
+        assertEquals(List.of("[INFO] Compiling source file number 39999"), store.readLines("build", 39999, 5));
+    }
+
+    @Test
+    public void lineLongerThanSegment_shouldBeReadWhole() throws Exception {
+        BuildLogStore store = new BuildLogStore(tempDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE);
+        String longLine = "x".repeat(BuildLogStore.SEGMENT_SIZE * 2 + 10);
+        try (BuildLog log = store.open("build")) {
+            log.line("first");
+            log.line(longLine);
+            log.line("after");
+        }
+
+        store.seal("build");
+
+        assertEquals(3, store.lineCount("build"));
+        assertEquals(List.of(longLine), store.readLines("build", 1, 1));
+        assertEquals(List.of("after"), store.readLines("build", 2, 1));
+    }
+
+    @Test
+    public void segmentEndingAtChunk_shouldNotEndTheLog() throws Exception {
+        BuildLogStore store = new BuildLogStore(tempDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE);
+        // Lines that hardly compress; making some of the first ones plain moves the
+        // end of the first segment until it is a few bytes before a 64K boundary.
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        int plain = 0;
+        long target = 0;
+        List<String> lines = null;
+        long end = 0;
+        for (int attempt = 0; attempt < 50; attempt++) {
+            Random random = new Random(42);
+            lines = new ArrayList<>();
+            for (int i = 0; i < 8000; i++) {
+                StringBuilder line = new StringBuilder();
+                for (int j = 0; j < 99; j++) {
+                    int at = i * 99 + j;
+                    line.append(at < plain ? 'a' : alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                lines.add(line.toString());
+            }
+            try (BuildLog log = store.open("build")) {
+                for (String line : lines) {
+                    log.line(line);
+                }
+            }
+            store.seal("build");
+            end = firstSegmentLength(store.getIndexFile("build"));
+            // GZIPInputStream has the trailer and what follows it up to the boundary,
+            // 8 + before bytes; at most 26 of them and nothing available looks like the end.
+            long before = -end & 0xffff;
+            if (before <= 14) {
+                break;
+            }
+            // About 3/4 of a byte less for every character made plain.
+            if (target == 0) {
+                target = (end & ~0xffffL) - 7;
+            }
+            plain += (int) ((end - target) * 4 / 3);
+            store.getIndexFile("build").delete();
+            store.getSegmentFile("build").delete();
+        }
+        long before = -end & 0xffff;
+        assertTrue(before <= 14, "The first segment should end just before 64K, not " + before);
+
+        List<String> read = store.readLines("build", 0, Integer.MAX_VALUE);
+        assertEquals(lines.size(), read.size(), "The log should not end after the first segment.");
+        assertEquals(lines, read);
+        assertEquals(8000, store.lineCount("build"));
+    }
+
+    @Test
+    public void readRange_shouldLeaveOutCutCharacters() throws Exception {
+        BuildLogStore store = new BuildLogStore(tempDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE);
+        try (BuildLog log = store.open("build")) {
+            log.line("\u00e5\u20ac\ud83d\ude00x");
+        }
+        // å is 2 bytes, € 3, the emoji 4.
+        assertEquals("\u20ac\ud83d\ude00", store.readRange("build", 1, 8));
+        assertEquals("\u00e5\u20ac", store.readRange("build", 0, 8));
+        assertEquals("\u00e5", store.readRange("build", 0, 3));
+        store.seal("build");
+        assertEquals("\u20ac", store.readRange("build", 1, 7));
+    }
+
+    @Test
+    public void retention_shouldDeleteOldAndOldestLogs() throws Exception {
+        BuildLogStore setup = new BuildLogStore(tempDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE);
+        long now = System.currentTimeMillis();
+        sealed(setup, "expired", now - TimeUnit.DAYS.toMillis(31));
+        sealed(setup, "older", now - TimeUnit.DAYS.toMillis(2));
+        sealed(setup, "newest", now - TimeUnit.DAYS.toMillis(1));
+        try (BuildLog running = setup.open("running")) {
+            running.line("still building");
+        }
+        // Room for the newest and the running log only.
+        long budget = setup.getIndexFile("newest").length() + setup.getSegmentFile("newest").length()
+                      + setup.getLiveFile("running").length();
+        BuildLogStore store = new BuildLogStore(tempDir.toFile(), TimeUnit.DAYS.toMillis(30), budget);
+
+        store.applyRetention();
+
+        assertFalse(store.exists("expired"));
+        assertFalse(store.exists("older"));
+        assertFalse(store.getSegmentFile("older").exists());
+        assertTrue(store.exists("newest"));
+        assertTrue(store.exists("running"), "The log of a running build should be kept.");
+    }
+
+    // Compressed length of the first segment, from the index.
+    private static long firstSegmentLength(File index) throws Exception {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+            in.readInt();
+            in.readLong();
+            in.readLong();
+            in.readInt();
+            in.readLong();
+            in.readLong();
+            return in.readInt();
+        }
+    }
+
+    private static void sealed(BuildLogStore store, String id, long lastModified) throws Exception {
+        try (BuildLog log = store.open(id)) {
+            log.line("output of " + id);
+        }
+        store.seal(id);
+        File index = store.getIndexFile(id);
+        assertTrue(index.setLastModified(lastModified));
+    }
+}
@@ -2,23 +2,17 @@ package com;
 
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.lang.reflect.Field;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import org.junit.jupiter.api.AfterAll;
-import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
 
 import com.BuildNotificationServlet;
@@ -32,46 +26,24 @@ public class BuildNotificationServletTest {
     private HttpServletResponse response;
     private StringWriter responseWriter;
 
-  
-    // Variable to hold the original file content
-    private static String originalFileContent;
-    // The path to the persistent file.
-    private static final String FILE_PATH = "build_statuses.json";
-
-    @BeforeAll
-    public static void backupFile() throws IOException {
-        Path path = Paths.get(FILE_PATH);
-        if (Files.exists(path)) {
-            originalFileContent = Files.readString(path, StandardCharsets.UTF_8);
-        } else {
-            originalFileContent = null;
-        }
-    }
-
-    @AfterAll
-    public static void restoreFile() throws IOException {
-        Path path = Paths.get(FILE_PATH);
-        if (originalFileContent != null) {
-            // Restore the original content.
-            Files.writeString(path, originalFileContent, StandardCharsets.UTF_8);
-        } else {
-            // If the file did not originally exist, remove any file created during tests.
-            Files.deleteIfExists(path);
-        }
-    }
-
+    // A new store for every test, in a directory of its own.
+    @TempDir
+    Path storeDir;
+    private FileBuildStatusStore statusStore;
 
     @BeforeEach
     public void setUp() throws Exception {
-        servlet = new BuildNotificationServlet();
+        statusStore = new FileBuildStatusStore(storeDir.toFile());
+        servlet = new BuildNotificationServlet(statusStore);
         request = Mockito.mock(HttpServletRequest.class);
         response = Mockito.mock(HttpServletResponse.class);
         responseWriter = new StringWriter();
         Mockito.when(response.getWriter()).thenReturn(new PrintWriter(responseWriter));
+    }
 
-        // Clear the store for a clean state.
-        FileBuildStatusStore.getStatuses().clear();
-        FileBuildStatusStore.initialCount = 0;
+    @AfterEach
+    public void tearDown() {
+        statusStore.close();
     }
 
     @Test
@@ -102,7 +74,7 @@ public class BuildNotificationServletTest {
         status.setSuccess(true);
         status.setTimestamp(System.currentTimeMillis());
 
-        FileBuildStatusStore.addStatus(status);
+        statusStore.addStatus(status);
         servlet.doGet(request, response);
         String output = responseWriter.toString();
 
@@ -128,23 +100,21 @@ public class BuildNotificationServletTest {
 
     @Test
     /**
-     * Test that when the static statuses list is corrupted (set to null),
-     * the servlet handles the situation gracefully by indicating that no notifications are available.
+     * Test that when the store has no last status although its count grew (e.g. a
+     * backend that lost it), the servlet handles the situation gracefully by
+     * indicating that no notifications are available.
      */
     public void testDoGet_withNullStatuses() throws Exception {
-        // Simulate a corrupted static state by setting statuses to null.
-        Field statusesField = FileBuildStatusStore.class.getDeclaredField("statuses");
-        statusesField.setAccessible(true);
-        statusesField.set(null, null);
+        BuildStatusStore store = Mockito.mock(BuildStatusStore.class);
+        Mockito.when(store.size()).thenReturn(1);
+        Mockito.when(store.getInitialCount()).thenReturn(0);
+        Mockito.when(store.getLastAdded()).thenReturn(null);
 
-        servlet.doGet(request, response);
+        new BuildNotificationServlet(store).doGet(request, response);
         String output = responseWriter.toString();
         // Expect that even with null statuses the servlet shows a message (or at least does not crash).
         assertTrue(output.contains("No build notifications yet for this session"),
                 "Output should indicate no notifications even when statuses is null");
-
-        // Restore statuses to a valid state for subsequent tests.
-        statusesField.set(null, new ArrayList<BuildStatus>());
     }
 
     
@@ -164,12 +134,13 @@ public class BuildNotificationServletTest {
         status.setDetails("Preexisting build status.");
         status.setSuccess(true);
         status.setTimestamp(System.currentTimeMillis());
-        FileBuildStatusStore.addStatus(status);
+        statusStore.addStatus(status).join();
 
-        // Set initialCount to simulate that the session has already seen this notification.
-        FileBuildStatusStore.initialCount = FileBuildStatusStore.getStatuses().size();
+        // Open the store again, so that the status was there before this session.
+        statusStore.close();
+        statusStore = new FileBuildStatusStore(storeDir.toFile());
 
-        servlet.doGet(request, response);
+        new BuildNotificationServlet(statusStore).doGet(request, response);
         String output = responseWriter.toString();
 
         assertTrue(output.contains("No build notifications yet for this session"),
@@ -0,0 +1,155 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for the event stream of BuildNotificationServlet on a running Jetty server.
+ *
+ * Contract being tested:
+ * - A subscriber first gets the latest build of the session, then one event
+ *   for every build that is added or changes state, and none for updates that
+ *   keep the state.
+ * - Every subscriber gets every event; idle streams get heartbeat comments.
+ * - Browsers get a page that follows the stream instead of refreshing.
+ */
+public class BuildNotificationStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Server server;
+    private BuildNotificationServlet servlet;
+    private FileBuildStatusStore statusStore;
+    private int port;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        statusStore = new FileBuildStatusStore(tempDir.toFile());
+        server = new Server(0);
+        ServletContextHandler handler = new ServletContextHandler();
+        servlet = new BuildNotificationServlet(statusStore, new BuildNotificationHub(200));
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        handler.addServlet(holder, "/notification");
+        server.setHandler(handler);
+        server.start();
+        port = server.getURI().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.stop();
+        statusStore.close();
+    }
+
+    @Test
+    public void subscriber_shouldGetAddedBuildsAndStateChanges() throws Exception {
+        BuildStatus first = pending("repo-1");
+        statusStore.addStatus(first);
+
+        BlockingQueue<String> events = connect();
+        assertTrue(nextData(events).contains("\"repoName\":\"repo-1\""));
+
+        BuildStatus second = pending("repo-2");
+        statusStore.addStatus(second);
+        assertTrue(nextData(events).contains("\"repoName\":\"repo-2\""));
+
+        // Same state, nothing to tell.
+        second.setDetails("Compiling.");
+        statusStore.updateStatus(second);
+        second.setState(BuildStatus.STATE_SUCCESS);
+        second.setDetails("Build succeeded.");
+        statusStore.updateStatus(second);
+        String finished = nextData(events);
+        assertTrue(finished.contains("\"state\":\"success\""));
+        assertTrue(finished.contains("\"details\":\"Build succeeded.\""));
+    }
+
+    @Test
+    public void everySubscriber_shouldGetEveryEvent() throws Exception {
+        List<BlockingQueue<String>> subscribers = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            subscribers.add(connect());
+        }
+        waitForSubscribers(50);
+
+        statusStore.addStatus(pending("repo-1"));
+        for (BlockingQueue<String> events : subscribers) {
+            assertTrue(nextData(events).contains("\"repoName\":\"repo-1\""));
+        }
+    }
+
+    @Test
+    public void idleStream_shouldGetHeartbeats() throws Exception {
+        BlockingQueue<String> events = connect();
+        assertEquals(":", next(events, ":"));
+    }
+
+    @Test
+    public void page_shouldFollowTheStream() throws Exception {
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/notification")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().contains("new EventSource('/notification')"));
+        assertFalse(response.body().contains("http-equiv='refresh'"));
+    }
+
+    private void waitForSubscribers(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (servlet.getHub().getSubscriberCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, servlet.getHub().getSubscriberCount());
+    }
+
+    private static BuildStatus pending(String repo) {
+        BuildStatus status = new BuildStatus(repo, "sha", "main", false, "Build queued.");
+        status.setState(BuildStatus.STATE_PENDING);
+        return status;
+    }
+
+    // Opens an event stream and collects its lines on a background thread.
+    private BlockingQueue<String> connect() {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/notification"))
+                .header("Accept", "text/event-stream").build();
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        HttpClient.newHttpClient().sendAsync(request, HttpResponse.BodyHandlers.ofLines())
+                .thenAccept(response -> response.body().forEach(lines::add));
+        return lines;
+    }
+
+    private static String nextData(BlockingQueue<String> lines) throws InterruptedException {
+        return next(lines, "data:");
+    }
+
+    // Skips lines until one starts with the prefix, like heartbeats and blank lines.
+    private static String next(BlockingQueue<String> lines, String prefix) throws InterruptedException {
+        while (true) {
+            String line = lines.poll(5, TimeUnit.SECONDS);
+            assertNotNull(line, "Expected a line starting with " + prefix);
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the concurrency limits of BuildQueue.
+ *
+ * Contract being tested:
+ * - No more than maxPerRepo builds of one repository run at the same time,
+ *   while builds of other repositories are not held up by it.
+ * - No more than maxConcurrent builds run in total.
+ * - submit rejects jobs once capacity jobs are waiting.
+ * - With supersede enabled a newer job of the same ref drops the queued ones,
+ *   and with cancelRunning also cancels the running one.
+ */
+public class BuildQueueTest {
+
+    private BuildQueue queue;
+
+    @AfterEach
+    public void tearDown() {
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void perRepoLimit_shouldNotBlockOtherRepos() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        queue = new BuildQueue(10, 2, 1);
+        queue.start(job -> {
+            started.countDown();
+            awaitQuietly(release);
+        });
+
+        queue.submit(new BuildJob("owner", "noisy", "refs/heads/main", "sha1"));
+        queue.submit(new BuildJob("owner", "noisy", "refs/heads/main", "sha2"));
+        queue.submit(new BuildJob("owner", "quiet", "refs/heads/main", "sha3"));
+
+        assertTrue(started.await(5, TimeUnit.SECONDS), "One build of each repository should start.");
+        Map<String, Integer> active = queue.getActiveCounts();
+        Map<String, Integer> waiting = queue.getWaitingCounts();
+        assertEquals(1, active.get("owner/noisy"));
+        assertEquals(1, active.get("owner/quiet"));
+        assertEquals(1, waiting.get("owner/noisy"));
+        assertNull(waiting.get("owner/quiet"));
+
+        release.countDown();
+    }
+
+    @Test
+    public void globalLimit_shouldCapRunningBuilds() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(4);
+        queue = new BuildQueue(10, 2, 4);
+        queue.start(job -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            awaitQuietly(release);
+            running.decrementAndGet();
+            done.countDown();
+        });
+
+        for (int i = 0; i < 4; i++) {
+            queue.submit(new BuildJob("owner", "repo", "refs/heads/main", "sha" + i));
+        }
+        Thread.sleep(200);
+        assertEquals(2, queue.getActiveCounts().get("owner/repo"));
+        assertEquals(2, queue.getWaitingCounts().get("owner/repo"));
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS), "All builds should finish.");
+        assertEquals(2, maxRunning.get());
+        // The worker counts a build as finished only after the handler returned.
+        for (int i = 0; i < 50 && !queue.getActiveCounts().isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(queue.getActiveCounts().isEmpty());
+    }
+
+    @Test
+    public void submit_shouldRejectWhenFull() {
+        queue = new BuildQueue(2, 1, 1);
+        assertTrue(queue.submit(new BuildJob("owner", "repo", "refs/heads/main", "sha1")));
+        assertTrue(queue.submit(new BuildJob("owner", "repo", "refs/heads/main", "sha2")));
+        assertFalse(queue.submit(new BuildJob("owner", "repo", "refs/heads/main", "sha3")));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void supersede_shouldDropQueuedJobsOfSameRef() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> superseded = new ArrayList<>();
+        queue = new BuildQueue(10, 1, 1, true, false);
+        queue.start(job -> {
+            started.countDown();
+            awaitQuietly(release);
+        }, (old, newer) -> superseded.add(old.getCommitSHA() + "->" + newer.getCommitSHA()));
+
+        BuildJob first = new BuildJob("owner", "repo", "refs/heads/main", "sha1");
+        queue.submit(first);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.submit(new BuildJob("owner", "repo", "refs/heads/main", "sha2"));
+        queue.submit(new BuildJob("owner", "repo", "refs/heads/other", "sha3"));
+        queue.submit(new BuildJob("owner", "repo", "refs/heads/main", "sha4"));
+
+        // sha2 was replaced by sha4, the build on the other branch is kept.
+        assertEquals(List.of("sha2->sha4"), superseded);
+        assertEquals(2, queue.size());
+        // Without cancelRunning the running build is left alone.
+        assertFalse(first.isCancelled());
+        release.countDown();
+    }
+
+    @Test
+    public void cancelRunning_shouldCancelRunningJobOfSameRef() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        queue = new BuildQueue(10, 1, 1, true, true);
+        queue.start(job -> {
+            started.countDown();
+            awaitQuietly(release);
+        });
+
+        BuildJob first = new BuildJob("owner", "repo", "refs/heads/main", "sha1");
+        queue.submit(first);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.submit(new BuildJob("owner", "repo", "refs/heads/main", "sha2"));
+
+        assertTrue(first.isCancelled());
+        assertTrue(first.getCancelReason().contains("sha2"));
+        release.countDown();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
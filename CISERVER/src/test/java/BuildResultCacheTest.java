@@ -0,0 +1,139 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for BuildResultCache and its use by the webhook.
+ *
+ * Contract being tested:
+ * - Commits with the same tree have the same key, other trees or build
+ *   configurations a different one.
+ * - Recorded results survive a restart; the file is replaced as a whole.
+ * - At most maxEntries results are kept, none older than maxAge, and the
+ *   oldest are dropped first.
+ * - A push whose tree was built successfully before is not built again; its
+ *   BuildStatus names the earlier build and the hit is counted in the metrics.
+ */
+public class BuildResultCacheTest {
+
+
+    @TempDir
+    Path tempDir;
+
+    private GitTestRepo origin;
+    private FileBuildStatusStore statusStore;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        statusStore = new FileBuildStatusStore(tempDir.resolve("statuses").toFile());
+        origin = new GitTestRepo(tempDir.resolve("origin").toFile());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        statusStore.close();
+    }
+
+    @Test
+    public void key_shouldDependOnTreeAndConfiguration() throws Exception {
+        BuildResultCache cache = new BuildResultCache(new DefaultProcessExecutor(), tempDir.resolve("cache.json").toFile());
+        String first = origin.commit("file.txt", "one");
+        String second = origin.commit("file.txt", "two");
+        String revert = origin.commit("file.txt", "one");
+
+        String firstKey = cache.key(checkout(first, "a"), "config", null);
+        assertEquals(firstKey, cache.key(checkout(revert, "b"), "config", null), "The same tree should give the same key.");
+        assertNotEquals(firstKey, cache.key(checkout(second, "c"), "config", null));
+        assertNotEquals(firstKey, cache.key(checkout(first, "d"), "other config", null));
+    }
+
+    @Test
+    public void put_shouldSurviveRestart() {
+        File file = tempDir.resolve("cache.json").toFile();
+        new BuildResultCache(new DefaultProcessExecutor(), file).put("key", "build-1", "sha");
+
+        BuildResultCache.Entry entry = new BuildResultCache(new DefaultProcessExecutor(), file).get("key");
+
+        assertEquals("build-1", entry.getBuildId());
+        assertEquals("sha", entry.getCommitSHA());
+    }
+
+    @Test
+    public void put_shouldKeepTheNewestEntries() {
+        File file = tempDir.resolve("cache.json").toFile();
+        BuildResultCache cache = new BuildResultCache(new DefaultProcessExecutor(), file, 3, Long.MAX_VALUE);
+        for (int i = 1; i <= 5; i++) {
+            cache.put("key" + i, "build-" + i, "sha" + i);
+        }
+        // Recorded again, so it is the newest.
+        cache.put("key3", "build-6", "sha6");
+        cache.put("key7", "build-7", "sha7");
+
+        BuildResultCache reopened = new BuildResultCache(new DefaultProcessExecutor(), file, 3, Long.MAX_VALUE);
+        assertEquals(3, reopened.size());
+        assertNull(reopened.get("key4"));
+        assertEquals("build-6", reopened.get("key3").getBuildId());
+        assertNotNull(reopened.get("key5"));
+        assertNotNull(reopened.get("key7"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // Entries older than the maximum age are dropped when the file is read.
+        assertEquals(0, new BuildResultCache(new DefaultProcessExecutor(), file, 3, -1).size());
+    }
+
+    @Test
+    public void sameTree_shouldNotBeBuiltAgain() throws Exception {
+        AtomicInteger mavenRuns = new AtomicInteger();
+        DefaultProcessExecutor git = new DefaultProcessExecutor();
+        ProcessExecutor executor = pb -> {
+            if (pb.command().get(0).equals("mvn")) {
+                mavenRuns.incrementAndGet();
+                return new ProcessResult(0, "BUILD SUCCESS");
+            }
+            return git.execute(pb);
+        };
+        // Cloned from the local repository instead of GitHub, so no GITHUB_TOKEN is needed.
+        GithubWebhook webhook = new GithubWebhook(executor, (owner, repo, sha, state) -> { }, statusStore) {
+            @Override
+            protected String cloneUrl(String owner, String repo) {
+                return origin.getUrl();
+            }
+        };
+        webhook.setBuildResultCache(new BuildResultCache(executor, tempDir.resolve("cache.json").toFile()));
+        webhook.setCheckoutStrategy(new FullCloneCheckout(git));
+        String first = origin.commit("file.txt", "one");
+        origin.commit("file.txt", "two");
+        String revert = origin.commit("file.txt", "one");
+
+        BuildJob firstJob = new BuildJob("owner", "repo", "refs/heads/main", first);
+        assertTrue(webhook.executeBuild(firstJob));
+        assertEquals(2, mavenRuns.get());
+
+        BuildJob revertJob = new BuildJob("owner", "repo", "refs/heads/main", revert);
+        assertTrue(webhook.executeBuild(revertJob));
+        assertEquals(2, mavenRuns.get(), "The reverted tree should not be built again.");
+
+        BuildStatus status = statusStore.getStatusById(revertJob.getId());
+        assertTrue(status.isCacheHit());
+        assertEquals(firstJob.getId(), status.getCachedFrom());
+        assertEquals(BuildStatus.STATE_SUCCESS, status.getState());
+        assertEquals(1, webhook.getMetrics().getCacheHits());
+        assertEquals(1, webhook.getMetrics().getCacheMisses());
+        assertEquals(2, webhook.getMetrics().getBuildsSucceeded());
+    }
+
+    private File checkout(String sha, String name) throws Exception {
+        File workspace = tempDir.resolve(name).toFile();
+        new FullCloneCheckout(new DefaultProcessExecutor()).checkout("owner", "repo", origin.getUrl(), sha, workspace, null);
+        return workspace;
+    }
+}
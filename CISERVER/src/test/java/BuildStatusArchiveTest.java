@@ -0,0 +1,106 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for BuildStatusArchive on a directory in a temporary directory.
+ *
+ * Contract being tested:
+ * - Archived statuses are found by id and by repository, branch and commit,
+ *   newest first, also after the archive is opened again.
+ * - Appends fill up the last segment before a new one is started.
+ * - A status archived twice is returned once; a segment without its index is
+ *   removed when the archive is opened.
+ */
+public class BuildStatusArchiveTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void search_shouldReturnNewestMatchingStatuses() throws Exception {
+        BuildStatusArchive archive = new BuildStatusArchive(tempDir.toFile());
+        BuildStatus oldMain = status("repo", "sha1", "main", 1000);
+        BuildStatus feature = status("repo", "sha2", "feature", 2000);
+        BuildStatus newMain = status("repo", "sha3", "main", 3000);
+        BuildStatus other = status("other", "sha1", "main", 4000);
+        archive.append(List.of(newMain, oldMain));
+        archive.append(List.of(other, feature));
+
+        assertEquals(ids(newMain, oldMain), ids(archive.search("repo", "main", null, 10)));
+        assertEquals(ids(newMain, feature, oldMain), ids(archive.search("repo", null, null, 10)));
+        assertEquals(ids(other, oldMain), ids(archive.search(null, null, "sha1", 10)));
+        assertEquals(ids(other, newMain), ids(archive.search(null, null, null, 2)));
+        assertTrue(archive.search("unknown", null, null, 10).isEmpty());
+        assertEquals("sha2", archive.get(feature.getId()).getCommitSHA());
+        assertTrue(archive.contains(feature.getId()));
+        assertNull(archive.get("unknown"));
+        assertFalse(archive.contains("unknown"));
+
+        BuildStatusArchive reopened = new BuildStatusArchive(tempDir.toFile());
+        assertEquals(4, reopened.size());
+        assertEquals("sha3", reopened.get(newMain.getId()).getCommitSHA());
+        assertEquals(ids(newMain, oldMain), ids(reopened.search("repo", "main", null, 10)));
+    }
+
+    @Test
+    public void append_shouldFillSegmentsBeforeStartingNewOnes() throws Exception {
+        BuildStatusArchive archive = new BuildStatusArchive(tempDir.toFile());
+        List<BuildStatus> statuses = new ArrayList<>();
+        for (int i = 0; i < BuildStatusArchive.SEGMENT_SIZE + 10; i++) {
+            statuses.add(status("repo", "sha" + i, "main", i));
+        }
+        archive.append(statuses.subList(0, 10));
+        archive.append(statuses.subList(10, statuses.size()));
+
+        assertEquals(statuses.size(), archive.size());
+        assertEquals(2, segments().size());
+        assertEquals(statuses.get(5).getId(), archive.get(statuses.get(5).getId()).getId());
+        assertEquals(statuses.get(statuses.size() - 1).getId(),
+                     archive.search(null, null, null, 1).get(0).getId());
+    }
+
+    @Test
+    public void reads_shouldSkipDuplicatesAndIncompleteSegments() throws Exception {
+        BuildStatusArchive archive = new BuildStatusArchive(tempDir.toFile());
+        BuildStatus status = status("repo", "sha1", "main", 1000);
+        archive.append(List.of(status));
+        archive.append(List.of(status));
+        assertEquals(ids(status), ids(archive.search(null, null, null, 10)));
+
+        // A segment whose index was never written, e.g. after a crash.
+        File orphan = tempDir.resolve("segment-7.json.gz").toFile();
+        Files.write(orphan.toPath(), new byte[] { 1, 2, 3 });
+        BuildStatusArchive reopened = new BuildStatusArchive(tempDir.toFile());
+        assertFalse(orphan.exists());
+        assertEquals(ids(status), ids(reopened.search(null, null, null, 10)));
+    }
+
+    private List<String> segments() {
+        String[] names = tempDir.toFile().list((dir, name) -> name.endsWith(".json.gz"));
+        return names == null ? List.of() : List.of(names);
+    }
+
+    private static List<String> ids(BuildStatus... statuses) {
+        return ids(List.of(statuses));
+    }
+
+    private static List<String> ids(List<BuildStatus> statuses) {
+        return statuses.stream().map(BuildStatus::getId).toList();
+    }
+
+    private static BuildStatus status(String repo, String sha, String branch, long timestamp) {
+        BuildStatus status = new BuildStatus(repo, sha, branch, true, "Details");
+        status.setTimestamp(timestamp);
+        return status;
+    }
+}
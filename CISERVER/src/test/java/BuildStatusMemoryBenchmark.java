@@ -0,0 +1,136 @@
+package com;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Measures the heap used per build status, for a history of many statuses:
+ *
+ * - plain strings: the fields as separate strings, as BuildStatus kept them before,
+ * - BuildStatus: with the id, commit and names in their compact forms,
+ * - store, all: a BuildStatusSnapshot of those BuildStatus objects, all in memory,
+ * - store, recent: a BuildStatusSnapshot loaded from a snapshot file, with only
+ *   the newest 1000 statuses in memory and the rest read from disk when needed.
+ *
+ * Not a unit test. Run it from the test classpath with the number of statuses
+ * as argument, and a heap large enough for the plain strings:
+ *
+ *   java -Xmx4g -cp target/classes:target/test-classes:<dependencies> com.BuildStatusMemoryBenchmark 1000000
+ *
+ * The numbers are the growth of the used heap after a full GC, so they include
+ * the lists holding the statuses and are only as exact as the GC makes them.
+ */
+public class BuildStatusMemoryBenchmark {
+
+    // The fields of BuildStatus as they were, one string each.
+    private static class PlainStatus {
+        String id;
+        String repoName;
+        String commitSHA;
+        String branch;
+        boolean success;
+        String details;
+        long timestamp;
+        String state;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        long before = usedHeap();
+        List<PlainStatus> plain = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            BuildStatus status = status(i);
+            PlainStatus copy = new PlainStatus();
+            // New strings, like a JSON parser makes for every record.
+            copy.id = new String(status.getId());
+            copy.repoName = new String(status.getRepoName());
+            copy.commitSHA = new String(status.getCommitSHA());
+            copy.branch = new String(status.getBranch());
+            copy.success = status.isSuccess();
+            copy.details = status.getDetails();
+            copy.timestamp = status.getTimestamp();
+            copy.state = status.getState();
+            plain.add(copy);
+        }
+        report("plain strings", usedHeap() - before, count);
+        plain = null;
+
+        before = usedHeap();
+        List<BuildStatus> compact = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            compact.add(status(i));
+        }
+        report("BuildStatus", usedHeap() - before, count);
+
+        // Counted together with the statuses, like the store loaded from disk.
+        BuildStatusSnapshot all = BuildStatusSnapshot.of(compact);
+        report("store, all", usedHeap() - before, count);
+        compact = null;
+        all = null;
+
+        File dir = Files.createTempDirectory("status-memory").toFile();
+        File snapshot = new File(dir, "build_statuses.json");
+        File index = new File(dir, "build_statuses.idx");
+        StatusFile.write(snapshot, index, new AbstractList<StoredStatus>() {
+            @Override
+            public StoredStatus get(int i) {
+                return new StoredStatus(status(i));
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        }, 0);
+        before = usedHeap();
+        long start = System.nanoTime();
+        BuildStatusSnapshot store = BuildStatusSnapshot.ofStored(StatusFile.load(snapshot, index, 1000));
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        report("store, recent", usedHeap() - before, count);
+        System.out.printf("store loaded in %d ms, %d statuses in memory, %d MB on disk%n", loadMillis,
+                          store.inMemory(), (snapshot.length() + index.length()) >> 20);
+        // Keep the store reachable until it was measured.
+        System.out.println("newest: " + store.get(count - 1).getId());
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    // A status like the server makes, the same one for the same i.
+    private static BuildStatus status(int i) {
+        SplittableRandom random = new SplittableRandom(i);
+        BuildStatus status = new BuildStatus("owner/repo-" + i % 50, sha(random), "feature/branch-" + i % 2000,
+                                             i % 5 != 0, "Build succeeded. Tests run: " + (100 + i % 50) + ", Failures: 0");
+        status.setId(new UUID(random.nextLong(), random.nextLong()).toString());
+        status.setTimestamp(1_700_000_000_000L + i * 1000L);
+        return status;
+    }
+
+    private static String sha(SplittableRandom random) {
+        StringBuilder sha = new StringBuilder(40);
+        for (int i = 0; i < 40; i++) {
+            sha.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return sha.toString();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, long bytes, int count) {
+        System.out.printf("%-14s %6d MB, %4d bytes per status%n", name, bytes >> 20, bytes / count);
+    }
+}
@@ -0,0 +1,99 @@
+package com;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the reads of a BuildStatusStore while builds finish, i.e. while
+ * other threads keep replacing statuses: the dashboard and the webhook at once.
+ *
+ * Not a unit test. Build the test classes and run it through JMH:
+ *
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes:<dependencies> org.openjdk.jmh.Main BuildStatusStoreBenchmark
+ *
+ * The store is made in a temporary directory that is deleted afterwards. Use
+ * -p builds=... to change the number of statuses and -p store=file or
+ * -p store=h2 to measure only one of the stores.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildStatusStoreBenchmark {
+
+    @Param({"10000"})
+    public int builds;
+
+    @Param({"file", "h2"})
+    public String store;
+
+    private File directory;
+    private BuildStatusStore statusStore;
+    private BuildStatus[] statuses;
+
+    @Setup(Level.Trial)
+    public void fill() throws Exception {
+        directory = Files.createTempDirectory("status-benchmark").toFile();
+        statusStore = store.equals("h2")
+                ? new H2BuildStatusStore("jdbc:h2:" + new File(directory, "build_statuses").getAbsolutePath())
+                : new FileBuildStatusStore(directory);
+        statuses = new BuildStatus[builds];
+        for (int i = 0; i < builds; i++) {
+            BuildStatus status = new BuildStatus("repo" + i % 10, "sha" + i, "branch" + i % 50, true, "Details");
+            status.setTimestamp(i);
+            statuses[i] = status;
+            statusStore.addStatus(status);
+        }
+        statusStore.flush().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws Exception {
+        statusStore.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public void read(Blackhole blackhole) {
+        int i = (int) (System.nanoTime() % builds);
+        blackhole.consume(statusStore.getStatusById(statuses[i].getId()));
+        blackhole.consume(statusStore.getLatestBuilds("repo" + i % 10, "branch" + i % 50, 20));
+        // The first page of the build list.
+        blackhole.consume(statusStore.getPage(null, null, null, null, BuildListServlet.DEFAULT_LIMIT));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void write() {
+        int i = (int) (System.nanoTime() % builds);
+        BuildStatus finished = new BuildStatus("repo" + i % 10, "sha" + i, "branch" + i % 50, true, "Details");
+        finished.setId(statuses[i].getId());
+        finished.setTimestamp(statuses[i].getTimestamp());
+        statusStore.updateStatus(finished);
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Test;
 
 import com.BuildStatus;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.UUID;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -99,4 +100,39 @@ public class BuildStatusTest {
         status.setSuccess(false);
         assertFalse(status.isSuccess());
     }
-}
\ No newline at end of file
+
+    // Test that the compact fields still give the same JSON as plain strings, for ids and commits of any form.
+    @Test
+    void json_ShouldKeepTheStringFormat() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        String json = "{\"id\":\"5ee83441-d6b6-4e3b-9954-d3ffa1967ff8\",\"repoName\":\"repo\","
+                      + "\"commitSHA\":\"0123456789abcdef0123456789abcdef01234567\",\"branch\":\"main\","
+                      + "\"success\":true,\"details\":\"Build succeeded.\",\"timestamp\":1000,"
+                      + "\"state\":\"success\",\"cachedFrom\":\"build-1\"}";
+
+        BuildStatus status = mapper.readValue(json, BuildStatus.class);
+        assertEquals(json, mapper.writeValueAsString(status));
+
+        // Values that have no compact form are kept as they are.
+        for (String[] values : new String[][] {{"build-1", "abc123"}, {"5EE83441-D6B6-4E3B-9954-D3FFA1967FF8",
+                "0123456789ABCDEF0123456789ABCDEF01234567"}, {"", ""}}) {
+            status.setId(values[0]);
+            status.setCommitSHA(values[1]);
+            BuildStatus read = mapper.readValue(mapper.writeValueAsString(status), BuildStatus.class);
+            assertEquals(values[0], read.getId());
+            assertEquals(values[1], read.getCommitSHA());
+        }
+        status.setCommitSHA("00000000000000000000000000000000000000ff");
+        assertEquals("00000000000000000000000000000000000000ff", status.getCommitSHA());
+    }
+
+    // Test that repository and branch names of different statuses share one string.
+    @Test
+    void names_ShouldBeShared() {
+        BuildStatus first = new BuildStatus(new String("shared-repo"), "sha", new String("main"), true, "");
+        BuildStatus second = new BuildStatus(new String("shared-repo"), "sha", new String("main"), true, "");
+
+        assertSame(first.getRepoName(), second.getRepoName());
+        assertSame(first.getBranch(), second.getBranch());
+    }
+}
@@ -8,11 +8,16 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 
 /*
@@ -60,4 +65,27 @@ public class CIServerTest {
         assertTrue(responseBody.contains("This servlet is up and running."), 
                    "Response should contain the expected message.");
     }
+
+    @Test
+    public void pages_shouldBeCompressedForClientsThatAcceptGzip() throws Exception {
+        HttpResponse<byte[]> response = HttpClient.newHttpClient().send(
+            HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/builds"))
+                .header("Accept-Encoding", "gzip").build(),
+            HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, response.statusCode());
+        assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+        String page = new String(new GZIPInputStream(new ByteArrayInputStream(response.body())).readAllBytes());
+        assertTrue(page.contains("CI Build History"), "The page should be gzip compressed.");
+    }
+
+    @Test
+    public void server_shouldSpeakHttp2WithoutTls() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        // The first request upgrades the connection from HTTP/1.1.
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/builds")).build();
+        client.send(request, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertEquals(HttpClient.Version.HTTP_2, response.version());
+    }
 }
@@ -0,0 +1,101 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for the streaming output of DefaultProcessExecutor.
+ *
+ * Contract being tested:
+ * - Every line of the output reaches the sink while only the tail is kept in the result.
+ * - Output streamed into a BuildLog ends up complete in its file, and the result
+ *   refers to the log.
+ * - A job's log is used when the process runs on behalf of the job.
+ * - Lines end at \n, \r or \r\n; a line longer than MAX_LINE reaches the sink
+ *   in pieces, and the tail keeps only the end of a line longer than it.
+ */
+public class DefaultProcessExecutorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void execute_shouldStreamLinesAndKeepOnlyTail() throws Exception {
+        List<String> lines = new ArrayList<>();
+        DefaultProcessExecutor executor = new DefaultProcessExecutor(100);
+
+        ProcessResult result = executor.execute(new ProcessBuilder("seq", "1", "1000"), null, lines::add);
+
+        assertEquals(0, result.getExitCode());
+        assertEquals(1000, lines.size());
+        assertEquals("1000", lines.get(999));
+        assertTrue(result.getOutput().length() < 200, "Only the tail should be kept in memory.");
+        assertTrue(result.getOutput().endsWith("999\n1000\n"));
+        assertTrue(result.getOutput().startsWith("["), "The result should say that lines were left out.");
+        assertNull(result.getLog());
+    }
+
+    @Test
+    public void execute_shouldWriteWholeOutputToBuildLog() throws Exception {
+        File file = tempDir.resolve("logs/build.log").toFile();
+        BuildLog log = new BuildLog(file, 100);
+        BuildJob job = new BuildJob("owner", "repo", "refs/heads/main", "sha");
+        job.setLog(log);
+
+        ProcessResult result = new DefaultProcessExecutor(100).execute(new ProcessBuilder("seq", "1", "1000"), job);
+        log.close();
+
+        assertSame(log, result.getLog());
+        List<String> written = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1000, written.size());
+        assertEquals("1", written.get(0));
+        assertTrue(log.getTail().endsWith("1000\n"));
+        assertEquals(Files.size(file.toPath()), log.getLength());
+    }
+
+    @Test
+    public void execute_shouldSplitLinesWithoutNewlines() throws Exception {
+        List<String> lines = new ArrayList<>();
+        int length = 3 * DefaultProcessExecutor.MAX_LINE + 5;
+        ProcessResult result = new DefaultProcessExecutor(100).execute(
+                new ProcessBuilder("sh", "-c", "head -c " + length + " /dev/zero | tr '\\0' x; printf '\\nend'"),
+                null, lines::add);
+
+        assertEquals(0, result.getExitCode());
+        assertEquals(5, lines.size());
+        assertEquals(DefaultProcessExecutor.MAX_LINE, lines.get(0).length());
+        assertEquals("xxxxx", lines.get(3));
+        assertEquals("end", lines.get(4));
+        assertTrue(result.getOutput().length() <= 100 + 40);
+    }
+
+    @Test
+    public void readLines_shouldEndLinesAsReadLineDoes() throws Exception {
+        String piece = "x".repeat(DefaultProcessExecutor.MAX_LINE);
+        List<String> lines = new ArrayList<>();
+        DefaultProcessExecutor.readLines(new StringReader("a\r\nb\rc\n\nd" + "\n" + piece + "\r\n" + piece + "y"),
+                                         lines::add);
+
+        assertEquals(List.of("a", "b", "c", "", "d", piece, piece, "y"), lines);
+    }
+
+    @Test
+    public void tailBuffer_shouldKeepEndOfLongLastLine() {
+        TailBuffer tail = new TailBuffer(10);
+        tail.line("short");
+        tail.line("a line longer than the limit");
+
+        assertEquals("[1 earlier lines omitted]\nthe limit\n", tail.toString());
+        assertEquals(1, tail.getDropped());
+    }
+}
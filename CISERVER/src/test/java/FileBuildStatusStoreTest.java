@@ -3,6 +3,7 @@ package com;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import com.BuildStatus;
 import com.FileBuildStatusStore;
@@ -10,56 +11,174 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class FileBuildStatusStoreTest {
     private static final String FILE_PATH = "build_statuses.json";
+    private static final String JOURNAL_PATH = "build_statuses.journal";
+    private static final String INDEX_PATH = "build_statuses.idx";
+    private static final String DAMAGED_PATH = "build_statuses.json.damaged";
     private final ObjectMapper mapper = new ObjectMapper();
+    private FileBuildStatusStore store;
 
-    // Delete the file and reset the static state before each test.
+    // Delete the files and open a new store on them before each test.
     @BeforeEach
     void setUp() throws Exception {
         Files.deleteIfExists(Paths.get(FILE_PATH));
-        resetStaticState();
+        Files.deleteIfExists(Paths.get(JOURNAL_PATH));
+        Files.deleteIfExists(Paths.get(INDEX_PATH));
+        Files.deleteIfExists(Paths.get(DAMAGED_PATH));
+        store = new FileBuildStatusStore();
     }
 
-    // Delete the file after each test. 
+    // Close the store and delete the files after each test. 
     @AfterEach
     void tearDown() throws Exception {
+        store.close();
         Files.deleteIfExists(Paths.get(FILE_PATH));
+        Files.deleteIfExists(Paths.get(JOURNAL_PATH));
+        Files.deleteIfExists(Paths.get(INDEX_PATH));
+        Files.deleteIfExists(Paths.get(DAMAGED_PATH));
     }
 
-    // Helper function: Reset the static state of the FileBuildStatusStore class.
-    private void resetStaticState() throws Exception {
-        Field statusesField = FileBuildStatusStore.class.getDeclaredField("statuses");
-        statusesField.setAccessible(true);
-        statusesField.set(null, new ArrayList<>());
-
-        Field initialCountField = FileBuildStatusStore.class.getDeclaredField("initialCount");
-        initialCountField.setAccessible(true);
-        initialCountField.setInt(null, 0);
-    }
-
-    // Test the addStatus method of the FileBuildStatusStore class to ensure that the status is persisted to the file and the list is updated.
+    // Test the addStatus method of the FileBuildStatusStore class to ensure that the status is appended to the journal and the list is updated.
     @Test
-    void addStatus_ShouldPersistToFileAndUpdateList() throws Exception {
+    void addStatus_ShouldPersistToJournalAndUpdateList() throws Exception {
         BuildStatus status = new BuildStatus("my-repo", "abc123", "main", true, "Success");
         
-        FileBuildStatusStore.addStatus(status);
+        store.addStatus(status).join();
         
-        List<BuildStatus> statuses = FileBuildStatusStore.getStatuses();
+        List<BuildStatus> statuses = store.getStatuses();
         assertEquals(1, statuses.size());
         assertEquals(status.getId(), statuses.get(0).getId());
         
-        File file = new File(FILE_PATH);
-        List<BuildStatus> fileStatuses = mapper.readValue(file, new TypeReference<List<BuildStatus>>() {});
-        assertEquals(1, fileStatuses.size());
-        assertEquals(status.getId(), fileStatuses.get(0).getId());
+        List<String> records = Files.readAllLines(Paths.get(JOURNAL_PATH));
+        assertEquals(1, records.size());
+        assertEquals(status.getId(), mapper.readValue(records.get(0), BuildStatus.class).getId());
+
+        store.load();
+        assertEquals(1, store.getStatuses().size());
+        assertEquals(status.getId(), store.getStatuses().get(0).getId());
+    }
+
+    // Test that updates are replayed on top of the snapshot and that compaction folds the journal into it.
+    @Test
+    void compact_ShouldWriteSnapshotAndEmptyJournal() throws Exception {
+        BuildStatus first = new BuildStatus("repo", "sha1", "main", false, "Build queued.");
+        first.setState(BuildStatus.STATE_PENDING);
+        store.addStatus(first);
+        store.compact();
+        BuildStatus finished = new BuildStatus("repo", "sha1", "main", true, "Build succeeded.");
+        finished.setId(first.getId());
+        store.updateStatus(finished);
+        store.addStatus(new BuildStatus("repo", "sha2", "main", true, "Build succeeded."));
+
+        store.load();
+        assertEquals(2, store.getStatuses().size());
+        assertEquals(BuildStatus.STATE_SUCCESS, store.getStatusById(first.getId()).getState());
+
+        store.compact();
+        assertFalse(Files.exists(Paths.get(JOURNAL_PATH)));
+        List<BuildStatus> snapshot = mapper.readValue(new File(FILE_PATH), new TypeReference<List<BuildStatus>>() {});
+        assertEquals(2, snapshot.size());
+        assertEquals(BuildStatus.STATE_SUCCESS, snapshot.get(0).getState());
+    }
+
+    // Test that after a snapshot only the newest statuses stay in memory and the others are read from disk.
+    @Test
+    void load_ShouldKeepOnlyRecentStatusesInMemory() throws Exception {
+        int count = 1500;
+        List<BuildStatus> added = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BuildStatus status = new BuildStatus("repo", "sha" + i, "main", true, "Details of build " + i);
+            added.add(status);
+            store.addStatus(status);
+        }
+        store.compact();
+        assertEquals(1000, store.snapshot().inMemory(), "Compaction should drop the older statuses.");
+
+        store.load();
+        assertEquals(count, store.getStatuses().size());
+        assertEquals(1000, store.snapshot().inMemory());
+        for (int i : new int[] {0, 499, 500, count - 1}) {
+            BuildStatus status = store.getStatuses().get(i);
+            assertEquals(added.get(i).getId(), status.getId());
+            assertEquals("Details of build " + i, status.getDetails());
+        }
+        assertEquals(added.get(count - 1).getId(),
+                     store.getLatestBuilds("repo", "main", 1).get(0).getId());
+
+        // Changing an old status puts it in memory again and survives the next load.
+        BuildStatus changed = new BuildStatus("repo", "sha0", "main", false, "Rebuilt");
+        changed.setId(added.get(0).getId());
+        store.updateStatus(changed);
+        store.load();
+        assertEquals("Rebuilt", store.getStatusById(changed.getId()).getDetails());
+    }
+
+    // Test that a snapshot written before there was an index, with a status over several lines, is still read.
+    @Test
+    void load_ShouldReadSnapshotWithoutIndex() throws Exception {
+        BuildStatus first = new BuildStatus("repo", "sha1", "main", true, "First");
+        BuildStatus second = new BuildStatus("repo", "sha2", "main", false, "Second");
+        Files.write(Paths.get(FILE_PATH), mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(List.of(first, second)));
+
+        store.load();
+
+        assertEquals(2, store.getStatuses().size());
+        assertEquals("Second", store.getStatusById(second.getId()).getDetails());
+        assertTrue(Files.exists(Paths.get(INDEX_PATH)), "An index should be written for the next start.");
+        store.load();
+        assertEquals("First", store.getStatusById(first.getId()).getDetails());
+    }
+
+    // Test that a snapshot that breaks off keeps the statuses before the damage and is cut after them.
+    @Test
+    void load_ShouldCutDamagedSnapshot() throws Exception {
+        List<BuildStatus> added = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            added.add(new BuildStatus("repo", "sha" + i, "main", true, "Build " + i));
+            store.addStatus(added.get(i));
+        }
+        store.compact();
+        String snapshot = Files.readString(Paths.get(FILE_PATH));
+        String damaged = snapshot.substring(0, snapshot.indexOf(added.get(2).getId()) + 5);
+        Files.writeString(Paths.get(FILE_PATH), damaged);
+
+        store.load();
+
+        assertEquals(2, store.getStatuses().size());
+        assertEquals(added.get(1).getId(), store.getStatuses().get(1).getId());
+        assertEquals(damaged, Files.readString(Paths.get(DAMAGED_PATH)), "The damaged file should be kept.");
+        List<BuildStatus> cut = mapper.readValue(new File(FILE_PATH), new TypeReference<List<BuildStatus>>() {});
+        assertEquals(2, cut.size());
+    }
+
+    // Test that a record torn by a crash is dropped and cut from the journal, so later records can be read.
+    @Test
+    void load_ShouldDropTornLastRecord() throws Exception {
+        BuildStatus status = new BuildStatus("repo", "sha1", "main", true, "Build succeeded.");
+        store.addStatus(status).join();
+        Files.writeString(Paths.get(JOURNAL_PATH), "{\"id\":\"torn\",\"repoN", StandardOpenOption.APPEND);
+
+        store.load();
+        assertEquals(1, store.getStatuses().size());
+
+        BuildStatus next = new BuildStatus("repo", "sha2", "main", true, "Build succeeded.");
+        store.addStatus(next);
+        store.load();
+        assertEquals(2, store.getStatuses().size());
+        assertNotNull(store.getStatusById(next.getId()));
     }
 
     // Test the getStatusById method of the FileBuildStatusStore class to ensure that the correct status is returned.
@@ -67,38 +186,314 @@ public class FileBuildStatusStoreTest {
     void getStatusById_ShouldReturnCorrectStatus() {
         BuildStatus status1 = new BuildStatus("repo1", "sha1", "branch1", true, "Details1");
         BuildStatus status2 = new BuildStatus("repo2", "sha2", "branch2", false, "Details2");
-        FileBuildStatusStore.addStatus(status1);
-        FileBuildStatusStore.addStatus(status2);
+        store.addStatus(status1);
+        store.addStatus(status2);
         
-        BuildStatus found = FileBuildStatusStore.getStatusById(status1.getId());
+        BuildStatus found = store.getStatusById(status1.getId());
         assertNotNull(found);
         assertEquals(status1.getRepoName(), found.getRepoName());
         
-        BuildStatus notFound = FileBuildStatusStore.getStatusById("invalid-id");
+        BuildStatus notFound = store.getStatusById("invalid-id");
         assertNull(notFound);
     }
 
     // Test the getStatuses method of the FileBuildStatusStore class to ensure that all entries are returned.
     @Test
     void getStatuses_ShouldReturnAllEntries() {
-        assertEquals(0, FileBuildStatusStore.getStatuses().size());
+        assertEquals(0, store.getStatuses().size());
         
-        FileBuildStatusStore.addStatus(new BuildStatus("repo", "sha", "branch", true, "Details"));
-        FileBuildStatusStore.addStatus(new BuildStatus("repo", "sha", "branch", true, "Details"));
-        assertEquals(2, FileBuildStatusStore.getStatuses().size());
+        store.addStatus(new BuildStatus("repo", "sha", "branch", true, "Details"));
+        store.addStatus(new BuildStatus("repo", "sha", "branch", true, "Details"));
+        assertEquals(2, store.getStatuses().size());
     }
 
     // Test that addStatus method of the FileBuildStatusStore class is thread-safe.
     @Test
     void concurrentAccess_ShouldBeThreadSafe() throws InterruptedException {
-        Thread t1 = new Thread(() -> FileBuildStatusStore.addStatus(new BuildStatus("repo1", "sha1", "branch1", true, "Details")));
-        Thread t2 = new Thread(() -> FileBuildStatusStore.addStatus(new BuildStatus("repo2", "sha2", "branch2", false, "Details")));
+        Thread t1 = new Thread(() -> store.addStatus(new BuildStatus("repo1", "sha1", "branch1", true, "Details")));
+        Thread t2 = new Thread(() -> store.addStatus(new BuildStatus("repo2", "sha2", "branch2", false, "Details")));
         
         t1.start();
         t2.start();
         t1.join();
         t2.join();
         
-        assertEquals(2, FileBuildStatusStore.getStatuses().size());
+        assertEquals(2, store.getStatuses().size());
+    }
+
+    // Test that a burst of writers gets every status into the journal and that every future completes.
+    @Test
+    void concurrentWrites_ShouldAllBeJournaled() throws Exception {
+        List<CompletableFuture<Void>> written = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    written.add(store.addStatus(new BuildStatus("repo", "sha" + i, "main", true, "Details")));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        CompletableFuture.allOf(written.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        assertEquals(400, Files.readAllLines(Paths.get(JOURNAL_PATH)).size());
+        store.load();
+        assertEquals(400, store.getStatuses().size());
+    }
+
+    // Test the queries by repository, branch and commit, newest first, and that updates move a build in them.
+    @Test
+    void queries_ShouldReturnNewestMatchingBuilds() {
+        BuildStatus oldMain = status("repo", "sha1", "main", 1000);
+        BuildStatus feature = status("repo", "sha2", "feature", 2000);
+        BuildStatus newMain = status("repo", "sha3", "main", 3000);
+        BuildStatus other = status("other", "sha1", "main", 4000);
+        store.addStatus(oldMain);
+        store.addStatus(feature);
+        store.addStatus(newMain);
+        store.addStatus(other);
+
+        assertEquals(List.of(newMain, oldMain), store.getLatestBuilds("repo", "main", 10));
+        assertEquals(List.of(newMain), store.getLatestBuilds("repo", "main", 1));
+        assertEquals(List.of(newMain, feature, oldMain), store.getLatestBuilds("repo", null, 10));
+        assertEquals(List.of(other, oldMain), store.getBuildsByCommit("sha1"));
+        assertTrue(store.getBuildsByCommit("unknown").isEmpty());
+
+        // A finished build replaces its pending status and becomes the newest.
+        BuildStatus finished = status("repo", "sha1", "main", 5000);
+        finished.setId(oldMain.getId());
+        store.updateStatus(finished);
+        assertEquals(List.of(finished, newMain), store.getLatestBuilds("repo", "main", 10));
+        assertSame(finished, store.getStatusById(oldMain.getId()));
+
+        // Clearing the store also clears the lookups.
+        store.clear();
+        assertNull(store.getStatusById(newMain.getId()));
+        assertTrue(store.getLatestBuilds("repo", null, 10).isEmpty());
+    }
+
+    // Test that a snapshot keeps showing the version it was taken of while the store moves on.
+    @Test
+    void snapshot_ShouldNotChangeAfterWrites() {
+        BuildStatus pending = status("repo", "sha1", "main", 1000);
+        store.addStatus(pending);
+        BuildStatusSnapshot before = store.snapshot();
+
+        BuildStatus finished = status("repo", "sha1", "main", 2000);
+        finished.setId(pending.getId());
+        store.updateStatus(finished);
+        for (int i = 0; i < 2 * BuildStatusSnapshot.CHUNK; i++) {
+            store.addStatus(status("repo", "sha" + i, "main", 3000 + i));
+        }
+
+        assertEquals(1, before.size());
+        assertSame(pending, before.getStatusById(pending.getId()));
+        assertEquals(List.of(pending), before.getLatestBuilds("repo", "main", 10));
+        assertSame(finished, store.getStatusById(pending.getId()));
+        assertEquals(1 + 2 * BuildStatusSnapshot.CHUNK, store.getStatuses().size());
+        assertTrue(store.snapshot().getVersion() > before.getVersion());
+        assertThrows(UnsupportedOperationException.class, () -> before.getStatuses().add(finished));
+    }
+
+    // Test that walking the pages forward and back gives every build once, newest first, also when builds change in between.
+    @Test
+    void pages_ShouldWalkAllBuildsNewestFirst() {
+        List<BuildStatus> all = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            // Timestamps out of insertion order, and some equal ones.
+            BuildStatus status = status(i % 3 == 0 ? "repo" : "other", "sha" + i % 7, "main", (i * 7919) % 500);
+            store.addStatus(status);
+            all.add(status);
+        }
+        List<BuildStatus> expected = newestFirst(all);
+
+        List<BuildStatus> walked = new ArrayList<>();
+        List<String> cursors = new ArrayList<>();
+        BuildStatusPage page = store.getPage(null, null, null, null, 30);
+        assertNull(page.getPreviousCursor());
+        while (true) {
+            walked.addAll(page.getBuilds());
+            if (page.getNextCursor() == null) {
+                break;
+            }
+            cursors.add(page.getNextCursor());
+            page = store.getPage(null, null, null, page.getNextCursor(), 30);
+        }
+        assertEquals(expected, walked);
+
+        // Back from the last page gives the pages before it.
+        BuildStatusPage back = store.getPage(null, null, null, page.getPreviousCursor(), 30);
+        assertEquals(expected.subList(expected.size() - page.getBuilds().size() - 30, expected.size() - page.getBuilds().size()),
+                     back.getBuilds());
+
+        // A build that finishes moves to the front; the next page still starts after the cursor.
+        BuildStatus finished = status("repo", "sha0", "main", 10000);
+        finished.setId(expected.get(40).getId());
+        store.updateStatus(finished);
+        List<BuildStatus> after = store.getPage(null, null, null, cursors.get(0), 30).getBuilds();
+        List<BuildStatus> rest = new ArrayList<>(expected.subList(30, 61));
+        rest.remove(expected.get(40));
+        assertEquals(rest, after);
+        assertEquals(finished, store.getPage(null, null, null, null, 1).getBuilds().get(0));
+
+        // Filters: repository, and commit together with repository.
+        List<BuildStatus> repo = new ArrayList<>();
+        page = store.getPage("repo", null, null, null, 25);
+        while (true) {
+            repo.addAll(page.getBuilds());
+            if (page.getNextCursor() == null) {
+                break;
+            }
+            page = store.getPage("repo", null, null, page.getNextCursor(), 25);
+        }
+        assertEquals(newestFirst(store.getStatuses().stream()
+                                     .filter(s -> s.getRepoName().equals("repo")).toList()), repo);
+        List<BuildStatus> commit = store.getPage("other", null, "sha1", null, 1000).getBuilds();
+        assertEquals(newestFirst(store.getStatuses().stream()
+                                     .filter(s -> s.getRepoName().equals("other") && s.getCommitSHA().equals("sha1"))
+                                     .toList()), commit);
+
+        assertThrows(IllegalArgumentException.class, () -> store.getPage(null, null, null, "not a cursor", 10));
+    }
+
+    // Test that stores in different directories keep their statuses apart, also after they are opened again.
+    @Test
+    void stores_ShouldKeepTheirOwnStatuses(@TempDir Path dir) {
+        FileBuildStatusStore first = new FileBuildStatusStore(dir.resolve("first").toFile());
+        FileBuildStatusStore second = new FileBuildStatusStore(dir.resolve("second").toFile());
+        BuildStatus status = status("repo", "sha1", "main", 1000);
+        first.addStatus(status).join();
+
+        assertEquals(1, first.size());
+        assertEquals(0, second.size());
+        assertNull(second.getStatusById(status.getId()));
+        first.close();
+        second.close();
+
+        FileBuildStatusStore reopened = new FileBuildStatusStore(dir.resolve("first").toFile());
+        assertEquals(1, reopened.getInitialCount());
+        assertEquals(status.getId(), reopened.getLastAdded().getId());
+        reopened.close();
+    }
+
+    // Test that the retention policy moves old builds to the archive, where they are still found, also after a restart.
+    @Test
+    void retention_ShouldArchiveExpiredStatuses(@TempDir Path dir) {
+        long now = System.currentTimeMillis();
+        long day = TimeUnit.DAYS.toMillis(1);
+        FileBuildStatusStore retained = new FileBuildStatusStore(dir.toFile(), new RetentionPolicy(2, 7 * day));
+        BuildStatus oldest = status("repo", "sha1", "main", now - 30 * day);
+        BuildStatus old = status("repo", "sha2", "main", now - 20 * day);
+        BuildStatus second = status("repo", "sha3", "main", now - 10 * day);
+        BuildStatus recent = status("repo", "sha4", "main", now - day);
+        BuildStatus feature = status("repo", "sha5", "feature", now - 100 * day);
+        BuildStatus other = status("other", "sha1", "main", now - 50 * day);
+        for (BuildStatus status : List.of(oldest, old, second, recent, feature, other)) {
+            retained.addStatus(status).join();
+        }
+
+        retained.applyRetention();
+        // The newest two of every branch are kept, however old they are.
+        assertEquals(List.of(recent.getId(), second.getId()), ids(retained.getLatestBuilds("repo", "main", 10)));
+        assertEquals(List.of(feature.getId()), ids(retained.getLatestBuilds("repo", "feature", 10)));
+        assertEquals(List.of(other.getId()), ids(retained.getBuildsByCommit("sha1")));
+        assertNull(retained.getStatusById(oldest.getId()));
+        assertEquals("sha1", retained.getArchivedStatus(oldest.getId()).getCommitSHA());
+        assertNull(retained.getArchivedStatus(recent.getId()));
+        assertEquals(List.of(old.getId(), oldest.getId()), ids(retained.searchArchive("repo", "main", null, 10)));
+        assertEquals(List.of(old.getId()), ids(retained.searchArchive(null, null, null, 1)));
+        assertEquals(0, retained.applyRetention());
+        retained.close();
+
+        FileBuildStatusStore reopened = new FileBuildStatusStore(dir.toFile(), RetentionPolicy.KEEP_ALL);
+        assertEquals(4, reopened.size());
+        assertNull(reopened.getStatusById(old.getId()));
+        assertEquals(old.getId(), reopened.getArchivedStatus(old.getId()).getId());
+        reopened.close();
+    }
+
+    // Test that writes made while a version without archived statuses was built are not lost.
+    @Test
+    void rebase_ShouldKeepWritesMadeMeanwhile() {
+        BuildStatus first = status("repo", "sha1", "main", 1000);
+        BuildStatus second = status("repo", "sha2", "main", 2000);
+        BuildStatus third = status("repo", "sha3", "main", 3000);
+        BuildStatusSnapshot base = BuildStatusSnapshot.of(List.of(first, second, third));
+
+        BuildStatus added = status("repo", "sha4", "main", 4000);
+        BuildStatus updated = status("repo", "sha2", "main", 5000);
+        updated.setId(second.getId());
+        updated.setDetails("Finished");
+        BuildStatusSnapshot later = base.add(added).upsert(updated);
+        BuildStatusSnapshot without = BuildStatusSnapshot.of(List.of(first, second));
+
+        BuildStatusSnapshot rebased = later.rebase(base, without);
+        assertEquals(List.of(first.getId(), second.getId(), added.getId()), ids(rebased.getStatuses()));
+        assertEquals("Finished", rebased.getStatusById(second.getId()).getDetails());
+        assertNull(rebased.getStatusById(third.getId()));
+        assertEquals(List.of(updated.getId(), added.getId(), first.getId()),
+                     ids(rebased.getLatestBuilds("repo", "main", 10)));
+        assertTrue(rebased.getVersion() > later.getVersion());
+    }
+
+    // Test that lookups find every status, also ids and commits with the same hash code.
+    @Test
+    void lookups_ShouldFindStatusesWithCollidingKeys() {
+        List<BuildStatus> statuses = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            statuses.add(status("repo" + i % 7, "sha" + i, "main", i));
+        }
+        BuildStatus aa = status("repo", "Aa", "main", 6000);
+        aa.setId("Aa");
+        BuildStatus bb = status("repo", "BB", "main", 6001);
+        bb.setId("BB");
+        BuildStatusSnapshot snapshot = BuildStatusSnapshot.of(statuses).add(aa).add(bb);
+
+        for (BuildStatus status : statuses) {
+            assertSame(status, snapshot.getStatusById(status.getId()));
+            assertEquals(List.of(status.getId()), ids(snapshot.getBuildsByCommit(status.getCommitSHA())));
+        }
+        assertSame(aa, snapshot.getStatusById("Aa"));
+        assertSame(bb, snapshot.getStatusById("BB"));
+        assertEquals(List.of("Aa"), ids(snapshot.getBuildsByCommit("Aa")));
+        assertEquals(List.of("BB"), ids(snapshot.getBuildsByCommit("BB")));
+        assertNull(snapshot.getStatusById("C#"));
+
+        // Moving the builds to other commits takes the old commits out of the lookup.
+        for (BuildStatus status : statuses) {
+            BuildStatus moved = status(status.getRepoName(), "moved" + status.getCommitSHA(), "main", 7000);
+            moved.setId(status.getId());
+            snapshot = snapshot.upsert(moved);
+        }
+        BuildStatus movedAa = status("repo", "BB", "main", 7000);
+        movedAa.setId("Aa");
+        snapshot = snapshot.upsert(movedAa);
+        for (BuildStatus status : statuses) {
+            assertEquals(List.of(), snapshot.getBuildsByCommit(status.getCommitSHA()));
+            assertEquals(List.of(status.getId()), ids(snapshot.getBuildsByCommit("moved" + status.getCommitSHA())));
+        }
+        assertEquals(List.of(), snapshot.getBuildsByCommit("Aa"));
+        assertEquals(List.of("Aa", "BB"), ids(snapshot.getBuildsByCommit("BB")));
+    }
+
+    private static List<String> ids(List<BuildStatus> statuses) {
+        return statuses.stream().map(BuildStatus::getId).toList();
+    }
+
+    private List<BuildStatus> newestFirst(List<BuildStatus> statuses) {
+        List<BuildStatus> sorted = new ArrayList<>(statuses);
+        List<BuildStatus> added = store.getStatuses();
+        sorted.sort(Comparator.comparingLong(BuildStatus::getTimestamp).thenComparingInt(added::indexOf).reversed());
+        return sorted;
+    }
+
+    private static BuildStatus status(String repo, String sha, String branch, long timestamp) {
+        BuildStatus status = new BuildStatus(repo, sha, branch, true, "Details");
+        status.setTimestamp(timestamp);
+        return status;
     }
-}
\ No newline at end of file
+}
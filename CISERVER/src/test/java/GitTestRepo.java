@@ -0,0 +1,58 @@
+package com;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper for tests that need a real git repository without network access.
+ * Commits are made in a working repository and pushed to a bare repository
+ * that tests can clone or fetch from over file://.
+ */
+class GitTestRepo {
+    private final File work;
+    private final File bare;
+
+    GitTestRepo(File dir) throws Exception {
+        this.work = new File(dir, "work");
+        this.bare = new File(dir, "origin.git");
+        work.mkdirs();
+        git(dir, "init", "--bare", bare.getAbsolutePath());
+        git(work, "init");
+        git(work, "checkout", "-b", "main");
+        git(work, "remote", "add", "origin", bare.getAbsolutePath());
+    }
+
+    String getUrl() {
+        return "file://" + bare.getAbsolutePath();
+    }
+
+    File getBareDir() {
+        return bare;
+    }
+
+    /**
+     * Writes a file, commits it on main, pushes it and returns the commit SHA.
+     */
+    String commit(String fileName, String content) throws Exception {
+        Files.writeString(new File(work, fileName).toPath(), content, StandardCharsets.UTF_8);
+        git(work, "add", fileName);
+        git(work, "-c", "user.name=Test", "-c", "user.email=test@example.com", "commit", "-m", "Change " + fileName);
+        git(work, "push", "origin", "main");
+        return git(work, "rev-parse", "HEAD").trim();
+    }
+
+    static String git(File dir, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(List.of(args));
+        ProcessResult result = new DefaultProcessExecutor().execute(new ProcessBuilder(command).directory(dir));
+        if (result.getExitCode() != 0) {
+            throw new IOException("git " + String.join(" ", args) + " failed: " + result.getOutput());
+        }
+        return result.getOutput();
+    }
+}
@@ -0,0 +1,192 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+/**
+ * Tests for the asynchronous mode of GithubWebhook.
+ *
+ * Contract being tested:
+ * - doPost answers 202 with the build id before the build has run.
+ * - A pending BuildStatus is recorded right away and replaced by the result once a worker ran the build.
+ * - When the queue is full the webhook answers 503.
+ * - A queued build that is superseded by a newer push gets a superseded status, also on GitHub.
+ */
+public class GithubWebhookAsyncTest {
+
+
+    private static final String PAYLOAD = payload("abc123");
+
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private StringWriter responseWriter;
+    private GithubWebhook webhook;
+    @TempDir
+    Path storeDir;
+    private FileBuildStatusStore statusStore;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        statusStore = new FileBuildStatusStore(storeDir.toFile());
+        request = Mockito.mock(HttpServletRequest.class);
+        response = Mockito.mock(HttpServletResponse.class);
+        responseWriter = new StringWriter();
+        Mockito.when(request.getInputStream()).thenReturn(new StringInputStream(PAYLOAD));
+        Mockito.when(response.getWriter()).thenReturn(new PrintWriter(responseWriter, true));
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        if (webhook != null) {
+            // Let released builds finish so they do not record statuses during the next test.
+            BuildQueue queue = webhook.getBuildQueue();
+            for (int i = 0; i < 50 && (queue.size() > 0 || !queue.getActiveCounts().isEmpty()); i++) {
+                Thread.sleep(100);
+            }
+            webhook.destroy();
+        }
+        statusStore.close();
+    }
+
+    @Test
+    public void testDoPost_queuesBuildAndAnswersAccepted() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch posted = new CountDownLatch(1);
+        GitHubClient gitHubClient = (owner, repo, sha, state) -> posted.countDown();
+        webhook = new GithubWebhook(pb -> new ProcessResult(0, ""), gitHubClient, statusStore, new BuildQueue(10, 1, 1)) {
+            @Override
+            protected void runBuildAtCommit(String owner, String repo, String commitSHA, BuildJob job) throws Exception {
+                release.await();
+            }
+        };
+        webhook.init();
+
+        webhook.doPost(request, response);
+
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+        assertEquals(1, statusStore.getStatuses().size());
+        BuildStatus pending = statusStore.getStatuses().get(0);
+        assertEquals(BuildStatus.STATE_PENDING, pending.getState());
+        assertTrue(responseWriter.toString().contains(pending.getId()), "Response should contain the build id.");
+
+        // Let the worker finish the build and check that the pending status was replaced.
+        release.countDown();
+        assertTrue(posted.await(5, TimeUnit.SECONDS), "The result should be posted to GitHub.");
+        BuildStatus done = statusStore.getStatusById(pending.getId());
+        assertEquals(BuildStatus.STATE_SUCCESS, done.getState());
+        assertEquals("AsyncRepo", done.getRepoName());
+        assertEquals(1, statusStore.getStatuses().size());
+    }
+
+    @Test
+    public void testDoPost_queueFull() throws Exception {
+        // The queue is never started, so the single slot stays taken and there is nothing to wait for.
+        GithubWebhook webhook = new GithubWebhook(pb -> new ProcessResult(0, ""), (owner, repo, sha, state) -> { }, statusStore,
+                                                  new BuildQueue(1, 1, 1));
+
+        webhook.doPost(request, response);
+        Mockito.when(request.getInputStream()).thenReturn(new StringInputStream(PAYLOAD));
+        webhook.doPost(request, response);
+
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+        Mockito.verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        // Look the status up by its details, workers of other tests may still record theirs.
+        assertTrue(statusStore.getStatuses().stream()
+                .anyMatch(s -> s.getState().equals(BuildStatus.STATE_ERROR) && s.getDetails().equals("Build queue is full.")));
+    }
+
+    @Test
+    public void testDoPost_supersedesQueuedBuildOfSameBranch() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> posted = Collections.synchronizedList(new ArrayList<>());
+        GitHubClient gitHubClient = new GitHubClient() {
+            @Override
+            public void postStatus(String owner, String repo, String sha, String state) {
+                posted.add(sha + ":" + state);
+            }
+
+            @Override
+            public void postStatus(String owner, String repo, String sha, String state, String description) {
+                posted.add(sha + ":" + state + ":" + description);
+            }
+        };
+        webhook = new GithubWebhook(pb -> new ProcessResult(0, ""), gitHubClient, statusStore,
+                                    new BuildQueue(10, 1, 1, true, false)) {
+            @Override
+            protected void runBuildAtCommit(String owner, String repo, String commitSHA, BuildJob job) throws Exception {
+                started.countDown();
+                release.await();
+            }
+        };
+        webhook.init();
+
+        webhook.doPost(request, response);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (String sha : new String[] {"def456", "fed789"}) {
+            Mockito.when(request.getInputStream()).thenReturn(new StringInputStream(payload(sha)));
+            webhook.doPost(request, response);
+        }
+
+        BuildStatus superseded = statusStore.getStatuses().get(1);
+        assertEquals("def456", superseded.getCommitSHA());
+        assertEquals(BuildStatus.STATE_SUPERSEDED, superseded.getState());
+        assertTrue(posted.contains("def456:error:Superseded by commit fed789"), "GitHub should be told about the superseded commit.");
+        assertEquals(BuildStatus.STATE_PENDING, statusStore.getStatuses().get(2).getState());
+        release.countDown();
+    }
+
+    private static String payload(String sha) {
+        return "{\"after\":\"" + sha + "\",\"ref\":\"refs/heads/main\","
+                + "\"repository\":{\"name\":\"AsyncRepo\",\"owner\":{\"login\":\"someone\"}}}";
+    }
+
+    // Minimal servlet input stream over a string.
+    static class StringInputStream extends ServletInputStream {
+        private final ByteArrayInputStream in;
+
+        StringInputStream(String content) {
+            this.in = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+        }
+    }
+}
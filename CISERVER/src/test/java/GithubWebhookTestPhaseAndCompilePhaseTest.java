@@ -22,6 +22,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
  * - runCompilePhase: When the process returns exit code 0, the method completes without exception;
  *   when it returns nonzero, an exception is thrown with a message containing "Compilation failed".
  * - runTestPhase: Similarly, success (exit code 0) completes normally; a nonzero exit code causes an exception.
+ * - runBuildPhases: With merged phases compile and test run as a single "clean test" invocation.
  */
 @ExtendWith(MockitoExtension.class)
 public class GithubWebhookTestPhaseAndCompilePhaseTest {
@@ -29,6 +30,9 @@ public class GithubWebhookTestPhaseAndCompilePhaseTest {
     @Mock
     private ProcessExecutor processExecutor;
 
+    @Mock
+    private BuildStatusStore statusStore;
+
     // Declare the webhook as a class-level field.
     private GithubWebhook webhook;
     private GitHubClient githubclient; 
@@ -38,7 +42,7 @@ public class GithubWebhookTestPhaseAndCompilePhaseTest {
     @BeforeEach
     public void setup() {
         // Inject mocks into the webhook.
-        webhook = new GithubWebhook(processExecutor,githubclient );
+        webhook = new GithubWebhook(processExecutor, githubclient, statusStore);
     }
 
     @AfterEach
@@ -117,6 +121,23 @@ public class GithubWebhookTestPhaseAndCompilePhaseTest {
                 "Exception message should contain 'Test phase failed'");
     }
 
+    @Test
+    public void testRunBuildPhasesMerged() throws Exception {
+        // Contract: Merged phases start Maven once instead of once per phase.
+        when(processExecutor.execute(any(ProcessBuilder.class))).thenReturn(new ProcessResult(0, "BUILD SUCCESS"));
+        webhook.setMergePhases(true);
+
+        workspace = new File("dummy_workspace_merged");
+        workspace.mkdirs();
+
+        assertDoesNotThrow(() -> webhook.runBuildPhases(workspace, null));
+
+        verify(processExecutor, times(1)).execute(any(ProcessBuilder.class));
+        verify(processExecutor).execute(argThat(new ProcessBuilderMatcher(new String[] {
+            "mvn", "-B", "-f", "CISERVER/pom.xml", "clean", "test"
+        })));
+    }
+
     // Helper matcher to verify that ProcessBuilder is created with the expected command.
     static class ProcessBuilderMatcher implements ArgumentMatcher<ProcessBuilder> {
         private final String[] expectedCommand;
@@ -0,0 +1,206 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for H2BuildStatusStore on a database in a temporary directory.
+ *
+ * Contract being tested:
+ * - Statuses are found by id, repository, branch and commit, newest first, and
+ *   an update replaces the status with the same id.
+ * - Adding an id that is already stored keeps the first status.
+ * - Walking the pages forward and back gives every build once, in the same
+ *   order as FileBuildStatusStore; invalid cursors are rejected.
+ * - Statuses survive opening the database again and count as there from the start.
+ * - The future of a write completes only after the database was synced; writes
+ *   waiting at once share a sync.
+ * - The retention policy moves the builds it doesn't keep to the archive.
+ */
+public class H2BuildStatusStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private H2BuildStatusStore store;
+
+    @BeforeEach
+    public void setUp() {
+        store = open();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void queries_shouldReturnNewestMatchingBuilds() {
+        BuildStatus oldMain = status("repo", "sha1", "main", 1000);
+        BuildStatus feature = status("repo", "sha2", "feature", 2000);
+        BuildStatus newMain = status("repo", "sha3", "main", 3000);
+        BuildStatus other = status("other", "sha1", "main", 4000);
+        for (BuildStatus status : List.of(oldMain, feature, newMain, other)) {
+            store.addStatus(status).join();
+        }
+
+        assertEquals(ids(newMain, oldMain), ids(store.getLatestBuilds("repo", "main", 10)));
+        assertEquals(ids(newMain), ids(store.getLatestBuilds("repo", "main", 1)));
+        assertEquals(ids(newMain, feature, oldMain), ids(store.getLatestBuilds("repo", null, 10)));
+        assertEquals(ids(other, oldMain), ids(store.getBuildsByCommit("sha1")));
+        assertTrue(store.getBuildsByCommit("unknown").isEmpty());
+        assertEquals("Details", store.getStatusById(feature.getId()).getDetails());
+        assertNull(store.getStatusById("unknown"));
+
+        // A finished build replaces its pending status and becomes the newest.
+        BuildStatus finished = status("repo", "sha1", "main", 5000);
+        finished.setId(oldMain.getId());
+        finished.setDetails("Finished");
+        store.updateStatus(finished).join();
+        assertEquals(ids(finished, newMain), ids(store.getLatestBuilds("repo", "main", 10)));
+        assertEquals("Finished", store.getStatusById(oldMain.getId()).getDetails());
+        assertEquals(4, store.size());
+        assertEquals(other.getId(), store.getLastAdded().getId());
+
+        // The first status with an id is kept.
+        BuildStatus duplicate = status("repo", "sha9", "main", 6000);
+        duplicate.setId(feature.getId());
+        store.addStatus(duplicate).join();
+        assertEquals("sha2", store.getStatusById(feature.getId()).getCommitSHA());
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    public void pages_shouldWalkAllBuildsNewestFirst() {
+        List<BuildStatus> all = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Timestamps out of insertion order, and some equal ones.
+            BuildStatus status = status(i % 3 == 0 ? "repo" : "other", "sha" + i % 7, "main", (i * 7919) % 100);
+            store.addStatus(status).join();
+            all.add(status);
+        }
+        List<String> expected = newestFirst(all);
+
+        List<String> walked = new ArrayList<>();
+        BuildStatusPage page = store.getPage(null, null, null, null, 30);
+        assertNull(page.getPreviousCursor());
+        while (true) {
+            walked.addAll(ids(page.getBuilds()));
+            if (page.getNextCursor() == null) {
+                break;
+            }
+            page = store.getPage(null, null, null, page.getNextCursor(), 30);
+        }
+        assertEquals(expected, walked);
+
+        // Back from the last page gives the pages before it.
+        int last = page.getBuilds().size();
+        BuildStatusPage back = store.getPage(null, null, null, page.getPreviousCursor(), 30);
+        assertEquals(expected.subList(expected.size() - last - 30, expected.size() - last), ids(back.getBuilds()));
+        assertNotNull(back.getNextCursor());
+
+        // Commit together with repository.
+        List<BuildStatus> matching = all.stream()
+                .filter(s -> s.getRepoName().equals("other") && s.getCommitSHA().equals("sha1")).toList();
+        assertEquals(newestFirst(matching), ids(store.getPage("other", null, "sha1", null, 1000).getBuilds()));
+
+        assertThrows(IllegalArgumentException.class, () -> store.getPage(null, null, null, "not a cursor", 10));
+    }
+
+    @Test
+    public void reopen_shouldKeepStatuses() {
+        BuildStatus first = status("repo", "sha1", "main", 1000);
+        store.addStatus(first).join();
+        store.close();
+
+        store = open();
+        assertEquals(1, store.getInitialCount());
+        assertEquals(first.getId(), store.getStatusById(first.getId()).getId());
+
+        // Copied statuses count as there from the start, like those of a reopened store.
+        store.copyFrom(List.of(status("repo", "sha2", "main", 2000), status("repo", "sha3", "main", 3000)));
+        assertEquals(3, store.size());
+        assertEquals(3, store.getInitialCount());
+        assertEquals("sha3", store.getLastAdded().getCommitSHA());
+    }
+
+    @Test
+    public void retention_shouldArchiveExpiredBuilds() {
+        store.close();
+        long now = System.currentTimeMillis();
+        long day = TimeUnit.DAYS.toMillis(1);
+        store = new H2BuildStatusStore("jdbc:h2:" + tempDir.resolve("build_statuses").toAbsolutePath(),
+                                       tempDir.resolve("archive").toFile(), new RetentionPolicy(2, 7 * day));
+        BuildStatus oldest = status("repo", "sha1", "main", now - 30 * day);
+        BuildStatus old = status("repo", "sha2", "main", now - 20 * day);
+        BuildStatus second = status("repo", "sha3", "main", now - 10 * day);
+        BuildStatus recent = status("repo", "sha4", "main", now - day);
+        BuildStatus other = status("other", "sha1", "main", now - 50 * day);
+        for (BuildStatus status : List.of(oldest, old, second, recent, other)) {
+            store.addStatus(status).join();
+        }
+
+        store.applyRetention();
+        assertEquals(ids(recent, second), ids(store.getLatestBuilds("repo", "main", 10)));
+        assertEquals(ids(other), ids(store.getBuildsByCommit("sha1")));
+        assertNull(store.getStatusById(old.getId()));
+        assertEquals("sha2", store.getArchivedStatus(old.getId()).getCommitSHA());
+        assertEquals(ids(old, oldest), ids(store.searchArchive("repo", null, null, 10)));
+        assertEquals(0, store.applyRetention());
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void writes_shouldCompleteOnceSynced() {
+        long synced = store.getSyncCount();
+        store.addStatus(status("repo", "sha1", "main", 1000)).join();
+        assertTrue(store.getSyncCount() > synced);
+
+        synced = store.getSyncCount();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            writes.add(store.addStatus(status("repo", "sha" + i, "main", 2000 + i)));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+        assertTrue(store.getSyncCount() > synced);
+        assertTrue(store.getSyncCount() - synced <= 200);
+        store.flush().join();
+        assertEquals(201, store.size());
+    }
+
+    private H2BuildStatusStore open() {
+        return new H2BuildStatusStore("jdbc:h2:" + tempDir.resolve("build_statuses").toAbsolutePath());
+    }
+
+    // The ids, newest first and of the same millisecond the last added first.
+    private static List<String> newestFirst(List<BuildStatus> statuses) {
+        List<BuildStatus> sorted = new ArrayList<>(statuses);
+        sorted.sort(Comparator.comparingLong(BuildStatus::getTimestamp).thenComparingInt(statuses::indexOf).reversed());
+        return ids(sorted);
+    }
+
+    private static List<String> ids(BuildStatus... statuses) {
+        return ids(List.of(statuses));
+    }
+
+    private static List<String> ids(List<BuildStatus> statuses) {
+        return statuses.stream().map(BuildStatus::getId).toList();
+    }
+
+    private static BuildStatus status(String repo, String sha, String branch, long timestamp) {
+        BuildStatus status = new BuildStatus(repo, sha, branch, true, "Details");
+        status.setTimestamp(timestamp);
+        return status;
+    }
+}
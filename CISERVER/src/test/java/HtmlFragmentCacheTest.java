@@ -0,0 +1,61 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for HtmlFragmentCache.
+ *
+ * Contract being tested:
+ * - A key is rendered once and then served from the cache.
+ * - The cache stays within its bytes by dropping the least recently used
+ *   entries; an entry too large for it is returned but not kept.
+ */
+public class HtmlFragmentCacheTest {
+
+    @Test
+    public void get_shouldRenderOnce() {
+        HtmlFragmentCache cache = new HtmlFragmentCache(64 * 1024);
+        AtomicInteger renders = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("row", new String(cache.get("key", () -> {
+                renders.incrementAndGet();
+                return "row".getBytes();
+            })));
+        }
+        assertEquals(1, renders.get());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void get_shouldDropLeastRecentlyUsedEntriesWhenFull() {
+        HtmlFragmentCache cache = new HtmlFragmentCache(10 * 1024);
+        for (int i = 0; i < 100; i++) {
+            cache.get("key" + i, () -> new byte[500]);
+            // Keep the first entry in use.
+            cache.get("key0", () -> fail("key0 should still be cached"));
+        }
+        assertTrue(cache.getBytes() <= 10 * 1024);
+        assertTrue(cache.size() < 100);
+        assertEquals(100, cache.getHits());
+
+        AtomicInteger renders = new AtomicInteger();
+        cache.get("key1", () -> {
+            renders.incrementAndGet();
+            return new byte[500];
+        });
+        assertEquals(1, renders.get(), "key1 should have been dropped");
+
+        cache.get("large", () -> new byte[5 * 1024]);
+        assertNotNull(cache.get("key0", () -> fail("key0 should still be cached")));
+        cache.get("large", () -> {
+            renders.incrementAndGet();
+            return new byte[5 * 1024];
+        });
+        assertEquals(2, renders.get(), "A large entry should not be kept");
+    }
+}
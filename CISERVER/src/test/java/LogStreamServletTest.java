@@ -0,0 +1,163 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for LogStreamServlet on a running Jetty server.
+ *
+ * Contract being tested:
+ * - Lines written to the log of a running build reach the client as events,
+ *   and the stream ends with an "end" event once the build is finished.
+ * - A client that reconnects with Last-Event-ID only gets what comes after it.
+ * - Several viewers of the same build share one tailer.
+ * - Ids that are not build ids are rejected.
+ */
+public class LogStreamServletTest {
+
+
+    @TempDir
+    Path tempDir;
+
+    private Server server;
+    private LogStreamServlet servlet;
+    private BuildLogStore store;
+    private FileBuildStatusStore statusStore;
+    private int port;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        statusStore = new FileBuildStatusStore(tempDir.resolve("statuses").toFile());
+        server = new Server(0);
+        ServletContextHandler handler = new ServletContextHandler();
+        store = new BuildLogStore(tempDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE);
+        servlet = new LogStreamServlet(store, statusStore, new LogStreamHub(store, this::isFinished, 20));
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        handler.addServlet(holder, "/log");
+        server.setHandler(handler);
+        server.start();
+        port = server.getURI().getPort();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.stop();
+        statusStore.close();
+    }
+
+    private boolean isFinished(String buildId) {
+        BuildStatus status = statusStore.getStatusById(buildId);
+        return status == null || status.isFinished();
+    }
+
+    @Test
+    public void runningBuild_shouldStreamNewLinesUntilFinished() throws Exception {
+        BuildStatus status = pending("build-1");
+        BuildLog log = new BuildLog(new File(tempDir.toFile(), "build-1.log"));
+        log.line("first");
+        log.flush();
+
+        BlockingQueue<String> events = connect("build-1", null);
+        assertEquals("data: first", nextData(events));
+
+        log.line("second");
+        log.flush();
+        assertEquals("data: second", nextData(events));
+
+        log.close();
+        status.setState(BuildStatus.STATE_SUCCESS);
+        statusStore.updateStatus(status);
+        assertEquals("event: end", next(events, "event:"));
+    }
+
+    @Test
+    public void reconnect_shouldResumeAfterLastEventId() throws Exception {
+        Files.writeString(tempDir.resolve("build-2.log"), "a\nb\nc\n");
+
+        BlockingQueue<String> events = connect("build-2", "2");
+
+        assertEquals("data: b", nextData(events));
+        assertEquals("data: c", nextData(events));
+        assertEquals("event: end", next(events, "event:"));
+    }
+
+    @Test
+    public void viewersOfSameBuild_shouldShareOneTailer() throws Exception {
+        pending("build-3");
+        BuildLog log = new BuildLog(new File(tempDir.toFile(), "build-3.log"));
+        log.line("shared");
+        log.flush();
+
+        BlockingQueue<String> first = connect("build-3", null);
+        BlockingQueue<String> second = connect("build-3", null);
+
+        assertEquals("data: shared", nextData(first));
+        assertEquals("data: shared", nextData(second));
+        assertEquals(1, servlet.getHub().getTailerCount());
+        log.close();
+    }
+
+    @Test
+    public void invalidId_shouldBeRejected() throws Exception {
+        HttpResponse<String> response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/log?id=../secret")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, response.statusCode());
+    }
+
+    private BuildStatus pending(String id) {
+        BuildStatus status = new BuildStatus("repo", "sha", "main", false, "Build queued.");
+        status.setId(id);
+        status.setState(BuildStatus.STATE_PENDING);
+        statusStore.addStatus(status);
+        return status;
+    }
+
+    // Opens an event stream and collects its lines on a background thread.
+    private BlockingQueue<String> connect(String id, String lastEventId) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/log?id=" + id))
+                .header("Accept", "text/event-stream");
+        if (lastEventId != null) {
+            request.header("Last-Event-ID", lastEventId);
+        }
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        HttpClient.newHttpClient().sendAsync(request.build(), HttpResponse.BodyHandlers.ofLines())
+                .thenAccept(response -> response.body().forEach(lines::add));
+        return lines;
+    }
+
+    private static String nextData(BlockingQueue<String> lines) throws InterruptedException {
+        return next(lines, "data:");
+    }
+
+    // Skips lines until one starts with the prefix, like the id lines of events.
+    private static String next(BlockingQueue<String> lines, String prefix) throws InterruptedException {
+        while (true) {
+            String line = lines.poll(5, TimeUnit.SECONDS);
+            assertNotNull(line, "Expected a line starting with " + prefix);
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com;
+
+import java.io.File;
+
+/**
+ * Compares the wall-clock time of one build with the two forked Maven runs
+ * (compile, then test) against one merged run through MavenInvokerExecutor.
+ *
+ * Not a unit test. Run it from the test classpath with a checkout of a repository
+ * that contains CISERVER/pom.xml and the number of builds per variant as arguments:
+ *
+ *   java -cp target/classes:target/test-classes:<dependencies> com.MavenBuildBenchmark /tmp/checkout 5
+ *
+ * The builds run "mvn clean", so do not point it at the checkout it runs from.
+ *
+ * The first build of each variant is a warm-up and not counted.
+ */
+public class MavenBuildBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MavenBuildBenchmark <checkout> [builds]");
+            System.exit(1);
+        }
+        File workspace = new File(args[0]);
+        int builds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        if (!new File(workspace, "CISERVER/pom.xml").isFile()) {
+            System.err.println("No CISERVER/pom.xml in " + workspace.getAbsolutePath());
+            System.exit(1);
+        }
+
+        GithubWebhook forked = new GithubWebhook(new DefaultProcessExecutor(), null, null);
+        GithubWebhook invoker = new GithubWebhook(new MavenInvokerExecutor(new DefaultProcessExecutor()), null, null);
+        invoker.setMergePhases(true);
+
+        double forkedMs = measure("double fork", forked, workspace, builds);
+        double invokerMs = measure("merged invoker", invoker, workspace, builds);
+        System.out.printf("double fork:    %8.0f ms per build%n", forkedMs);
+        System.out.printf("merged invoker: %8.0f ms per build (%.0f%%)%n", invokerMs, 100 * invokerMs / forkedMs);
+    }
+
+    // Average time of one build in milliseconds, after one warm-up build.
+    private static double measure(String name, GithubWebhook webhook, File workspace, int builds) throws Exception {
+        webhook.runBuildPhases(workspace, null);
+        long total = 0;
+        for (int i = 0; i < builds; i++) {
+            long start = System.nanoTime();
+            webhook.runBuildPhases(workspace, null);
+            long elapsed = System.nanoTime() - start;
+            System.out.println(name + " build " + (i + 1) + ": " + elapsed / 1_000_000 + " ms");
+            total += elapsed;
+        }
+        return total / 1_000_000.0 / builds;
+    }
+}
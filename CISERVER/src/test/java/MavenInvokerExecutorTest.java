@@ -0,0 +1,86 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for MavenInvokerExecutor, using a shell script in place of Maven.
+ *
+ * Contract being tested:
+ * - An "mvn" command is run through the invoker in the directory of the
+ *   ProcessBuilder, with the same arguments, and its output and exit code
+ *   end up in the ProcessResult.
+ * - Other commands are passed to the delegate executor unchanged.
+ * - Cancelling the job stops the running Maven invocation.
+ */
+public class MavenInvokerExecutorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void mvnCommand_shouldRunThroughInvoker() throws Exception {
+        File mvn = script("echo \"args: $@\"\necho \"dir: $(pwd)\"\nexit 3\n");
+        ProcessExecutor delegate = mock(ProcessExecutor.class);
+        MavenInvokerExecutor executor = new MavenInvokerExecutor(delegate, mvn);
+        File workspace = Files.createDirectory(tempDir.resolve("workspace")).toFile();
+
+        ProcessBuilder pb = new ProcessBuilder("mvn", "-B", "-f", "CISERVER/pom.xml", "clean", "test");
+        pb.directory(workspace);
+        ProcessResult result = executor.execute(pb);
+
+        assertEquals(3, result.getExitCode());
+        assertTrue(result.getOutput().contains("-B -f CISERVER/pom.xml clean test"), result.getOutput());
+        assertTrue(result.getOutput().contains("dir: " + workspace.getCanonicalPath()), result.getOutput());
+        verifyNoInteractions(delegate);
+    }
+
+    @Test
+    public void otherCommand_shouldBeDelegated() throws Exception {
+        ProcessExecutor delegate = mock(ProcessExecutor.class);
+        ProcessBuilder pb = new ProcessBuilder("git", "status");
+        when(delegate.execute(pb)).thenReturn(new ProcessResult(0, "clean"));
+
+        ProcessResult result = new MavenInvokerExecutor(delegate, script("exit 1\n")).execute(pb);
+
+        assertEquals("clean", result.getOutput());
+        verify(delegate).execute(pb);
+    }
+
+    @Test
+    public void cancel_shouldStopInvocation() throws Exception {
+        File mvn = script("sleep 30\n");
+        MavenInvokerExecutor executor = new MavenInvokerExecutor(mock(ProcessExecutor.class), mvn);
+        BuildJob job = new BuildJob("owner", "repo", "refs/heads/main", "sha");
+        ProcessBuilder pb = new ProcessBuilder("mvn", "-B", "test");
+        pb.directory(tempDir.toFile());
+
+        CompletableFuture<ProcessResult> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                return executor.execute(pb, job);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(500);
+        job.cancel("test");
+
+        assertNotEquals(0, result.get(10, TimeUnit.SECONDS).getExitCode());
+    }
+
+    private File script(String body) throws Exception {
+        File file = tempDir.resolve("mvn").toFile();
+        Files.writeString(file.toPath(), "#!/bin/sh\n" + body);
+        file.setExecutable(true);
+        return file;
+    }
+}
@@ -0,0 +1,212 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for MavenRepositoryCache and how the webhook passes it to Maven.
+ *
+ * Contract being tested:
+ * - Builds get their own local repository per worker, or per repository with perRepo.
+ * - Once a build with the same pom files resolved everything, builds run offline.
+ * - seed resolves the dependencies into the shared repository with go-offline;
+ *   preseed only does so for repositories no repository on disk is warm for.
+ * - evict deletes the artifacts of repositories no build used recently, whatever
+ *   their access times, and forgets what was warm.
+ * - The shared repository is not evicted while any build holds a lease.
+ * - An offline build that misses a dependency is run again online.
+ */
+public class MavenRepositoryCacheTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void acquire_shouldGoOfflineOnceWarm() throws Exception {
+        File root = tempDir.resolve("cache").toFile();
+        MavenRepositoryCache cache = new MavenRepositoryCache(mock(ProcessExecutor.class), root, false, true, Long.MAX_VALUE, DAY);
+        File workspace = workspace("ws", "<project>1</project>");
+
+        MavenRepositoryCache.Lease first = cache.acquire("owner", "repo", workspace);
+        assertEquals(new File(root, "workers/default").getAbsolutePath(), first.getDirectory().getAbsolutePath());
+        assertTrue(first.getMavenArgs().contains("-Dmaven.repo.local=" + first.getDirectory().getAbsolutePath()));
+        assertFalse(first.getMavenArgs().contains("-o"));
+        cache.release(first, true);
+
+        MavenRepositoryCache.Lease second = cache.acquire("owner", "repo", workspace);
+        assertTrue(second.getMavenArgs().contains("-o"), "Same pom files should build offline.");
+        cache.release(second, true);
+
+        Files.writeString(workspace.toPath().resolve("CISERVER/pom.xml"), "<project>2</project>");
+        MavenRepositoryCache.Lease changed = cache.acquire("owner", "repo", workspace);
+        assertFalse(changed.isOffline(), "Changed pom files may need new dependencies.");
+        cache.release(changed, false);
+    }
+
+    @Test
+    public void perRepo_shouldUseRepositoryOfTheRepo() throws Exception {
+        File root = tempDir.resolve("cache").toFile();
+        MavenRepositoryCache cache = new MavenRepositoryCache(mock(ProcessExecutor.class), root, true, true, Long.MAX_VALUE, DAY);
+
+        MavenRepositoryCache.Lease lease = cache.acquire("owner", "repo", workspace("ws", "<project/>"));
+
+        assertEquals(new File(root, "repos/owner/repo").getAbsolutePath(), lease.getDirectory().getAbsolutePath());
+        cache.release(lease, false);
+    }
+
+    @Test
+    public void seed_shouldResolveIntoSharedRepository() throws Exception {
+        File root = tempDir.resolve("cache").toFile();
+        ProcessExecutor executor = mock(ProcessExecutor.class);
+        when(executor.execute(any(ProcessBuilder.class))).thenReturn(new ProcessResult(0, "BUILD SUCCESS"));
+        MavenRepositoryCache cache = new MavenRepositoryCache(executor, root, false, true, Long.MAX_VALUE, DAY);
+        File workspace = workspace("ws", "<project/>");
+
+        cache.seed("owner", "repo", workspace);
+
+        verify(executor).execute(argThat(pb -> pb.command().contains("dependency:go-offline")
+                && pb.command().contains("-Dmaven.repo.local=" + new File(root, "shared").getAbsolutePath())));
+        MavenRepositoryCache.Lease lease = cache.acquire("owner", "repo", workspace);
+        assertTrue(lease.isOffline(), "A seeded repository should build offline.");
+        cache.release(lease, true);
+    }
+
+    @Test
+    public void preseed_shouldSkipKnownRepositories() throws Exception {
+        File root = tempDir.resolve("cache").toFile();
+        MavenRepositoryCache earlier = new MavenRepositoryCache(mock(ProcessExecutor.class), root, false, true, Long.MAX_VALUE, DAY);
+        earlier.release(earlier.acquire("owner", "known", workspace("ws", "<project/>")), true);
+        earlier.shutdown();
+
+        MavenRepositoryCache cache = new MavenRepositoryCache(mock(ProcessExecutor.class), root, false, true, Long.MAX_VALUE, DAY);
+        CheckoutStrategy checkout = mock(CheckoutStrategy.class);
+        cache.preseed("owner", "known", "url", "sha", checkout);
+        cache.preseed("owner", "new", "url", "sha", checkout);
+
+        verify(checkout, timeout(5000)).cleanup(eq("owner"), eq("new"), any());
+        verify(checkout, never()).checkout(eq("owner"), eq("known"), any(), any(), any(), any());
+        cache.shutdown();
+    }
+
+    @Test
+    public void evict_shouldDeleteArtifactsNotUsedRecently() throws Exception {
+        File root = tempDir.resolve("cache").toFile();
+        long now = System.currentTimeMillis();
+        MavenRepositoryCache setup = new MavenRepositoryCache(mock(ProcessExecutor.class), root, true, true, Long.MAX_VALUE, DAY);
+        File workspace = workspace("ws", "<project/>");
+        MavenRepositoryCache.Lease stale = setup.acquire("owner", "stale", workspace);
+        File old = artifact(stale.getDirectory(), "old", now - 10 * DAY);
+        setup.release(stale, true);
+        MavenRepositoryCache.Lease used = setup.acquire("owner", "used", workspace);
+        // Downloaded long ago and never read since, as far as the access time tells.
+        File daily = artifact(used.getDirectory(), "daily", now - 10 * DAY);
+        setup.release(used, true);
+        // The stale repository was last used ten days ago.
+        Files.setLastModifiedTime(new File(stale.getDirectory(), ".ci-used").toPath(), FileTime.fromMillis(now - 10 * DAY));
+
+        MavenRepositoryCache cache = new MavenRepositoryCache(mock(ProcessExecutor.class), root, true, true, Long.MAX_VALUE, DAY);
+        cache.evict();
+
+        assertFalse(old.exists(), "An artifact of a repository nobody used for longer than maxAge should be deleted.");
+        assertTrue(daily.exists(), "An artifact of a repository used today should be kept.");
+        MavenRepositoryCache.Lease after = cache.acquire("owner", "stale", workspace);
+        assertFalse(after.isOffline(), "After an eviction the repository is no longer known to be complete.");
+        cache.release(after, false);
+        MavenRepositoryCache.Lease still = cache.acquire("owner", "used", workspace);
+        assertTrue(still.isOffline());
+        cache.release(still, false);
+    }
+
+    @Test
+    public void evict_shouldKeepSharedRepositoryWhileLeased() throws Exception {
+        File root = tempDir.resolve("cache").toFile();
+        MavenRepositoryCache cache = new MavenRepositoryCache(mock(ProcessExecutor.class), root, true, true, 0, DAY);
+        File old = artifact(new File(root, "shared"), "old", System.currentTimeMillis() - 10 * DAY);
+        // A build of another repository, so its own repository is not the one in use.
+        MavenRepositoryCache.Lease lease = cache.acquire("owner", "other", workspace("ws", "<project/>"));
+
+        cache.evict();
+        assertTrue(old.exists(), "The shared repository is the tail of a running build.");
+
+        cache.release(lease, false);
+        cache.evict();
+        assertFalse(old.exists());
+    }
+
+    @Test
+    public void offlineResolutionFailure_shouldRetryOnline() throws Exception {
+        File root = tempDir.resolve("cache").toFile();
+        List<List<String>> commands = new ArrayList<>();
+        ProcessExecutor executor = pb -> {
+            commands.add(pb.command());
+            return pb.command().contains("-o")
+                    ? new ProcessResult(1, "Cannot access central in offline mode")
+                    : new ProcessResult(0, "BUILD SUCCESS");
+        };
+        MavenRepositoryCache cache = new MavenRepositoryCache(executor, root, false, true, Long.MAX_VALUE, DAY);
+        // An earlier build with the same pom made the repository warm.
+        MavenRepositoryCache.Lease warm = cache.acquire("owner", "repo", workspace("earlier", "<project/>"));
+        cache.release(warm, true);
+
+        // The checkout below doesn't clone, so no GITHUB_TOKEN is needed.
+        GithubWebhook webhook = new GithubWebhook(executor, null, mock(BuildStatusStore.class)) {
+            @Override
+            protected String cloneUrl(String owner, String repo) {
+                return "file:///dev/null";
+            }
+        };
+        webhook.setMavenRepositoryCache(cache);
+        webhook.setCheckoutStrategy(new CheckoutStrategy() {
+            @Override
+            public void checkout(String owner, String repo, String cloneUrl, String commitSHA, File workspace, BuildJob job) throws Exception {
+                Files.createDirectories(workspace.toPath().resolve("CISERVER"));
+                Files.writeString(workspace.toPath().resolve("CISERVER/pom.xml"), "<project/>");
+            }
+
+            @Override
+            public void cleanup(String owner, String repo, File workspace) {
+                FileUtils.deleteQuietly(workspace);
+            }
+        });
+
+        webhook.runBuildAtCommit("owner", "repo", "sha");
+
+        assertEquals(3, commands.size(), "The offline compile should be followed by an online compile and test.");
+        assertTrue(commands.get(0).contains("-o"));
+        assertFalse(commands.get(1).contains("-o"));
+        assertFalse(commands.get(2).contains("-o"));
+    }
+
+    private File workspace(String name, String pom) throws Exception {
+        Path dir = Files.createDirectories(tempDir.resolve(name).resolve("CISERVER"));
+        Files.writeString(dir.resolve("pom.xml"), pom);
+        return dir.getParent().toFile();
+    }
+
+    // A version directory like ~/.m2 has, with all files downloaded and last read at the time.
+    private static File artifact(File repository, String name, long time) throws Exception {
+        Path dir = Files.createDirectories(repository.toPath().resolve("org/example/" + name + "/1.0"));
+        for (String file : new String[] {name + "-1.0.pom", name + "-1.0.jar"}) {
+            Path path = Files.writeString(dir.resolve(file), name);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(time));
+            Files.setAttribute(path, "lastAccessTime", FileTime.fromMillis(time));
+        }
+        return dir.toFile();
+    }
+}
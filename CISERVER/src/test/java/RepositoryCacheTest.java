@@ -0,0 +1,113 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for RepositoryCache using a local bare repository over file://.
+ *
+ * Contract being tested:
+ * - The first workspace creates a bare mirror, later ones fetch into it.
+ * - Workspaces are checked out at the exact commit and removed on release.
+ * - Mirrors that are not in use are evicted in the background once the cache is
+ *   over its size limit, also those left on disk by an earlier run.
+ */
+public class RepositoryCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private GitTestRepo origin;
+    private File cacheDir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        origin = new GitTestRepo(tempDir.resolve("origin").toFile());
+        cacheDir = tempDir.resolve("cache").toFile();
+    }
+
+    @Test
+    public void createWorkspace_shouldCheckOutExactCommit() throws Exception {
+        RepositoryCache cache = new RepositoryCache(new DefaultProcessExecutor(), cacheDir, Long.MAX_VALUE);
+        String first = origin.commit("file.txt", "first");
+        String second = origin.commit("file.txt", "second");
+
+        File workspace = tempDir.resolve("ws1").toFile();
+        cache.checkout("owner", "repo", origin.getUrl(), first, workspace, null);
+        assertEquals("first", read(workspace, "file.txt"));
+        assertTrue(new File(cache.getMirrorDir("owner", "repo"), "HEAD").exists(), "A bare mirror should be created.");
+
+        // A new commit is fetched into the existing mirror.
+        String third = origin.commit("other.txt", "third");
+        File workspace2 = tempDir.resolve("ws2").toFile();
+        cache.checkout("owner", "repo", origin.getUrl(), third, workspace2, null);
+        assertEquals("second", read(workspace2, "file.txt"));
+        assertEquals("third", read(workspace2, "other.txt"));
+        assertEquals(third, GitTestRepo.git(workspace2, "rev-parse", "HEAD").trim());
+
+        cache.cleanup("owner", "repo", workspace);
+        cache.cleanup("owner", "repo", workspace2);
+        assertFalse(workspace.exists());
+        assertFalse(workspace2.exists());
+        assertTrue(cache.getMirrorDir("owner", "repo").exists(), "The mirror should be kept for the next build.");
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void createWorkspace_unknownCommit_shouldFail() throws Exception {
+        RepositoryCache cache = new RepositoryCache(new DefaultProcessExecutor(), cacheDir, Long.MAX_VALUE);
+        origin.commit("file.txt", "first");
+
+        File workspace = tempDir.resolve("ws").toFile();
+        Exception e = assertThrows(Exception.class, () ->
+            cache.checkout("owner", "repo", origin.getUrl(), "0123456789012345678901234567890123456789", workspace, null));
+        assertTrue(e.getMessage().contains("Git checkout of commit"));
+    }
+
+    @Test
+    public void releaseWorkspace_shouldEvictMirrorsOverLimit() throws Exception {
+        RepositoryCache cache = new RepositoryCache(new DefaultProcessExecutor(), cacheDir, 1);
+        String sha = origin.commit("file.txt", "content");
+
+        File workspace = tempDir.resolve("ws").toFile();
+        cache.checkout("owner", "repo", origin.getUrl(), sha, workspace, null);
+        // In use, so it must survive an eviction.
+        cache.evict();
+        assertTrue(cache.getMirrorDir("owner", "repo").exists());
+
+        cache.cleanup("owner", "repo", workspace);
+        awaitDeleted(cache.getMirrorDir("owner", "repo"));
+    }
+
+    @Test
+    public void existingMirrors_shouldBeEvictedWhenOverLimit() throws Exception {
+        RepositoryCache unbounded = new RepositoryCache(new DefaultProcessExecutor(), cacheDir, Long.MAX_VALUE);
+        String sha = origin.commit("file.txt", "content");
+        File workspace = tempDir.resolve("ws").toFile();
+        unbounded.checkout("owner", "repo", origin.getUrl(), sha, workspace, null);
+        unbounded.cleanup("owner", "repo", workspace);
+        assertTrue(unbounded.getMirrorDir("owner", "repo").exists());
+
+        RepositoryCache bounded = new RepositoryCache(new DefaultProcessExecutor(), cacheDir, 1);
+        awaitDeleted(bounded.getMirrorDir("owner", "repo"));
+    }
+
+    private static void awaitDeleted(File dir) throws InterruptedException {
+        for (int i = 0; i < 100 && dir.exists(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(dir.exists(), dir + " should have been evicted");
+    }
+
+    private static String read(File dir, String name) throws Exception {
+        return Files.readString(new File(dir, name).toPath(), StandardCharsets.UTF_8);
+    }
+}
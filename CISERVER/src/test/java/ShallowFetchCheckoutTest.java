@@ -0,0 +1,97 @@
+package com;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for ShallowFetchCheckout using a local bare repository over file://.
+ *
+ * Contract being tested:
+ * - Only the pushed commit is fetched (depth 1) and checked out.
+ * - When the server refuses to serve a commit by its SHA the repository is cloned instead.
+ */
+public class ShallowFetchCheckoutTest {
+
+    @TempDir
+    Path tempDir;
+
+    private GitTestRepo origin;
+    private File workspace;
+    private final List<String> commands = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        origin = new GitTestRepo(tempDir.resolve("origin").toFile());
+        workspace = tempDir.resolve("workspace").toFile();
+    }
+
+    @Test
+    public void checkout_shouldFetchOnlyThePushedCommit() throws Exception {
+        origin.commit("file.txt", "first");
+        String second = origin.commit("file.txt", "second");
+        ShallowFetchCheckout checkout = new ShallowFetchCheckout(recording(new DefaultProcessExecutor()));
+
+        checkout.checkout("owner", "repo", origin.getUrl(), second, workspace, null);
+
+        assertEquals("second", read(workspace, "file.txt"));
+        assertEquals(second, GitTestRepo.git(workspace, "rev-parse", "HEAD").trim());
+        assertEquals("1", GitTestRepo.git(workspace, "rev-list", "--count", "HEAD").trim(), "Only one commit should be fetched.");
+        assertFalse(commands.stream().anyMatch(c -> c.startsWith("git clone")), "No clone should be needed.");
+
+        checkout.cleanup("owner", "repo", workspace);
+        assertFalse(workspace.exists());
+    }
+
+    @Test
+    public void checkout_shouldFallBackToCloneWhenFetchBySHAIsRefused() throws Exception {
+        String first = origin.commit("file.txt", "first");
+        origin.commit("file.txt", "second");
+        // Protocol v0 servers refuse commits that are not a branch tip unless configured otherwise.
+        ProcessExecutor protocolV0 = pb -> {
+            pb.environment().put("GIT_CONFIG_COUNT", "1");
+            pb.environment().put("GIT_CONFIG_KEY_0", "protocol.version");
+            pb.environment().put("GIT_CONFIG_VALUE_0", "0");
+            return new DefaultProcessExecutor().execute(pb);
+        };
+        ShallowFetchCheckout checkout = new ShallowFetchCheckout(recording(protocolV0));
+
+        checkout.checkout("owner", "repo", origin.getUrl(), first, workspace, null);
+
+        assertTrue(commands.stream().anyMatch(c -> c.startsWith("git fetch --depth 1")));
+        assertTrue(commands.stream().anyMatch(c -> c.startsWith("git clone")), "A full clone should be made.");
+        assertEquals("first", read(workspace, "file.txt"));
+        assertEquals(first, GitTestRepo.git(workspace, "rev-parse", "HEAD").trim());
+    }
+
+    @Test
+    public void checkout_unknownCommit_shouldFailAndRemoveWorkspace() throws Exception {
+        origin.commit("file.txt", "first");
+        ShallowFetchCheckout checkout = new ShallowFetchCheckout(new DefaultProcessExecutor());
+
+        assertThrows(Exception.class, () ->
+            checkout.checkout("owner", "repo", origin.getUrl(), "0123456789012345678901234567890123456789", workspace, null));
+        assertFalse(workspace.exists());
+    }
+
+    // Records every command before running it.
+    private ProcessExecutor recording(ProcessExecutor delegate) {
+        return pb -> {
+            commands.add(String.join(" ", pb.command()));
+            return delegate.execute(pb);
+        };
+    }
+
+    private static String read(File dir, String name) throws Exception {
+        return Files.readString(new File(dir, name).toPath(), StandardCharsets.UTF_8);
+    }
+}